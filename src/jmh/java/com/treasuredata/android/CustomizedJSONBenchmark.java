@@ -0,0 +1,128 @@
+package com.treasuredata.android;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.TreeCodec;
+import com.fasterxml.jackson.jr.ob.JSON;
+import com.fasterxml.jackson.jr.ob.impl.JSONWriter;
+import com.fasterxml.jackson.jr.ob.impl.TypeDetector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Serializes an event with a few dates from several threads.
+ *
+ * Run with `./gradlew jmh`. {@link #globalLock} and {@link #serializeEventWithGlobalLock} reproduce
+ * the former formatting under the global lock to compare with. Dates are {@link #stepMillis} apart,
+ * so that 1 mostly formats dates in the same second and 1001 formats a new second every time.
+ */
+@State(Scope.Thread)
+@Threads(4)
+public class CustomizedJSONBenchmark {
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    private static final int DATE_COUNT = 1024;
+
+    @Param({"1", "1001"})
+    public long stepMillis;
+
+    private final CustomizedJSON json = new CustomizedJSON();
+    private final JSON globalLockJson = new GlobalLockJSON();
+    private final Date[] dates = new Date[DATE_COUNT];
+    private int dateIndex;
+    private Map<String, Object> event;
+
+    @Setup
+    public void setup() {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < DATE_COUNT; i++) {
+            dates[i] = new Date(start + i * stepMillis);
+        }
+        event = new HashMap<String, Object>();
+        event.put("name", "komamitsu");
+        event.put("age", 99);
+        event.put("td_os_type", "Android");
+    }
+
+    private Date nextDate() {
+        Date date = dates[dateIndex];
+        dateIndex = (dateIndex + 1) % DATE_COUNT;
+        return date;
+    }
+
+    private Map<String, Object> nextEvent() {
+        event.put("created_at", nextDate());
+        event.put("updated_at", nextDate());
+        event.put("sent_at", nextDate());
+        return event;
+    }
+
+    @Benchmark
+    public String serializeEvent() throws IOException {
+        return json.asString(nextEvent());
+    }
+
+    @Benchmark
+    public String serializeEventWithGlobalLock() throws IOException {
+        return globalLockJson.asString(nextEvent());
+    }
+
+    @Benchmark
+    public String formatDate() {
+        return TDDateFormatter.formatDate(nextDate());
+    }
+
+    @Benchmark
+    public String globalLock() {
+        return formatWithGlobalLock(nextDate());
+    }
+
+    private static String formatWithGlobalLock(Date date) {
+        synchronized (SimpleDateFormat.class) {
+            return DATE_FORMAT.format(date);
+        }
+    }
+
+    /**
+     * {@link CustomizedJSON} as it was before {@link TDDateFormatter}.
+     */
+    private static class GlobalLockJSON extends JSON {
+        private static class GlobalLockJSONWriter extends JSONWriter {
+            GlobalLockJSONWriter(int features, TypeDetector td, TreeCodec tc) {
+                super(features, td, tc);
+            }
+
+            GlobalLockJSONWriter(GlobalLockJSONWriter globalLockJSONWriter, JsonGenerator jg) {
+                super(globalLockJSONWriter, jg);
+            }
+
+            @Override
+            protected void writeDateValue(Date v) throws IOException {
+                writeStringValue(formatWithGlobalLock(v));
+            }
+
+            @Override
+            protected void writeDateField(String fieldName, Date v) throws IOException {
+                writeStringField(fieldName, formatWithGlobalLock(v));
+            }
+
+            @Override
+            public JSONWriter perOperationInstance(JsonGenerator jg) {
+                return new GlobalLockJSONWriter(this, jg);
+            }
+        }
+
+        @Override
+        protected JSONWriter _defaultWriter(int features, TreeCodec tc) {
+            return new GlobalLockJSONWriter(features, TypeDetector.forWriter(features), tc);
+        }
+    }
+}
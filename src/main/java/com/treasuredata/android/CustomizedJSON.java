@@ -7,12 +7,9 @@ import com.fasterxml.jackson.jr.ob.impl.JSONWriter;
 import com.fasterxml.jackson.jr.ob.impl.TypeDetector;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 
 public class CustomizedJSON extends JSON {
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-
     private static class CustomizedJSONWriter extends JSONWriter {
         public CustomizedJSONWriter(int features, TypeDetector td, TreeCodec tc) {
             super(features, td, tc);
@@ -24,11 +21,7 @@ public class CustomizedJSON extends JSON {
         }
 
         private String getFormatedDate(Date date) {
-            String dateStr;
-            synchronized (SimpleDateFormat.class) {
-                dateStr = DATE_FORMAT.format(date);
-            }
-            return dateStr;
+            return TDDateFormatter.formatDate(date);
         }
 
         // Workaround of https://github.com/FasterXML/jackson-jr/pull/31
@@ -40,6 +33,12 @@ public class CustomizedJSON extends JSON {
                 return;
             }
 
+            if (value instanceof Float) {
+                _generator.writeFieldName(fieldName);
+                writeFloat((Float) value);
+                return;
+            }
+
             int type = _typeDetector.findFullType(value.getClass());
             switch (type) {
             case TypeDetector.SER_UUID:
@@ -51,6 +50,20 @@ public class CustomizedJSON extends JSON {
             super.writeField(fieldName, value);
         }
 
+        @Override
+        public void writeValue(Object value) throws IOException {
+            if (value instanceof Float) {
+                writeFloat((Float) value);
+                return;
+            }
+            super.writeValue(value);
+        }
+
+        // jackson-jr widens floats to doubles, which writes 0.1f as 0.10000000149011612
+        private void writeFloat(float value) throws IOException {
+            _generator.writeNumber(value);
+        }
+
         @Override
         protected void writeDateValue(Date v) throws IOException {
             writeStringValue(getFormatedDate(v));
@@ -1,12 +1,32 @@
 package com.treasuredata.android;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * The state of a session is an immutable snapshot replaced atomically, so that getId(), which is called
+ * for every event, doesn't take a lock and sees a consistent state while start() and finish() are called
+ * from other threads.
+ */
 public class Session {
     public static final long DEFAULT_SESSION_PENDING_MILLIS = 10 * 1000;
     private final long sessionPendingMillis;
-    private String id;
-    private Long finishedAt;
+    // null until start() is called
+    private final AtomicReference<State> state = new AtomicReference<State>();
+
+    private static final class State {
+        final String id;
+        final long startedAt;
+        final boolean finished;
+        final long finishedAt;
+
+        State(String id, long startedAt, boolean finished, long finishedAt) {
+            this.id = id;
+            this.startedAt = startedAt;
+            this.finished = finished;
+            this.finishedAt = finishedAt;
+        }
+    }
 
     public Session() {
         this(DEFAULT_SESSION_PENDING_MILLIS);
@@ -16,24 +36,45 @@ public class Session {
         this.sessionPendingMillis = sessionPendingMillis;
     }
 
-    public synchronized void start() {
-        if (id == null || (finishedAt != null && (System.currentTimeMillis() - finishedAt) > sessionPendingMillis)) {
-            id = UUID.randomUUID().toString();
+    public void start() {
+        while (true) {
+            State current = state.get();
+            if (current != null && !current.finished) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            State next;
+            if (current == null || (now - current.finishedAt) > sessionPendingMillis) {
+                next = new State(UUID.randomUUID().toString(), now, false, 0);
+            }
+            else {
+                // Resumed within the pending time
+                next = new State(current.id, current.startedAt, false, 0);
+            }
+            if (state.compareAndSet(current, next)) {
+                return;
+            }
         }
-        finishedAt = null;
     }
 
-    public synchronized void finish() {
-        // Checking `id` just for case of calling finish() first before start()
-        if (id != null && finishedAt == null) {
-            finishedAt = System.currentTimeMillis();
+    public void finish() {
+        while (true) {
+            State current = state.get();
+            // Checking `current` just for case of calling finish() first before start()
+            if (current == null || current.finished) {
+                return;
+            }
+            if (state.compareAndSet(current, new State(current.id, current.startedAt, true, System.currentTimeMillis()))) {
+                return;
+            }
         }
     }
 
-    public synchronized String getId() {
-        if (id == null || finishedAt != null) {
+    public String getId() {
+        State current = state.get();
+        if (current == null || current.finished) {
             return null;
         }
-        return id;
+        return current.id;
     }
 }
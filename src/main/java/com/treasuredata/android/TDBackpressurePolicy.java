@@ -0,0 +1,19 @@
+package com.treasuredata.android;
+
+/**
+ * What to do when the ingestion buffer is full, see {@link TreasureData#enableIngestionBuffer(int, TDBackpressurePolicy, long)}
+ */
+public enum TDBackpressurePolicy {
+    /**
+     * Wait until the buffer has room
+     */
+    BLOCK,
+    /**
+     * Drop the oldest event in the buffer
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the event being added
+     */
+    DROP_NEWEST
+}
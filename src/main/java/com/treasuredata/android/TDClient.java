@@ -2,6 +2,7 @@ package com.treasuredata.android;
 
 import android.content.Context;
 import io.keen.client.java.GlobalPropertiesEvaluator;
+import io.keen.client.java.KeenCallback;
 import io.keen.client.java.KeenClient;
 import io.keen.client.java.KeenProject;
 import org.komamitsu.android.util.Log;
@@ -10,25 +11,69 @@ import java.io.File;
 import java.io.IOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 class TDClient extends KeenClient {
     private static final String TAG = TDClient.class.getSimpleName();
     private static String defaultApiKey;
     private static String apiEndpoint;
     private static String encryptionKey;
+    private static TDEventEncoding eventEncoding = TDEventEncoding.JSON;
+    private static final int MAX_COLUMN_NAME_LENGTH = 256;
+    private static final String RETRY_STATE_FILE_NAME = "td_retry_state";
+    private static final String ENCRYPTION_SALT_FILE_NAME = "td_encryption_salt";
+    private final TDHttpHandler httpHandler;
+    private final TDEventUploader uploader;
+    private final TDEventStore eventStore;
+    private final TDJsonHandler jsonHandler;
+    private final TDRetryPolicy retryPolicy;
+    private volatile int maxConcurrentUploads = 1;
+    private volatile TDUploadMetrics lastUploadMetrics;
 
     TDClient(String apiKey, File eventStoreRoot) throws IOException {
+        this(apiKey,
+                new TDHttpHandler((apiKey == null ? TDClient.defaultApiKey : apiKey), apiEndpoint),
+                new TDEventStore(eventStoreRoot),
+                eventEncoding == TDEventEncoding.MESSAGE_PACK ?
+                        new TDMessagePackHandler(encryptionKey, new File(eventStoreRoot, ENCRYPTION_SALT_FILE_NAME)) :
+                        new TDJsonHandler(encryptionKey, new File(eventStoreRoot, ENCRYPTION_SALT_FILE_NAME)),
+                new TDRetryPolicy(new File(eventStoreRoot, RETRY_STATE_FILE_NAME)));
+    }
+
+    private TDClient(String apiKey, TDHttpHandler httpHandler, TDEventStore eventStore, final TDJsonHandler jsonHandler, TDRetryPolicy retryPolicy) {
         super(
                 new TDClientBuilder()
-                        .withHttpHandler(new TDHttpHandler((apiKey == null ? TDClient.defaultApiKey : apiKey), apiEndpoint))
-                        .withEventStore(new TDEventStore(eventStoreRoot))
-                        .withJsonHandler(new TDJsonHandler(encryptionKey))
-                        .withPublishExecutor(Executors.newSingleThreadExecutor())
+                        .withHttpHandler(httpHandler)
+                        .withEventStore(eventStore)
+                        .withJsonHandler(jsonHandler)
+                        .withPublishExecutor(TDScheduler.executor(TDScheduler.Lane.UPLOAD))
         );
+        this.httpHandler = httpHandler;
+        this.uploader = new TDEventUploader(eventStore, httpHandler, jsonHandler, retryPolicy);
+        this.eventStore = eventStore;
+        this.jsonHandler = jsonHandler;
+        eventStore.setEventCodec(jsonHandler);
+        if (encryptionKey != null) {
+            // Deriving the key takes a while. It's done before the first event needs it, off the caller's thread
+            try {
+                TDScheduler.executor(TDScheduler.Lane.INGESTION).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        jsonHandler.getRecordKeySpec();
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                // The key is derived when the first event needs it
+                Log.w(TAG, "Failed to derive the encryption key in the background: " + e.getMessage());
+            }
+        }
+        this.retryPolicy = retryPolicy;
         // setDebugMode(true);
         setApiKey(apiKey == null ? TDClient.defaultApiKey : apiKey);
         setActive(true);
@@ -58,6 +103,10 @@ class TDClient extends KeenClient {
         TDClient.encryptionKey = encryptionKey;
     }
 
+    static void setEventEncoding(TDEventEncoding eventEncoding) {
+        TDClient.eventEncoding = eventEncoding == null ? TDEventEncoding.JSON : eventEncoding;
+    }
+
     public void disableAutoRetryUploading() {
         enableRetryUploading = false;
     }
@@ -66,10 +115,201 @@ class TDClient extends KeenClient {
         enableRetryUploading = true;
     }
 
+    /**
+     * @param maxConcurrentUploads the max number of requests in flight. 1 uploads events one request at a time
+     */
+    void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        if (maxConcurrentUploads < 1) {
+            throw new IllegalArgumentException("maxConcurrentUploads must be positive: " + maxConcurrentUploads);
+        }
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    TDRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    void setEventStoreListener(TDEventStore.StoreListener listener) {
+        if (eventStore != null) {
+            eventStore.setStoreListener(listener);
+        }
+    }
+
+    void setEventEvictionListener(TDEventStore.EvictionListener listener) {
+        if (eventStore != null) {
+            eventStore.setEvictionListener(listener);
+        }
+    }
+
+    void setEventStoreQuota(long maxBytes, int maxEvents, TDEvictionPolicy evictionPolicy) throws IOException {
+        if (eventStore != null) {
+            eventStore.setQuota(maxBytes, maxEvents, evictionPolicy);
+        }
+    }
+
+    void setEventSyncInterval(long syncIntervalMillis) {
+        if (eventStore != null) {
+            eventStore.setSyncInterval(syncIntervalMillis);
+        }
+    }
+
+    void setCollectionPriority(String eventCollection, int priority) {
+        if (eventStore != null) {
+            eventStore.setCollectionPriority(eventCollection, priority);
+        }
+    }
+
+    void setCompressionCodec(TDCompressionCodec compressionCodec) {
+        if (httpHandler != null) {
+            httpHandler.setCompressionCodec(compressionCodec);
+        }
+    }
+
+    /**
+     * Stores a {@link TDEvent} like {@link #queueEvent(KeenProject, String, Map, Map, KeenCallback)} does a Map,
+     * adding the "keen" properties and "#UUID", but without converting it to a Map.
+     */
+    void queueEvent(String eventCollection, TDEvent event, KeenCallback callback) {
+        if (!isActive() || eventStore == null || jsonHandler == null) {
+            handleFailure(callback, ERROR_CODE_INIT_ERROR, new IllegalStateException("TDClient isn't initialized"));
+            return;
+        }
+
+        String invalidColumn = findInvalidColumn(event);
+        if (invalidColumn != null) {
+            handleFailure(callback, ERROR_CODE_INVALID_EVENT, new IllegalArgumentException("Invalid column name: " + invalidColumn));
+            return;
+        }
+        event.setKeenProperties(TDDateFormatter.formatDate(new Date()), UUID.randomUUID().toString());
+
+        byte[] record;
+        try {
+            record = jsonHandler.toRecord(event);
+        } catch (IOException e) {
+            handleFailure(callback, ERROR_CODE_DATA_CONVERSION, e);
+            return;
+        }
+
+        try {
+            eventStore.store(getDefaultProject().getProjectId(), eventCollection, record);
+        } catch (IOException e) {
+            handleFailure(callback, ERROR_CODE_STORAGE_ERROR, e);
+            return;
+        }
+
+        if (callback != null) {
+            callback.onSuccess();
+        }
+    }
+
+    // The same rules as KeenClient applies to Map events. "#UUID" is rejected as well
+    // since it's appended to the event and the key would be duplicated
+    private static String findInvalidColumn(TDEvent event) {
+        for (int i = 0; i < event.size(); i++) {
+            String name = event.getName(i);
+            if (name.length() == 0 || name.length() > MAX_COLUMN_NAME_LENGTH
+                    || name.indexOf('.') >= 0 || name.charAt(0) == '$' || name.equals("keen")
+                    || name.equals(TDEvent.EVENT_UUID)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private static void handleFailure(KeenCallback callback, String errorCode, Exception e) {
+        if (TDLogging.isEnabled()) {
+            Log.w(TAG, "Failed to queue an event", e);
+        }
+        if (callback != null) {
+            if (callback instanceof KeenCallbackWithErrorCode) {
+                ((KeenCallbackWithErrorCode) callback).setErrorCode(errorCode);
+            }
+            callback.onFailure(e);
+        }
+    }
+
+    @Override
+    public synchronized void sendQueuedEvents(KeenProject project, KeenCallback callback) {
+        if (uploader == null) {
+            super.sendQueuedEvents(project, callback);
+            return;
+        }
+
+        long delay = retryPolicy.getDelayMillis();
+        if (delay > 0) {
+            // Don't send requests to the endpoint that has been failing
+            handleUploadFailure(callback, new TDUploadException(KeenClient.ERROR_CODE_NETWORK_ERROR,
+                    String.format("Uploading is deferred for %d ms after failures", delay)));
+            return;
+        }
+
+        KeenProject useProject = project == null ? getDefaultProject() : project;
+        long startedAt = System.nanoTime();
+        long requestCount = httpHandler.getRequestCount();
+        long handshakeCount = httpHandler.getHandshakeCount();
+        try {
+            uploader.uploadAllInParallel(useProject.getProjectId(), getMaxUploadEventsAtOnce(), enableRetryUploading,
+                    maxConcurrentUploads, TDScheduler.executor(TDScheduler.Lane.UPLOAD_WORKER));
+        } catch (TDUploadException e) {
+            recordUploadMetrics(startedAt, requestCount, handshakeCount);
+            if (e.isBackoff()) {
+                long nextDelay = retryPolicy.onFailure(e.getRetryAfterMillis());
+                Log.w(TAG, "Failed to upload events. Retrying after " + nextDelay + " ms", e);
+            }
+            else {
+                Log.w(TAG, "Failed to upload events", e);
+            }
+            handleUploadFailure(callback, e);
+            return;
+        }
+        recordUploadMetrics(startedAt, requestCount, handshakeCount);
+        retryPolicy.onSuccess();
+
+        if (callback != null) {
+            callback.onSuccess();
+        }
+    }
+
+    private static void handleUploadFailure(KeenCallback callback, TDUploadException e) {
+        if (callback != null) {
+            if (callback instanceof KeenCallbackWithErrorCode) {
+                ((KeenCallbackWithErrorCode) callback).setErrorCode(e.getErrorCode());
+            }
+            callback.onFailure(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+        }
+    }
+
+    private void recordUploadMetrics(long startedAt, long prevRequestCount, long prevHandshakeCount) {
+        TDUploadMetrics metrics = new TDUploadMetrics(
+                httpHandler.getRequestCount() - prevRequestCount,
+                httpHandler.getHandshakeCount() - prevHandshakeCount,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        lastUploadMetrics = metrics;
+        if (TDLogging.isEnabled() && metrics.getRequestCount() > 0) {
+            Log.d(TAG, "Uploaded events: " + metrics);
+        }
+    }
+
+    /**
+     * @return null if no event has been uploaded yet
+     */
+    TDUploadMetrics getLastUploadMetrics() {
+        return lastUploadMetrics;
+    }
+
     // Only for test
     @Deprecated
     TDClient(String apiKey) {
         super(new TDClientBuilder());
+        this.httpHandler = null;
+        this.uploader = null;
+        this.eventStore = null;
+        this.jsonHandler = null;
+        this.retryPolicy = new TDRetryPolicy(null);
         setApiKey(apiKey);
     }
 
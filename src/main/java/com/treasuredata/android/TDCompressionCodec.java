@@ -0,0 +1,185 @@
+package com.treasuredata.android;
+
+import io.keen.client.java.http.OutputSource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses request bodies sent by {@link TDHttpHandler}.
+ */
+interface TDCompressionCodec {
+    /**
+     * @return the value of Content-Encoding header, or null if the body isn't compressed
+     */
+    String getContentEncoding();
+
+    /**
+     * Writes the compressed body into {@code out}. {@code out} must not be closed.
+     */
+    void compress(OutputSource body, OutputStream out) throws IOException;
+
+    TDCompressionCodec IDENTITY = new TDCompressionCodec() {
+        @Override
+        public String getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public void compress(OutputSource body, OutputStream out) throws IOException {
+            body.writeTo(out);
+        }
+    };
+
+    TDCompressionCodec DEFLATE = new Deflate(null);
+
+    TDCompressionCodec GZIP = new Gzip();
+
+    /**
+     * Column names this SDK appends to events, used as a preset dictionary of deflate.
+     * Strings used more often are placed near the end.
+     * This must not change once released. Its Adler-32 checksum is 0x59fd5c94.
+     */
+    byte[] TD_COLUMN_DICTIONARY = (
+            "\"td_locale_country\":\"\"td_locale_lang\":\"\"td_board\":\"\"td_brand\":\"\"td_device\":\"" +
+            "\"td_display\":\"\"td_model\":\"\"td_os_ver\":\"\"td_os_type\":\"Android\"" +
+            "\"td_app_ver\":\"\"td_app_ver_num\":\"\"td_maid\":\"\"td_android_event\":\"" +
+            "\"record_uuid\":\"\"td_session_id\":\"\"td_uuid\":\"\"keen\":{\"timestamp\":\"\"#UUID\":\""
+    ).getBytes(Charset.forName("UTF-8"));
+
+    /**
+     * Deflate primed with {@link #TD_COLUMN_DICTIONARY}. The dictionary is identified by
+     * its Adler-32 checksum in the zlib header, and the endpoint needs to know the same
+     * dictionary to inflate the body.
+     */
+    TDCompressionCodec DEFLATE_WITH_TD_DICTIONARY = new Deflate(TD_COLUMN_DICTIONARY);
+
+    class Deflate implements TDCompressionCodec {
+        private static final int BUFFER_SIZE = 8192;
+        private static final int MAX_POOLED_DEFLATERS = 4;
+        private final ConcurrentLinkedQueue<Deflater> pool = new ConcurrentLinkedQueue<Deflater>();
+        private final byte[] dictionary;
+        private final boolean nowrap;
+
+        Deflate(byte[] dictionary) {
+            this(dictionary, false);
+        }
+
+        Deflate(byte[] dictionary, boolean nowrap) {
+            this.dictionary = dictionary;
+            this.nowrap = nowrap;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return "deflate";
+        }
+
+        @Override
+        public void compress(OutputSource body, OutputStream out) throws IOException {
+            Deflater deflater = acquire();
+            try {
+                DeflaterOutputStream compressedOutputStream = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                body.writeTo(compressedOutputStream);
+                compressedOutputStream.finish();
+            }
+            finally {
+                release(deflater);
+            }
+        }
+
+        private Deflater acquire() {
+            Deflater deflater = pool.poll();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, nowrap);
+            }
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            return deflater;
+        }
+
+        private void release(Deflater deflater) {
+            // The size check is racy, but a few more pooled instances are harmless
+            if (pool.size() < MAX_POOLED_DEFLATERS) {
+                deflater.reset();
+                pool.offer(deflater);
+            }
+            else {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * GZIP format written by hand, as GZIPOutputStream can't reuse a pooled Deflater.
+     */
+    class Gzip implements TDCompressionCodec {
+        private static final byte[] HEADER = {
+                0x1f, (byte) 0x8b,  // Magic number
+                Deflater.DEFLATED,  // Compression method
+                0,                  // Flags
+                0, 0, 0, 0,         // Modification time
+                0,                  // Extra flags
+                (byte) 0xff         // Operating system: unknown
+        };
+        private final Deflate rawDeflate = new Deflate(null, true);
+
+        @Override
+        public String getContentEncoding() {
+            return "gzip";
+        }
+
+        @Override
+        public void compress(final OutputSource body, OutputStream out) throws IOException {
+            out.write(HEADER);
+            final CRC32 crc32 = new CRC32();
+            final long[] size = new long[1];
+            rawDeflate.compress(new OutputSource() {
+                @Override
+                public void writeTo(OutputStream compressedOutputStream) throws IOException {
+                    CountingOutputStream countingOutputStream =
+                            new CountingOutputStream(new CheckedOutputStream(compressedOutputStream, crc32));
+                    body.writeTo(countingOutputStream);
+                    size[0] = countingOutputStream.count;
+                }
+            }, out);
+            writeIntLE(out, (int) crc32.getValue());
+            writeIntLE(out, (int) size[0]);
+        }
+
+        private static void writeIntLE(OutputStream out, int value) throws IOException {
+            out.write(value & 0xff);
+            out.write((value >> 8) & 0xff);
+            out.write((value >> 16) & 0xff);
+            out.write((value >> 24) & 0xff);
+        }
+
+        private static class CountingOutputStream extends OutputStream {
+            private final OutputStream out;
+            private long count;
+
+            CountingOutputStream(OutputStream out) {
+                this.out = out;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                count++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                count += len;
+            }
+        }
+    }
+}
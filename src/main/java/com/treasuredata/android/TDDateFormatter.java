@@ -0,0 +1,113 @@
+package com.treasuredata.android;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats dates as "yyyy-MM-dd'T'HH:mm:ss.SSSZ" in the default time zone without any lock.
+ *
+ * Each thread caches the formatted text up to the second and the zone offset,
+ * so that formatting dates in the same second only rewrites the milliseconds.
+ */
+class TDDateFormatter {
+    private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+    // "yyyy-MM-ddTHH:mm:ss." is 20 chars, "SSS" is 3 chars and "+hhmm" is 5 chars
+    private static final int MILLIS_POS = 20;
+    private static final int LENGTH = 28;
+
+    private static final ThreadLocal<TDDateFormatter> FORMATTERS = new ThreadLocal<TDDateFormatter>() {
+        @Override
+        protected TDDateFormatter initialValue() {
+            return new TDDateFormatter(TimeZone.getDefault());
+        }
+    };
+
+    private final TimeZone timeZone;
+    private final Calendar calendar;
+    private final char[] buf = new char[LENGTH];
+    private long cachedSecond = Long.MIN_VALUE;
+    private SimpleDateFormat fallbackFormat;
+
+    TDDateFormatter(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        this.calendar = new GregorianCalendar(timeZone, Locale.US);
+    }
+
+    static String formatDate(Date date) {
+        return FORMATTERS.get().format(date);
+    }
+
+    String format(Date date) {
+        long millis = date.getTime();
+        long second = millis / 1000;
+        int millisOfSecond = (int) (millis % 1000);
+        if (millisOfSecond < 0) {
+            second--;
+            millisOfSecond += 1000;
+        }
+
+        if (second != cachedSecond) {
+            calendar.setTimeInMillis(second * 1000);
+            int year = calendar.get(Calendar.YEAR);
+            if (calendar.get(Calendar.ERA) != GregorianCalendar.AD || year > 9999) {
+                // Out of the fixed width format. Rare enough to just delegate
+                return formatWithFallback(date);
+            }
+            fillPrefix(year);
+            cachedSecond = second;
+        }
+
+        buf[MILLIS_POS] = (char) ('0' + millisOfSecond / 100);
+        buf[MILLIS_POS + 1] = (char) ('0' + millisOfSecond / 10 % 10);
+        buf[MILLIS_POS + 2] = (char) ('0' + millisOfSecond % 10);
+        return new String(buf);
+    }
+
+    private void fillPrefix(int year) {
+        put4(0, year);
+        buf[4] = '-';
+        put2(5, calendar.get(Calendar.MONTH) + 1);
+        buf[7] = '-';
+        put2(8, calendar.get(Calendar.DAY_OF_MONTH));
+        buf[10] = 'T';
+        put2(11, calendar.get(Calendar.HOUR_OF_DAY));
+        buf[13] = ':';
+        put2(14, calendar.get(Calendar.MINUTE));
+        buf[16] = ':';
+        put2(17, calendar.get(Calendar.SECOND));
+        buf[19] = '.';
+
+        int offsetMinutes = (calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / 60000;
+        if (offsetMinutes < 0) {
+            buf[23] = '-';
+            offsetMinutes = -offsetMinutes;
+        }
+        else {
+            buf[23] = '+';
+        }
+        put2(24, offsetMinutes / 60);
+        put2(26, offsetMinutes % 60);
+    }
+
+    private void put2(int pos, int value) {
+        buf[pos] = (char) ('0' + value / 10);
+        buf[pos + 1] = (char) ('0' + value % 10);
+    }
+
+    private void put4(int pos, int value) {
+        put2(pos, value / 100);
+        put2(pos + 2, value % 100);
+    }
+
+    private String formatWithFallback(Date date) {
+        if (fallbackFormat == null) {
+            fallbackFormat = new SimpleDateFormat(PATTERN, Locale.US);
+            fallbackFormat.setTimeZone(timeZone);
+        }
+        return fallbackFormat.format(date);
+    }
+}
@@ -0,0 +1,66 @@
+package com.treasuredata.android;
+
+import android.content.Context;
+
+import java.util.UUID;
+
+/**
+ * UUID of the device, which is generated on the first use and kept in {@link TDSettings}.
+ *
+ * The current UUID is held in memory, so reading it doesn't take a lock. Generating and resetting it
+ * replace the value and write it to the storage at once under a lock, so that the value in memory and
+ * the last one written are always the same, and events stored with a new UUID don't outlive it.
+ */
+class TDDeviceId {
+    static final String KEY_UUID = "uuid";
+    private static TDDeviceId instance;
+
+    private final TDSettings settings;
+    private volatile String uuid;
+
+    /**
+     * @return the UUID shared in the process
+     */
+    static synchronized TDDeviceId getInstance(Context context) {
+        if (instance == null) {
+            instance = new TDDeviceId(TDSettings.getInstance(context));
+        }
+        return instance;
+    }
+
+    TDDeviceId(TDSettings settings) {
+        this.settings = settings;
+        this.uuid = settings.getString(KEY_UUID, null);
+    }
+
+    String get() {
+        String current = uuid;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (uuid == null) {
+                replace(UUID.randomUUID().toString());
+            }
+            return uuid;
+        }
+    }
+
+    /**
+     * Replaces the UUID with a new one.
+     *
+     * @return the UUID before the reset
+     */
+    synchronized String reset() {
+        String previous = get();
+        replace(UUID.randomUUID().toString());
+        return previous;
+    }
+
+    // Guarded by this
+    private void replace(String newUuid) {
+        uuid = newUuid;
+        settings.putString(KEY_UUID, newUuid);
+        settings.flush();
+    }
+}
@@ -0,0 +1,319 @@
+package com.treasuredata.android;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Event record with typed columns, an alternative to {@code Map<String, Object>} for
+ * {@link TreasureData#addEvent(String, String, TDEvent)}.
+ *
+ * Values are kept in arrays without boxing and serialized directly, so adding events
+ * doesn't allocate wrapper objects or hash column names. Build it with {@link Builder}:
+ * <pre>
+ *     TDEvent event = new TDEvent.Builder()
+ *             .putString("name", "komamitsu")
+ *             .putLong("age", 42)
+ *             .build();
+ * </pre>
+ * A TDEvent is immutable and can be added any number of times.
+ */
+public final class TDEvent {
+    private static final byte TYPE_LONG = 0;
+    private static final byte TYPE_DOUBLE = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final int DEFAULT_CAPACITY = 8;
+    private static final String KEEN_PROPERTIES = "keen";
+    private static final String KEEN_TIMESTAMP = "timestamp";
+    static final String EVENT_UUID = "#UUID";
+
+    private String[] names;
+    private byte[] types;
+    // Longs, doubles as raw long bits, and booleans as 0 or 1
+    private long[] primitives;
+    private String[] strings;
+    private int size;
+    // Set when the event is stored, like Keen adds them to Map events
+    private String timestamp;
+    private String uuid;
+
+    public static final class Builder {
+        private TDEvent event;
+
+        public Builder() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        /**
+         * @param expectedColumns the number of columns to allocate at first
+         */
+        public Builder(int expectedColumns) {
+            event = new TDEvent(Math.max(1, expectedColumns));
+        }
+
+        public Builder putLong(String name, long value) {
+            getEvent().putPrimitive(name, TYPE_LONG, value);
+            return this;
+        }
+
+        public Builder putDouble(String name, double value) {
+            getEvent().putPrimitive(name, TYPE_DOUBLE, Double.doubleToRawLongBits(value));
+            return this;
+        }
+
+        public Builder putBoolean(String name, boolean value) {
+            getEvent().putPrimitive(name, TYPE_BOOLEAN, value ? 1 : 0);
+            return this;
+        }
+
+        /**
+         * Puts a string column. A null value removes the column, as null values of Map events aren't stored.
+         */
+        public Builder putString(String name, String value) {
+            getEvent().putString(name, value);
+            return this;
+        }
+
+        /**
+         * Returns the event built so far. The builder can be used again for another event.
+         */
+        public TDEvent build() {
+            TDEvent built = getEvent();
+            event = null;
+            return built;
+        }
+
+        private TDEvent getEvent() {
+            if (event == null) {
+                event = new TDEvent(DEFAULT_CAPACITY);
+            }
+            return event;
+        }
+    }
+
+    private TDEvent(int capacity) {
+        names = new String[capacity];
+        types = new byte[capacity];
+        primitives = new long[capacity];
+        strings = new String[capacity];
+    }
+
+    /**
+     * Copies the event with room for additional columns, which are added with {@link #put(String, Object)}.
+     */
+    TDEvent copy(int additionalColumns) {
+        TDEvent copied = new TDEvent(size + Math.max(1, additionalColumns));
+        System.arraycopy(names, 0, copied.names, 0, size);
+        System.arraycopy(types, 0, copied.types, 0, size);
+        System.arraycopy(primitives, 0, copied.primitives, 0, size);
+        System.arraycopy(strings, 0, copied.strings, 0, size);
+        copied.size = size;
+        return copied;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    String getName(int index) {
+        return names[index];
+    }
+
+    boolean containsName(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * Puts a column appended by the SDK. Values are converted as {@link CustomizedJSON} writes them.
+     */
+    void put(String name, Object value) {
+        if (value == null) {
+            putString(name, null);
+        }
+        else if (value instanceof String) {
+            putString(name, (String) value);
+        }
+        else if (value instanceof Boolean) {
+            putPrimitive(name, TYPE_BOOLEAN, (Boolean) value ? 1 : 0);
+        }
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            putPrimitive(name, TYPE_LONG, ((Number) value).longValue());
+        }
+        else if (value instanceof Number) {
+            putPrimitive(name, TYPE_DOUBLE, Double.doubleToRawLongBits(((Number) value).doubleValue()));
+        }
+        else if (value instanceof Date) {
+            putString(name, TDDateFormatter.formatDate((Date) value));
+        }
+        else {
+            putString(name, value.toString());
+        }
+    }
+
+    void setKeenProperties(String timestamp, String uuid) {
+        this.timestamp = timestamp;
+        this.uuid = uuid;
+    }
+
+    private void putPrimitive(String name, byte type, long value) {
+        int index = prepare(name);
+        types[index] = type;
+        primitives[index] = value;
+        strings[index] = null;
+    }
+
+    private void putString(String name, String value) {
+        if (value == null) {
+            remove(name);
+            return;
+        }
+        int index = prepare(name);
+        types[index] = TYPE_STRING;
+        strings[index] = value;
+    }
+
+    private int prepare(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name is null");
+        }
+        int index = indexOf(name);
+        if (index >= 0) {
+            return index;
+        }
+        if (size == names.length) {
+            int capacity = size * 2;
+            names = Arrays.copyOf(names, capacity);
+            types = Arrays.copyOf(types, capacity);
+            primitives = Arrays.copyOf(primitives, capacity);
+            strings = Arrays.copyOf(strings, capacity);
+        }
+        names[size] = name;
+        return size++;
+    }
+
+    private void remove(String name) {
+        int index = indexOf(name);
+        if (index < 0) {
+            return;
+        }
+        size--;
+        // Move the last column here since the order doesn't matter
+        names[index] = names[size];
+        types[index] = types[size];
+        primitives[index] = primitives[size];
+        strings[index] = strings[size];
+        names[size] = null;
+        strings[size] = null;
+    }
+
+    /**
+     * @return a hash of the columns, regardless of their order
+     */
+    int contentHash() {
+        int hash = 0;
+        for (int i = 0; i < size; i++) {
+            long value = primitives[i];
+            int valueHash = types[i] == TYPE_STRING ? strings[i].hashCode() : (int) (value ^ (value >>> 32));
+            hash += (names[i].hashCode() * 31 + types[i]) ^ valueHash;
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if the other event has the same columns, regardless of their order
+     */
+    boolean contentEquals(TDEvent other) {
+        if (other.size != size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            int j = other.indexOf(names[i]);
+            if (j < 0 || other.types[j] != types[i]) {
+                return false;
+            }
+            if (types[i] == TYPE_STRING ? !strings[i].equals(other.strings[j]) : primitives[i] != other.primitives[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(String name) {
+        // Events have a few dozen columns at most, where a linear search is cheaper than hashing
+        for (int i = 0; i < size; i++) {
+            String n = names[i];
+            if (n == name || n.equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    void writeJson(JsonGenerator generator) throws IOException {
+        generator.writeStartObject();
+        for (int i = 0; i < size; i++) {
+            generator.writeFieldName(names[i]);
+            long value = primitives[i];
+            switch (types[i]) {
+                case TYPE_LONG:
+                    generator.writeNumber(value);
+                    break;
+                case TYPE_DOUBLE:
+                    // Non-finite values are quoted like Map events
+                    generator.writeNumber(Double.longBitsToDouble(value));
+                    break;
+                case TYPE_BOOLEAN:
+                    generator.writeBoolean(value != 0);
+                    break;
+                default:
+                    generator.writeString(strings[i]);
+                    break;
+            }
+        }
+        if (timestamp != null) {
+            generator.writeObjectFieldStart(KEEN_PROPERTIES);
+            generator.writeStringField(KEEN_TIMESTAMP, timestamp);
+            generator.writeEndObject();
+        }
+        if (uuid != null) {
+            generator.writeStringField(EVENT_UUID, uuid);
+        }
+        generator.writeEndObject();
+    }
+
+    void writeMessagePack(OutputStream out) throws IOException {
+        TDMessagePack.writeMapHeader(out, size + (timestamp != null ? 1 : 0) + (uuid != null ? 1 : 0));
+        for (int i = 0; i < size; i++) {
+            TDMessagePack.writeString(out, names[i]);
+            long value = primitives[i];
+            switch (types[i]) {
+                case TYPE_LONG:
+                    TDMessagePack.writeLong(out, value);
+                    break;
+                case TYPE_DOUBLE:
+                    TDMessagePack.writeDouble(out, Double.longBitsToDouble(value));
+                    break;
+                case TYPE_BOOLEAN:
+                    TDMessagePack.writeBoolean(out, value != 0);
+                    break;
+                default:
+                    TDMessagePack.writeString(out, strings[i]);
+                    break;
+            }
+        }
+        if (timestamp != null) {
+            TDMessagePack.writeString(out, KEEN_PROPERTIES);
+            TDMessagePack.writeMapHeader(out, 1);
+            TDMessagePack.writeString(out, KEEN_TIMESTAMP);
+            TDMessagePack.writeString(out, timestamp);
+        }
+        if (uuid != null) {
+            TDMessagePack.writeString(out, EVENT_UUID);
+            TDMessagePack.writeString(out, uuid);
+        }
+    }
+}
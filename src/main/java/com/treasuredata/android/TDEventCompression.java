@@ -0,0 +1,25 @@
+package com.treasuredata.android;
+
+/**
+ * Compression of uploaded events, see {@link TreasureData#setEventCompression(TDEventCompression)}
+ */
+public enum TDEventCompression {
+    NONE(TDCompressionCodec.IDENTITY),
+    DEFLATE(TDCompressionCodec.DEFLATE),
+    GZIP(TDCompressionCodec.GZIP),
+    /**
+     * Deflate primed with a preset dictionary of the column names this SDK appends to events.
+     * Use this only with an endpoint that supports the dictionary.
+     */
+    DEFLATE_WITH_TD_DICTIONARY(TDCompressionCodec.DEFLATE_WITH_TD_DICTIONARY);
+
+    private final TDCompressionCodec codec;
+
+    TDEventCompression(TDCompressionCodec codec) {
+        this.codec = codec;
+    }
+
+    TDCompressionCodec getCodec() {
+        return codec;
+    }
+}
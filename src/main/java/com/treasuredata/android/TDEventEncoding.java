@@ -0,0 +1,12 @@
+package com.treasuredata.android;
+
+/**
+ * Encoding of events in the local buffer, see {@link TreasureData#initializeEventEncoding(TDEventEncoding)}
+ */
+public enum TDEventEncoding {
+    JSON,
+    /**
+     * Smaller records than JSON. They're transcoded into JSON on upload unless the binary upload is enabled.
+     */
+    MESSAGE_PACK
+}
@@ -0,0 +1,243 @@
+package com.treasuredata.android;
+
+import org.komamitsu.android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drops events before they're serialized and stored, following rules of each collection.
+ * The rules can be changed at any time.
+ *
+ * <ul>
+ * <li>Rate limit: a token bucket of the collection. Events beyond the rate are dropped</li>
+ * <li>Sampling: only a fraction of devices keep events of the collection. The decision is a hash of
+ * td_uuid and the collection, so a device keeps all or none of them while the rate is the same</li>
+ * <li>Dedup: an event identical to a recent event of the collection within a time window is dropped,
+ * which removes duplicates of bursts like double taps. Recent events are kept as copies, and compared
+ * by their contents after their hashes match</li>
+ * </ul>
+ *
+ * Events of collections without rules only cost a lookup in an immutable map.
+ */
+class TDEventFilter {
+    private static final String TAG = TDEventFilter.class.getSimpleName();
+    private static final int DEDUP_HISTORY_SIZE = 16;
+
+    static final class Rule {
+        static final Rule NONE = new Rule(0, 0, 1.0, 0);
+
+        // 0 for no rate limit
+        final double eventsPerSecond;
+        final int burst;
+        // 1.0 keeps all the events
+        final double samplingRate;
+        // 0 for no dedup
+        final long dedupWindowMillis;
+
+        Rule(double eventsPerSecond, int burst, double samplingRate, long dedupWindowMillis) {
+            this.eventsPerSecond = eventsPerSecond;
+            this.burst = burst;
+            this.samplingRate = samplingRate;
+            this.dedupWindowMillis = dedupWindowMillis;
+        }
+
+        boolean isEmpty() {
+            return eventsPerSecond == 0 && samplingRate >= 1.0 && dedupWindowMillis == 0;
+        }
+    }
+
+    private static final class CollectionState {
+        // The followings are guarded by this
+        private double tokens;
+        private long refilledAt;
+        private final int[] recentHashes = new int[DEDUP_HISTORY_SIZE];
+        private final Object[] recentRecords = new Object[DEDUP_HISTORY_SIZE];
+        private final long[] recentTimes = new long[DEDUP_HISTORY_SIZE];
+        private int recentCount;
+        private int nextRecent;
+
+        CollectionState(int burst, long now) {
+            this.tokens = burst;
+            this.refilledAt = now;
+        }
+
+        synchronized boolean tryAcquire(double eventsPerSecond, int burst, long now) {
+            // A thread may come with an earlier time than the last one
+            if (now > refilledAt) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * eventsPerSecond / TimeUnit.SECONDS.toNanos(1));
+                refilledAt = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isDuplicate(Object record, long windowNanos, long now) {
+            int hash = hashOf(record);
+            for (int i = 0; i < recentCount; i++) {
+                if (recentHashes[i] == hash && now - recentTimes[i] <= windowNanos && contentEquals(recentRecords[i], record)) {
+                    // The time isn't updated, so that one of continuously repeated events is kept per window
+                    return true;
+                }
+            }
+            recentHashes[nextRecent] = hash;
+            // Copied since the caller may change the record later
+            recentRecords[nextRecent] = copyOf(record);
+            recentTimes[nextRecent] = now;
+            nextRecent = (nextRecent + 1) % DEDUP_HISTORY_SIZE;
+            recentCount = Math.min(recentCount + 1, DEDUP_HISTORY_SIZE);
+            return false;
+        }
+    }
+
+    // Replaced as a whole when a rule changes
+    private volatile Map<String, Rule> rules = Collections.emptyMap();
+    private final ConcurrentMap<String, CollectionState> states = new ConcurrentHashMap<String, CollectionState>();
+
+    /**
+     * @param eventsPerSecond the rate events are allowed on average
+     * @param burst the number of events allowed at once
+     */
+    synchronized void setRateLimit(String collection, double eventsPerSecond, int burst) {
+        if (!(eventsPerSecond > 0) || burst < 1) {
+            throw new IllegalArgumentException(String.format("Invalid rate limit: eventsPerSecond=%f, burst=%d", eventsPerSecond, burst));
+        }
+        Rule rule = getRule(collection);
+        putRule(collection, new Rule(eventsPerSecond, burst, rule.samplingRate, rule.dedupWindowMillis));
+    }
+
+    /**
+     * @param samplingRate the fraction of devices keeping events, from 0.0 to 1.0
+     */
+    synchronized void setSamplingRate(String collection, double samplingRate) {
+        if (!(samplingRate >= 0 && samplingRate <= 1.0)) {
+            throw new IllegalArgumentException("samplingRate must be from 0.0 to 1.0: " + samplingRate);
+        }
+        Rule rule = getRule(collection);
+        putRule(collection, new Rule(rule.eventsPerSecond, rule.burst, samplingRate, rule.dedupWindowMillis));
+    }
+
+    /**
+     * @param windowMillis 0 not to drop duplicated events
+     */
+    synchronized void setDedupWindow(String collection, long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("windowMillis must not be negative: " + windowMillis);
+        }
+        Rule rule = getRule(collection);
+        putRule(collection, new Rule(rule.eventsPerSecond, rule.burst, rule.samplingRate, windowMillis));
+    }
+
+    synchronized void clear(String collection) {
+        putRule(collection, Rule.NONE);
+    }
+
+    Rule getRule(String collection) {
+        Rule rule = rules.get(collection);
+        return rule == null ? Rule.NONE : rule;
+    }
+
+    private void putRule(String collection, Rule rule) {
+        Map<String, Rule> newRules = new HashMap<String, Rule>(rules);
+        if (rule.isEmpty()) {
+            newRules.remove(collection);
+        }
+        else {
+            newRules.put(collection, rule);
+        }
+        // The token bucket and the recent events start over with the new rule
+        states.remove(collection);
+        rules = newRules;
+    }
+
+    /**
+     * @param uuid td_uuid of the device, or null not to sample
+     * @param record the event, a Map or a {@link TDEvent}, whose contents are compared for dedup
+     * @return false if the event should be dropped
+     */
+    boolean accept(String collection, String uuid, Object record) {
+        Rule rule = rules.get(collection);
+        if (rule == null) {
+            return true;
+        }
+
+        if (rule.samplingRate < 1.0 && uuid != null && !isSampled(uuid, collection, rule.samplingRate)) {
+            return false;
+        }
+
+        if (rule.dedupWindowMillis == 0 && rule.eventsPerSecond == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        CollectionState state = states.get(collection);
+        if (state == null) {
+            state = new CollectionState(rule.burst, now);
+            CollectionState existing = states.putIfAbsent(collection, state);
+            if (existing != null) {
+                state = existing;
+            }
+        }
+
+        if (rule.dedupWindowMillis > 0 && state.isDuplicate(record, TimeUnit.MILLISECONDS.toNanos(rule.dedupWindowMillis), now)) {
+            if (TDLogging.isEnabled()) {
+                Log.d(TAG, "Dropped a duplicated event: collection=" + collection);
+            }
+            return false;
+        }
+
+        if (rule.eventsPerSecond > 0 && !state.tryAcquire(rule.eventsPerSecond, rule.burst, now)) {
+            if (TDLogging.isEnabled()) {
+                Log.d(TAG, "Dropped an event beyond the rate limit: collection=" + collection);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static int hashOf(Object record) {
+        return record instanceof TDEvent ? ((TDEvent) record).contentHash() : record.hashCode();
+    }
+
+    private static boolean contentEquals(Object recentRecord, Object record) {
+        if (recentRecord instanceof TDEvent) {
+            return record instanceof TDEvent && ((TDEvent) recentRecord).contentEquals((TDEvent) record);
+        }
+        return recentRecord.equals(record);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyOf(Object record) {
+        if (record instanceof TDEvent) {
+            return ((TDEvent) record).copy(0);
+        }
+        return new HashMap<String, Object>((Map<String, Object>) record);
+    }
+
+    /**
+     * Maps td_uuid and the collection to [0.0, 1.0) uniformly, and compares it with the rate.
+     */
+    static boolean isSampled(String uuid, String collection, double samplingRate) {
+        // FNV-1a, followed by the finalizer of MurmurHash3 to spread the bits
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < uuid.length(); i++) {
+            hash = (hash ^ uuid.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ '/') * 0x100000001b3L;
+        for (int i = 0; i < collection.length(); i++) {
+            hash = (hash ^ collection.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash >>> 11) * 0x1.0p-53 < samplingRate;
+    }
+}
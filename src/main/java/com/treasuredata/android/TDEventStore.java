@@ -1,12 +1,879 @@
 package com.treasuredata.android;
 
 import io.keen.client.java.FileEventStore;
+import io.keen.client.java.KeenEventStore;
+import org.komamitsu.android.util.Log;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Event store backed by an append-only segmented log (see {@link TDSegmentLog}).
+ *
+ * Storing an event is a single sequential append instead of creating a file per event.
+ * Removing an event appends a small removal record, and a segment file is deleted
+ * once all the events in it and in the older segments have been removed. When events left
+ * in old segments, e.g. ones with higher priority, keep the log beyond the quota,
+ * the log is compacted by moving them to the active segment, so that the old segments can be deleted.
+ *
+ * The log is a write-ahead journal with group commit. Stored events survive the process being killed
+ * as soon as they're appended, and they're forced to the storage together on a short timer, so that
+ * a crash of the OS loses at most the events of the interval. Recovery truncates a torn tail.
+ *
+ * Events queued by older versions of this SDK in Keen's {@link FileEventStore} are still
+ * returned and removed through this store until they're drained.
+ *
+ * Failed upload attempts of each event are recorded in the log as well. Events that keep failing
+ * are moved to a small separate log, the quarantine, so that they don't block the other events.
+ *
+ * The bytes and the number of queued events are bounded by a quota. Usage is counted as events are
+ * stored and removed, and when an event would exceed the quota, queued events are evicted following
+ * {@link TDEvictionPolicy}. The segment files are bounded by the same bytes, compacting the log when
+ * removed events and records of them exceed it. Events in the legacy store aren't counted.
+ *
+ * Each collection has a priority, and collections with higher priority are returned first,
+ * so that they're uploaded before the others. Collections with the same priority are returned
+ * in the order they were first queued.
+ */
+class TDEventStore implements KeenEventStore {
+    private static final String TAG = TDEventStore.class.getSimpleName();
+    private static final String LOG_DIR_NAME = "td_event_log";
+    private static final String QUARANTINE_DIR_NAME = "td_event_quarantine";
+    private static final int QUARANTINE_SEGMENT_BYTES = 64 * 1024;
+    // Older quarantined events are deleted beyond this
+    private static final int MAX_QUARANTINE_SEGMENTS = 4;
+    private static final byte RECORD_TYPE_EVENT = 1;
+    private static final byte RECORD_TYPE_REMOVAL = 2;
+    private static final byte RECORD_TYPE_ATTEMPTS = 3;
+    // The record of the latest attempts of an event is counted as a part of the event
+    private static final int ATTEMPTS_RECORD_SIZE = TDSegmentLog.RECORD_HEADER_SIZE + 17;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final EventCodec DEFAULT_EVENT_CODEC = new EventCodec() {
+        @Override
+        public byte[] encodeEvent(String event) {
+            return event.getBytes(UTF8);
+        }
+
+        @Override
+        public String decodeEvent(ByteBuffer event) {
+            return UTF8.decode(event).toString();
+        }
+    };
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    static final int DEFAULT_MAX_EVENTS = 100000;
+    static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+
+    static class EventHandle {
+        // The position changes when the event is moved by compaction. Guarded by the store
+        long segmentId;
+        int offset;
+        final String projectId;
+        final String collection;
+        final long createdAt;
+        // The size of the record in the log
+        final int size;
+        // The number of failed upload attempts. Guarded by the store
+        int attempts;
+
+        EventHandle(long segmentId, int offset, String projectId, String collection, long createdAt, int size) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.projectId = projectId;
+            this.collection = collection;
+            this.createdAt = createdAt;
+            this.size = size;
+        }
+
+        long position() {
+            return position(segmentId, offset);
+        }
+
+        static long position(long segmentId, int offset) {
+            return (segmentId << 32) | (offset & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Converts events passed as text by {@link KeenEventStore} to the bytes in the log, and back.
+     */
+    interface EventCodec {
+        byte[] encodeEvent(String event);
+
+        String decodeEvent(ByteBuffer event);
+    }
+
+    interface StoreListener {
+        /**
+         * Called after an event is stored, outside the lock of the store.
+         */
+        void onStored(int bytes);
+    }
+
+    interface EvictionListener {
+        /**
+         * Called after events of the collection are evicted to keep the quota, outside the lock of the store.
+         */
+        void onEvicted(String collection, int count);
+    }
+
+    private final TDSegmentLog log;
+    // projectId -> collection -> handles in the appended order
+    private final Map<String, Map<String, LinkedHashSet<EventHandle>>> handles = new HashMap<String, Map<String, LinkedHashSet<EventHandle>>>();
+    // segmentId -> number of events not removed yet
+    private final TreeMap<Long, Integer> liveEventCounts = new TreeMap<Long, Integer>();
+    // All the queued events by EventHandle.position(), that is, from the oldest one
+    private final TreeMap<Long, EventHandle> eventsByPosition = new TreeMap<Long, EventHandle>();
+    // collection -> priority. Collections not here have 0
+    private final Map<String, Integer> collectionPriorities = new HashMap<String, Integer>();
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int maxEvents = DEFAULT_MAX_EVENTS;
+    private TDEvictionPolicy evictionPolicy = TDEvictionPolicy.DROP_OLDEST;
+    private long liveBytes;
+    // The last event kept or evicted by TDEvictionPolicy.SAMPLE, or -1
+    private long samplingCursor = -1;
+    // collection -> number of evicted events not notified yet
+    private Map<String, Integer> pendingEvictions;
+    private volatile boolean hasPendingEvictions;
+    private volatile EvictionListener evictionListener;
+    private final Set<String> drainedLegacyProjectIds = new HashSet<String>();
+    private final KeenEventStore legacyStore;
+    private final TDSegmentLog quarantineLog;
+    // Positions of quarantined events, see EventHandle.position()
+    private final List<Long> quarantinedEvents = new ArrayList<Long>();
+    private volatile StoreListener storeListener;
+    private volatile EventCodec eventCodec = DEFAULT_EVENT_CODEC;
+    private volatile long syncIntervalMillis = DEFAULT_SYNC_INTERVAL_MILLIS;
+    private final AtomicBoolean syncScheduled = new AtomicBoolean();
+    private final Runnable syncTask = new Runnable() {
+        @Override
+        public void run() {
+            syncScheduled.set(false);
+            try {
+                log.sync();
+            }
+            catch (IOException e) {
+                Log.w(TAG, "Failed to sync the event log", e);
+            }
+        }
+    };
 
-class TDEventStore extends FileEventStore {
     public TDEventStore(File root) throws IOException {
-        super(root);
+        this(new TDSegmentLog(new File(root, LOG_DIR_NAME)), new FileEventStore(root),
+                new TDSegmentLog(new File(root, QUARANTINE_DIR_NAME), QUARANTINE_SEGMENT_BYTES));
+    }
+
+    /**
+     * @param quarantineLog null to discard quarantined events
+     */
+    TDEventStore(TDSegmentLog log, KeenEventStore legacyStore, TDSegmentLog quarantineLog) throws IOException {
+        this.log = log;
+        this.legacyStore = legacyStore;
+        this.quarantineLog = quarantineLog;
+        recover();
+    }
+
+    private void recover() throws IOException {
+        log.replay(new TDSegmentLog.RecordVisitor() {
+            @Override
+            public void onRecord(long segmentId, int offset, byte[] payload) throws IOException {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = in.readByte();
+                if (type == RECORD_TYPE_EVENT) {
+                    long createdAt = in.readLong();
+                    String projectId = in.readUTF();
+                    String collection = in.readUTF();
+                    EventHandle handle = new EventHandle(segmentId, offset, projectId, collection, createdAt,
+                            TDSegmentLog.RECORD_HEADER_SIZE + payload.length);
+                    addHandle(handle);
+                }
+                else if (type == RECORD_TYPE_REMOVAL) {
+                    EventHandle handle = eventsByPosition.get(EventHandle.position(in.readLong(), in.readInt()));
+                    if (handle != null) {
+                        removeHandle(handle);
+                    }
+                }
+                else if (type == RECORD_TYPE_ATTEMPTS) {
+                    EventHandle handle = eventsByPosition.get(EventHandle.position(in.readLong(), in.readInt()));
+                    if (handle != null) {
+                        setAttempts(handle, in.readInt());
+                    }
+                }
+                else {
+                    Log.w(TAG, "Unknown record type: " + type);
+                }
+            }
+        });
+        deleteUnusedSegments();
+
+        if (quarantineLog != null) {
+            quarantineLog.replay(new TDSegmentLog.RecordVisitor() {
+                @Override
+                public void onRecord(long segmentId, int offset, byte[] payload) {
+                    quarantinedEvents.add(EventHandle.position(segmentId, offset));
+                }
+            });
+        }
+    }
+
+    /**
+     * @param eventCodec null to store events as UTF-8
+     */
+    void setEventCodec(EventCodec eventCodec) {
+        this.eventCodec = eventCodec == null ? DEFAULT_EVENT_CODEC : eventCodec;
+    }
+
+    void setStoreListener(StoreListener storeListener) {
+        this.storeListener = storeListener;
+    }
+
+    void setEvictionListener(EvictionListener evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * @param syncIntervalMillis the max milliseconds stored events wait to be forced to the storage.
+     * 0 to force each event, and -1 not to force them, so they survive the process being killed but not a crash of the OS
+     */
+    void setSyncInterval(long syncIntervalMillis) {
+        if (syncIntervalMillis < -1) {
+            throw new IllegalArgumentException("Invalid syncIntervalMillis: " + syncIntervalMillis);
+        }
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Forces stored events to the storage.
+     */
+    void sync() throws IOException {
+        log.sync();
+    }
+
+    /**
+     * Sets the quota of queued events. Events beyond the new quota are evicted at once.
+     *
+     * @param maxBytes the max bytes of queued events in the log, which bounds the segment files as well
+     * @param maxEvents the max number of queued events
+     */
+    void setQuota(long maxBytes, int maxEvents, TDEvictionPolicy evictionPolicy) throws IOException {
+        if (maxBytes < 1 || maxEvents < 1 || evictionPolicy == null) {
+            throw new IllegalArgumentException(String.format("Invalid quota: maxBytes=%d, maxEvents=%d, evictionPolicy=%s",
+                    maxBytes, maxEvents, evictionPolicy));
+        }
+        synchronized (this) {
+            this.maxBytes = maxBytes;
+            this.maxEvents = maxEvents;
+            this.evictionPolicy = evictionPolicy;
+            evict(0, null);
+            compact(0);
+        }
+        notifyEvictions();
+    }
+
+    /**
+     * Sets the priority of the collection. Collections with higher priority are returned first by {@link #getHandles(String, int)}
+     * and {@link #getCollections(String)}, and evicted last by {@link TDEvictionPolicy#DROP_LOWEST_PRIORITY}. The default is 0.
+     */
+    synchronized void setCollectionPriority(String collection, int priority) {
+        if (priority == 0) {
+            collectionPriorities.remove(collection);
+        }
+        else {
+            collectionPriorities.put(collection, priority);
+        }
+    }
+
+    synchronized int getCollectionPriority(String collection) {
+        Integer priority = collectionPriorities.get(collection);
+        return priority == null ? 0 : priority;
+    }
+
+    /**
+     * @return the bytes of queued events and their attempts records in the log, excluding the legacy store
+     */
+    synchronized long getQueuedBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * @return the bytes of the segment files, including removed events not deleted yet
+     */
+    synchronized long getLogBytes() {
+        return log.getTotalBytes();
+    }
+
+    /**
+     * @return the number of queued events, excluding the legacy store
+     */
+    synchronized int getQueuedEvents() {
+        return eventsByPosition.size();
+    }
+
+    @Override
+    public Object store(String projectId, String eventCollection, String event) throws IOException {
+        return store(projectId, eventCollection, eventCodec.encodeEvent(event));
+    }
+
+    /**
+     * Stores an event as is, e.g. a record of {@link TDJsonHandler#toRecord(TDEvent)}.
+     */
+    Object store(String projectId, String eventCollection, byte[] encodedEvent) throws IOException {
+        Object handle;
+        try {
+            handle = append(projectId, eventCollection, encodedEvent);
+        }
+        finally {
+            notifyEvictions();
+        }
+        commit();
+        StoreListener listener = storeListener;
+        if (listener != null) {
+            listener.onStored(encodedEvent.length);
+        }
+        return handle;
+    }
+
+    private synchronized Object append(String projectId, String eventCollection, byte[] encodedEvent) throws IOException {
+        long createdAt = System.currentTimeMillis();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encodedEvent.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_TYPE_EVENT);
+        out.writeLong(createdAt);
+        out.writeUTF(projectId);
+        out.writeUTF(eventCollection);
+        out.write(encodedEvent);
+        out.close();
+
+        byte[] payload = bytes.toByteArray();
+        int size = TDSegmentLog.RECORD_HEADER_SIZE + payload.length;
+        if (size > maxBytes) {
+            throw new IOException(String.format("The event is larger than the quota: %d bytes", size));
+        }
+        if (!evict(size, eventCollection)) {
+            addPendingEviction(eventCollection, 1);
+            throw new IOException("The event store is full of events with higher priority: collection=" + eventCollection);
+        }
+        compact(size);
+
+        int offset = log.append(payload);
+        EventHandle handle = new EventHandle(log.getActiveSegmentId(), offset, projectId, eventCollection, createdAt, size);
+        addHandle(handle);
+        return handle;
+    }
+
+    /**
+     * Evicts queued events until an event of the size fits in the quota.
+     *
+     * @param collection the collection of the event to store, or null
+     * @return false if the event to store should be dropped instead
+     */
+    private boolean evict(int size, String collection) throws IOException {
+        while (!eventsByPosition.isEmpty() && (liveBytes + size > maxBytes || eventsByPosition.size() + (size > 0 ? 1 : 0) > maxEvents)) {
+            EventHandle victim;
+            switch (evictionPolicy) {
+                case DROP_LOWEST_PRIORITY:
+                    victim = findLowestPriorityEvent(collection);
+                    break;
+                case SAMPLE:
+                    victim = findSampledOutEvent();
+                    break;
+                default:
+                    victim = eventsByPosition.firstEntry().getValue();
+                    break;
+            }
+            if (victim == null) {
+                return false;
+            }
+            remove(victim);
+            addPendingEviction(victim.collection, 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest event of the collections with the lowest priority,
+     * or null if the collection of the event to store has lower priority than them
+     */
+    private EventHandle findLowestPriorityEvent(String collection) {
+        EventHandle victim = null;
+        int victimPriority = Integer.MAX_VALUE;
+        for (Map<String, LinkedHashSet<EventHandle>> collections : handles.values()) {
+            for (Map.Entry<String, LinkedHashSet<EventHandle>> entry : collections.entrySet()) {
+                int priority = getCollectionPriority(entry.getKey());
+                EventHandle oldest = entry.getValue().iterator().next();
+                if (victim == null || priority < victimPriority || (priority == victimPriority && oldest.position() < victim.position())) {
+                    victim = oldest;
+                    victimPriority = priority;
+                }
+            }
+        }
+        if (collection != null && getCollectionPriority(collection) < victimPriority) {
+            return null;
+        }
+        return victim;
+    }
+
+    /**
+     * Thins queued events by evicting every other event from the oldest one, and starts over
+     * from the oldest one at the end. The events left are spread over the whole queued period.
+     */
+    private EventHandle findSampledOutEvent() {
+        Map.Entry<Long, EventHandle> kept = samplingCursor < 0 ? null : eventsByPosition.higherEntry(samplingCursor);
+        if (kept == null) {
+            kept = eventsByPosition.firstEntry();
+        }
+        Map.Entry<Long, EventHandle> victim = eventsByPosition.higherEntry(kept.getKey());
+        if (victim == null) {
+            victim = eventsByPosition.firstEntry();
+        }
+        samplingCursor = victim.getKey();
+        return victim.getValue();
+    }
+
+    /**
+     * Moves the live events of the oldest segments to a new active segment and deletes the old segments
+     * until an event of the size fits in the quota with the segment files. After moving all of them,
+     * the segment files are as large as the queued events, which {@link #evict(int, String)} keeps in the quota.
+     *
+     * The moved events are forced to the storage before the old segment is deleted. If the process is killed
+     * in between, those events are recovered twice rather than lost.
+     */
+    private void compact(int size) throws IOException {
+        if (log.getTotalBytes() + size <= maxBytes) {
+            return;
+        }
+        // The active segment can't be deleted, so it's compacted as well
+        log.startSegment();
+        long activeSegmentId = log.getActiveSegmentId();
+        for (long segmentId : log.getSegmentIds()) {
+            if (segmentId == activeSegmentId || log.getTotalBytes() + size <= maxBytes) {
+                break;
+            }
+            moveEvents(segmentId);
+            log.sync();
+            deleteUnusedSegments();
+        }
+    }
+
+    private void moveEvents(long segmentId) throws IOException {
+        // The handles are updated in place, so that ones already returned by getHandles() are still valid
+        // and the order of the events in each collection is kept
+        List<EventHandle> movedHandles = new ArrayList<EventHandle>(
+                eventsByPosition.subMap(EventHandle.position(segmentId, 0), EventHandle.position(segmentId + 1, 0)).values());
+        for (EventHandle handle : movedHandles) {
+            byte[] payload = log.read(handle.segmentId, handle.offset);
+            eventsByPosition.remove(handle.position());
+            decrementLiveEventCount(handle.segmentId);
+            handle.offset = log.append(payload);
+            handle.segmentId = log.getActiveSegmentId();
+            eventsByPosition.put(handle.position(), handle);
+            incrementLiveEventCount(handle.segmentId);
+            if (handle.attempts > 0) {
+                appendAttempts(handle, handle.attempts);
+            }
+        }
+    }
+
+    // Outside the lock, so that events are stored while the log is being forced
+    private void commit() throws IOException {
+        long interval = syncIntervalMillis;
+        if (interval == 0) {
+            log.sync();
+        }
+        else if (interval > 0 && syncScheduled.compareAndSet(false, true)) {
+            // Events stored until the task runs are forced together
+            TDScheduler.timer().schedule(syncTask, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void addPendingEviction(String collection, int count) {
+        if (pendingEvictions == null) {
+            pendingEvictions = new HashMap<String, Integer>();
+        }
+        Integer prevCount = pendingEvictions.get(collection);
+        pendingEvictions.put(collection, prevCount == null ? count : prevCount + count);
+        hasPendingEvictions = true;
+    }
+
+    private void notifyEvictions() {
+        if (!hasPendingEvictions) {
+            return;
+        }
+        Map<String, Integer> evictions;
+        synchronized (this) {
+            evictions = pendingEvictions;
+            pendingEvictions = null;
+            hasPendingEvictions = false;
+        }
+        if (evictions == null) {
+            return;
+        }
+        for (Map.Entry<String, Integer> entry : evictions.entrySet()) {
+            if (TDLogging.isEnabled()) {
+                Log.w(TAG, String.format("Evicted %d events to keep the quota: collection=%s", entry.getValue(), entry.getKey()));
+            }
+            EvictionListener listener = evictionListener;
+            if (listener != null) {
+                listener.onEvicted(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public synchronized String get(Object handle) throws IOException {
+        if (!(handle instanceof EventHandle)) {
+            return legacyStore.get(handle);
+        }
+
+        ByteBuffer event = getRaw(handle);
+        if (event == null) {
+            return null;
+        }
+        return eventCodec.decodeEvent(event);
+    }
+
+    /**
+     * Returns the stored event as encoded by {@link EventCodec#encodeEvent(String)}. For events in the segmented log,
+     * this is a read-only view of the memory-mapped segment and no copy is made.
+     *
+     * @return null if the event doesn't exist
+     */
+    synchronized ByteBuffer getRaw(Object handle) throws IOException {
+        if (!(handle instanceof EventHandle)) {
+            String event = legacyStore.get(handle);
+            return event == null ? null : ByteBuffer.wrap(eventCodec.encodeEvent(event));
+        }
+
+        EventHandle eventHandle = (EventHandle) handle;
+        if (!containsHandle(eventHandle)) {
+            return null;
+        }
+        ByteBuffer payload = log.readPayload(eventHandle.segmentId, eventHandle.offset);
+        // Skip the record type, the creation time, the project ID and the collection
+        payload.position(payload.position() + 1 + 8);
+        for (int i = 0; i < 2; i++) {
+            int length = payload.getShort() & 0xFFFF;
+            payload.position(payload.position() + length);
+        }
+        return payload.slice();
+    }
+
+    /**
+     * @return the number of failed upload attempts of the event. Always 0 for events in the legacy store
+     */
+    synchronized int getAttempts(Object handle) {
+        return handle instanceof EventHandle ? ((EventHandle) handle).attempts : 0;
+    }
+
+    /**
+     * Records a failed upload attempt of the event.
+     *
+     * @return the number of failed upload attempts including this one
+     */
+    synchronized int addAttempt(Object handle) throws IOException {
+        if (!(handle instanceof EventHandle)) {
+            // Not tracked. Those events are retried as before
+            return 0;
+        }
+
+        EventHandle eventHandle = (EventHandle) handle;
+        if (!containsHandle(eventHandle)) {
+            return eventHandle.attempts;
+        }
+
+        appendAttempts(eventHandle, eventHandle.attempts + 1);
+        compact(0);
+        return eventHandle.attempts;
+    }
+
+    private void appendAttempts(EventHandle handle, int attempts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(ATTEMPTS_RECORD_SIZE - TDSegmentLog.RECORD_HEADER_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_TYPE_ATTEMPTS);
+        out.writeLong(handle.segmentId);
+        out.writeInt(handle.offset);
+        out.writeInt(attempts);
+        out.close();
+        log.append(bytes.toByteArray());
+        setAttempts(handle, attempts);
+    }
+
+    private void setAttempts(EventHandle handle, int attempts) {
+        if (handle.attempts == 0 && attempts > 0) {
+            liveBytes += ATTEMPTS_RECORD_SIZE;
+        }
+        handle.attempts = attempts;
+    }
+
+    /**
+     * Moves the event to the quarantine, out of the queued events.
+     */
+    synchronized void quarantine(String collection, Object handle) throws IOException {
+        ByteBuffer event = getRaw(handle);
+        if (event == null) {
+            return;
+        }
+
+        if (quarantineLog != null) {
+            byte[] encodedEvent = new byte[event.remaining()];
+            event.get(encodedEvent);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(encodedEvent.length + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(collection);
+            out.write(encodedEvent);
+            out.close();
+            int offset = quarantineLog.append(bytes.toByteArray());
+            quarantinedEvents.add(EventHandle.position(quarantineLog.getActiveSegmentId(), offset));
+            trimQuarantine();
+        }
+        remove(handle);
+    }
+
+    /**
+     * @return quarantined events as collection name and event pairs, from the oldest one
+     */
+    synchronized List<Map.Entry<String, String>> getQuarantinedEvents() throws IOException {
+        List<Map.Entry<String, String>> events = new ArrayList<Map.Entry<String, String>>(quarantinedEvents.size());
+        for (long position : quarantinedEvents) {
+            byte[] payload = quarantineLog.read(position >>> 32, (int) position);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            in.readLong();
+            String collection = in.readUTF();
+            int headerSize = payload.length - in.available();
+            String event = eventCodec.decodeEvent(ByteBuffer.wrap(payload, headerSize, payload.length - headerSize));
+            events.add(new AbstractMap.SimpleImmutableEntry<String, String>(collection, event));
+        }
+        return events;
+    }
+
+    private void trimQuarantine() {
+        List<Long> segmentIds = quarantineLog.getSegmentIds();
+        for (int i = 0; i < segmentIds.size() - MAX_QUARANTINE_SEGMENTS; i++) {
+            long segmentId = segmentIds.get(i);
+            quarantineLog.delete(segmentId);
+            Iterator<Long> iterator = quarantinedEvents.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() >>> 32 == segmentId) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(Object handle) throws IOException {
+        if (!(handle instanceof EventHandle)) {
+            legacyStore.remove(handle);
+            return;
+        }
+
+        EventHandle eventHandle = (EventHandle) handle;
+        if (!containsHandle(eventHandle)) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(13);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_TYPE_REMOVAL);
+        out.writeLong(eventHandle.segmentId);
+        out.writeInt(eventHandle.offset);
+        out.close();
+        log.append(bytes.toByteArray());
+
+        removeHandle(eventHandle);
+        deleteUnusedSegments();
+    }
+
+    public Map<String, List<Object>> getHandles(String projectId) throws IOException {
+        return getHandles(projectId, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized Map<String, List<Object>> getHandles(String projectId, int maxEvents) throws IOException {
+        Map<String, List<Object>> result = new LinkedHashMap<String, List<Object>>();
+        int remaining = maxEvents;
+
+        if (!drainedLegacyProjectIds.contains(projectId)) {
+            Map<String, List<Object>> legacyHandles = legacyStore.getHandles(projectId, maxEvents);
+            if (legacyHandles == null || legacyHandles.isEmpty()) {
+                // Nothing is written to the legacy store anymore, so no need to scan it again
+                drainedLegacyProjectIds.add(projectId);
+            }
+            else {
+                for (Map.Entry<String, List<Object>> entry : legacyHandles.entrySet()) {
+                    result.put(entry.getKey(), new ArrayList<Object>(entry.getValue()));
+                    remaining -= entry.getValue().size();
+                }
+            }
+        }
+
+        Map<String, LinkedHashSet<EventHandle>> collections = handles.get(projectId);
+        if (collections == null) {
+            return result;
+        }
+        for (String collection : sortByPriority(collections.keySet())) {
+            if (remaining <= 0) {
+                break;
+            }
+            List<Object> collectionHandles = result.get(collection);
+            if (collectionHandles == null) {
+                collectionHandles = new ArrayList<Object>();
+            }
+            Iterator<EventHandle> iterator = collections.get(collection).iterator();
+            while (remaining > 0 && iterator.hasNext()) {
+                collectionHandles.add(iterator.next());
+                remaining--;
+            }
+            if (!collectionHandles.isEmpty()) {
+                result.put(collection, collectionHandles);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return false if events queued in Keen's {@link FileEventStore} are already drained.
+     * Those events are only returned by {@link #getHandles(String, int)}
+     */
+    synchronized boolean mayHaveLegacyEvents(String projectId) {
+        return !drainedLegacyProjectIds.contains(projectId);
+    }
+
+    /**
+     * @return collections having queued events, from the highest priority. Collections with the same priority
+     * are in the order they were first queued
+     */
+    synchronized List<String> getCollections(String projectId) {
+        Map<String, LinkedHashSet<EventHandle>> collections = handles.get(projectId);
+        if (collections == null) {
+            return new ArrayList<String>(0);
+        }
+        return sortByPriority(collections.keySet());
+    }
+
+    private List<String> sortByPriority(Collection<String> collections) {
+        List<String> sorted = new ArrayList<String>(collections);
+        if (collectionPriorities.isEmpty()) {
+            return sorted;
+        }
+        // Stable, so that the queued order is kept in each priority
+        Collections.sort(sorted, new Comparator<String>() {
+            @Override
+            public int compare(String collection0, String collection1) {
+                int priority0 = getCollectionPriority(collection0);
+                int priority1 = getCollectionPriority(collection1);
+                return priority0 > priority1 ? -1 : (priority0 == priority1 ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * @return the oldest events of the collection, up to {@code maxEvents}
+     */
+    synchronized List<Object> getHandles(String projectId, String collection, int maxEvents) {
+        List<Object> result = new ArrayList<Object>();
+        Map<String, LinkedHashSet<EventHandle>> collections = handles.get(projectId);
+        if (collections == null || collections.get(collection) == null) {
+            return result;
+        }
+        Iterator<EventHandle> iterator = collections.get(collection).iterator();
+        while (result.size() < maxEvents && iterator.hasNext()) {
+            result.add(iterator.next());
+        }
+        return result;
+    }
+
+    private boolean containsHandle(EventHandle handle) {
+        Map<String, LinkedHashSet<EventHandle>> collections = handles.get(handle.projectId);
+        if (collections == null) {
+            return false;
+        }
+        LinkedHashSet<EventHandle> collectionHandles = collections.get(handle.collection);
+        return collectionHandles != null && collectionHandles.contains(handle);
+    }
+
+    private void addHandle(EventHandle handle) {
+        Map<String, LinkedHashSet<EventHandle>> collections = handles.get(handle.projectId);
+        if (collections == null) {
+            collections = new LinkedHashMap<String, LinkedHashSet<EventHandle>>();
+            handles.put(handle.projectId, collections);
+        }
+        LinkedHashSet<EventHandle> collectionHandles = collections.get(handle.collection);
+        if (collectionHandles == null) {
+            collectionHandles = new LinkedHashSet<EventHandle>();
+            collections.put(handle.collection, collectionHandles);
+        }
+        collectionHandles.add(handle);
+        eventsByPosition.put(handle.position(), handle);
+        liveBytes += handle.size;
+        incrementLiveEventCount(handle.segmentId);
+    }
+
+    private void removeHandle(EventHandle handle) {
+        Map<String, LinkedHashSet<EventHandle>> collections = handles.get(handle.projectId);
+        LinkedHashSet<EventHandle> collectionHandles = collections.get(handle.collection);
+        collectionHandles.remove(handle);
+        if (collectionHandles.isEmpty()) {
+            collections.remove(handle.collection);
+            if (collections.isEmpty()) {
+                handles.remove(handle.projectId);
+            }
+        }
+        eventsByPosition.remove(handle.position());
+        liveBytes -= handle.size + (handle.attempts > 0 ? ATTEMPTS_RECORD_SIZE : 0);
+        decrementLiveEventCount(handle.segmentId);
+    }
+
+    private void incrementLiveEventCount(long segmentId) {
+        Integer count = liveEventCounts.get(segmentId);
+        liveEventCounts.put(segmentId, count == null ? 1 : count + 1);
+    }
+
+    private void decrementLiveEventCount(long segmentId) {
+        int count = liveEventCounts.get(segmentId) - 1;
+        if (count > 0) {
+            liveEventCounts.put(segmentId, count);
+        }
+        else {
+            liveEventCounts.remove(segmentId);
+        }
+    }
+
+    /**
+     * Deletes segments from the oldest one while they don't have any live event.
+     * Segments are deleted only in order so that a removal record is never lost
+     * while the event it refers to still exists.
+     */
+    private void deleteUnusedSegments() {
+        long activeSegmentId = log.getActiveSegmentId();
+        for (long segmentId : log.getSegmentIds()) {
+            if (segmentId == activeSegmentId || liveEventCounts.containsKey(segmentId)) {
+                break;
+            }
+            log.delete(segmentId);
+        }
     }
 }
@@ -0,0 +1,573 @@
+package com.treasuredata.android;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import io.keen.client.java.KeenClient;
+import io.keen.client.java.http.OutputSource;
+import org.komamitsu.android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Uploads queued events in {@link TDEventStore} without parsing them back into maps.
+ *
+ * Stored events are plain JSON, so their bytes are streamed from the memory-mapped segments
+ * straight into the request body. MessagePack records are transcoded into JSON without building maps,
+ * and only the other events (e.g. encrypted records) go through {@link TDJsonHandler} to be converted.
+ *
+ * With the binary upload enabled, the request body is MessagePack instead, and MessagePack records
+ * are streamed as they are.
+ *
+ * Failures of the endpoint, like network errors and 5xx responses, are thrown to be retried after a backoff
+ * (see {@link TDRetryPolicy}). Failures of events, like 4xx responses and errors of each event, are counted
+ * per event. Events that failed are sent in smaller batches, halved for each failure, so that a broken event
+ * ends up alone in a request and is quarantined after {@link TDRetryPolicy#getMaxAttempts()} failures.
+ */
+class TDEventUploader {
+    private static final String TAG = TDEventUploader.class.getSimpleName();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static volatile boolean binaryUpload = false;
+    private static final Set<String> NON_RETRYABLE_ERRORS = new HashSet<String>(Arrays.asList(
+            "InvalidCollectionNameError",
+            "InvalidPropertyNameError",
+            "InvalidPropertyValueError"));
+
+    private final TDEventStore eventStore;
+    private final TDHttpHandler httpHandler;
+    private final TDJsonHandler jsonHandler;
+    private final TDRetryPolicy retryPolicy;
+
+    TDEventUploader(TDEventStore eventStore, TDHttpHandler httpHandler, TDJsonHandler jsonHandler, TDRetryPolicy retryPolicy) {
+        this.eventStore = eventStore;
+        this.httpHandler = httpHandler;
+        this.jsonHandler = jsonHandler;
+        this.retryPolicy = retryPolicy;
+    }
+
+    static void enableBinaryUpload() {
+        binaryUpload = true;
+    }
+
+    static void disableBinaryUpload() {
+        binaryUpload = false;
+    }
+
+    /**
+     * Uploads queued events of the project, at most {@code maxEventsAtOnce} events per request,
+     * until no event is left or no event is accepted by the server.
+     */
+    void uploadAll(String projectId, int maxEventsAtOnce, boolean retryUploading) throws TDUploadException {
+        while (true) {
+            Map<String, List<Object>> handles;
+            try {
+                handles = eventStore.getHandles(projectId, maxEventsAtOnce);
+            } catch (IOException e) {
+                throw new TDUploadException(KeenClient.ERROR_CODE_STORAGE_ERROR, e);
+            }
+            if (handles.isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, List<Object>> entry : handles.entrySet()) {
+                entry.setValue(limitFailedEvents(entry.getValue(), maxEventsAtOnce));
+            }
+
+            Batch batch = prepareBatch(handles);
+            if (batch.isEmpty()) {
+                // All the events were broken and removed
+                continue;
+            }
+
+            if (upload(batch, retryUploading) == 0) {
+                // Avoid an endless loop. The rest will be retried in the next upload
+                return;
+            }
+        }
+    }
+
+    /**
+     * Uploads queued events like {@link #uploadAll(String, int, boolean)}, with up to {@code maxConcurrentRequests}
+     * requests in flight. A request has events of one collection, and a collection has one request in flight at most,
+     * so events of a database.table are still uploaded in the queued order.
+     * Collections with higher priority, see {@link TDEventStore#setCollectionPriority(String, int)}, are started first.
+     *
+     * The calling thread sends requests as well, and the others are sent on the executor.
+     */
+    void uploadAllInParallel(String projectId, int maxEventsAtOnce, boolean retryUploading,
+                             int maxConcurrentRequests, Executor executor) throws TDUploadException {
+        if (maxConcurrentRequests <= 1 || eventStore.mayHaveLegacyEvents(projectId)) {
+            // Events in the legacy store are read only in this way, which happens once
+            uploadAll(projectId, maxEventsAtOnce, retryUploading);
+            return;
+        }
+
+        final ParallelUpload parallelUpload = new ParallelUpload(projectId, maxEventsAtOnce, retryUploading);
+        List<ParallelUpload.Worker> workers = new ArrayList<ParallelUpload.Worker>(maxConcurrentRequests - 1);
+        for (int i = 0; i < maxConcurrentRequests - 1; i++) {
+            ParallelUpload.Worker worker = parallelUpload.new Worker();
+            try {
+                executor.execute(worker);
+            }
+            catch (RejectedExecutionException e) {
+                // The calling thread and the workers already started upload the rest
+                Log.w(TAG, "Uploading with " + (workers.size() + 1) + " requests in flight at most: " + e.getMessage());
+                break;
+            }
+            workers.add(worker);
+        }
+        parallelUpload.new Worker().run();
+        for (ParallelUpload.Worker worker : workers) {
+            // Workers not started yet aren't needed anymore
+            worker.cancel();
+        }
+        parallelUpload.await();
+    }
+
+    private class ParallelUpload {
+        private final String projectId;
+        private final int maxEventsAtOnce;
+        private final boolean retryUploading;
+        // The followings are guarded by this
+        private final Set<String> inFlightCollections = new HashSet<String>();
+        // Collections whose last request had no event accepted. The rest will be retried in the next upload
+        private final Set<String> stalledCollections = new HashSet<String>();
+        private TDUploadException error;
+        private int runningWorkers;
+
+        ParallelUpload(String projectId, int maxEventsAtOnce, boolean retryUploading) {
+            this.projectId = projectId;
+            this.maxEventsAtOnce = maxEventsAtOnce;
+            this.retryUploading = retryUploading;
+        }
+
+        class Worker implements Runnable {
+            // Guarded by ParallelUpload.this
+            private boolean started;
+
+            @Override
+            public void run() {
+                synchronized (ParallelUpload.this) {
+                    if (started) {
+                        return;
+                    }
+                    started = true;
+                    runningWorkers++;
+                }
+                try {
+                    String collection;
+                    while ((collection = reserveCollection()) != null) {
+                        boolean accepted = false;
+                        try {
+                            accepted = uploadCollection(collection);
+                        }
+                        catch (TDUploadException e) {
+                            setError(e);
+                        }
+                        catch (RuntimeException e) {
+                            setError(new TDUploadException(KeenClient.ERROR_CODE_NETWORK_ERROR, e));
+                        }
+                        finally {
+                            release(collection, accepted);
+                        }
+                    }
+                }
+                finally {
+                    synchronized (ParallelUpload.this) {
+                        runningWorkers--;
+                        ParallelUpload.this.notifyAll();
+                    }
+                }
+            }
+
+            void cancel() {
+                synchronized (ParallelUpload.this) {
+                    started = true;
+                }
+            }
+        }
+
+        private synchronized String reserveCollection() {
+            if (error != null) {
+                // Stop like uploadAll() does
+                return null;
+            }
+            for (String collection : eventStore.getCollections(projectId)) {
+                if (!inFlightCollections.contains(collection) && !stalledCollections.contains(collection)) {
+                    inFlightCollections.add(collection);
+                    return collection;
+                }
+            }
+            return null;
+        }
+
+        private synchronized void release(String collection, boolean accepted) {
+            inFlightCollections.remove(collection);
+            if (!accepted) {
+                stalledCollections.add(collection);
+            }
+        }
+
+        private synchronized void setError(TDUploadException e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+
+        /**
+         * @return false if no event is accepted by the server
+         */
+        private boolean uploadCollection(String collection) throws TDUploadException {
+            Map<String, List<Object>> handles = new LinkedHashMap<String, List<Object>>(1);
+            handles.put(collection, limitFailedEvents(eventStore.getHandles(projectId, collection, maxEventsAtOnce), maxEventsAtOnce));
+            Batch batch = prepareBatch(handles);
+            if (batch.isEmpty()) {
+                // All the events were broken and removed
+                return true;
+            }
+            return upload(batch, retryUploading) > 0;
+        }
+
+        synchronized void await() throws TDUploadException {
+            boolean interrupted = false;
+            while (runningWorkers > 0) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * Halves the events of a collection for each failed attempt of them, to isolate broken events
+     */
+    private List<Object> limitFailedEvents(List<Object> handles, int maxEventsAtOnce) {
+        int attempts = 0;
+        for (Object handle : handles) {
+            attempts = Math.max(attempts, eventStore.getAttempts(handle));
+        }
+        if (attempts == 0) {
+            return handles;
+        }
+        int limit = Math.max(1, maxEventsAtOnce >> Math.min(attempts, 31));
+        return handles.size() <= limit ? handles : new ArrayList<Object>(handles.subList(0, limit));
+    }
+
+    private Batch prepareBatch(Map<String, List<Object>> handles) throws TDUploadException {
+        boolean messagePack = binaryUpload;
+        Batch batch = new Batch(messagePack);
+        for (Map.Entry<String, List<Object>> entry : handles.entrySet()) {
+            String collection = entry.getKey();
+            for (Object handle : entry.getValue()) {
+                ByteBuffer event;
+                try {
+                    event = eventStore.getRaw(handle);
+                    if (event != null) {
+                        event = messagePack ? toMessagePack(event) : toPlainJson(event);
+                    }
+                    if (event == null) {
+                        Log.w(TAG, "Removing an event that can't be read: collection=" + collection);
+                        eventStore.remove(handle);
+                        continue;
+                    }
+                } catch (IOException e) {
+                    throw new TDUploadException(KeenClient.ERROR_CODE_STORAGE_ERROR, e);
+                }
+                batch.add(collection, handle, event);
+            }
+        }
+        return batch;
+    }
+
+    private static boolean isPlainJson(ByteBuffer event) {
+        return event.hasRemaining() && event.get(event.position()) == '{';
+    }
+
+    private static boolean isMessagePackRecord(ByteBuffer event) {
+        return event.remaining() > 2 &&
+                event.get(event.position()) == TDJsonHandler.BINARY_RECORD_MARKER &&
+                event.get(event.position() + 1) == TDJsonHandler.RECORD_VERSION_MESSAGE_PACK;
+    }
+
+    private ByteBuffer toPlainJson(ByteBuffer event) throws IOException {
+        if (isPlainJson(event)) {
+            return event;
+        }
+        if (isMessagePackRecord(event)) {
+            ByteBuffer messagePack = event.duplicate();
+            messagePack.position(messagePack.position() + 2);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(event.remaining() * 2);
+            JsonGenerator generator = JSON_FACTORY.createGenerator(out);
+            try {
+                TDMessagePack.transcodeToJson(messagePack, generator);
+            } catch (IOException e) {
+                Log.w(TAG, "This event can't be handled as MessagePack", e);
+                return null;
+            }
+            generator.close();
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+        Map<String, Object> value = readEvent(event);
+        if (value == null) {
+            return null;
+        }
+        StringWriter writer = new StringWriter();
+        jsonHandler.writeJsonWithoutEncryption(writer, value);
+        return ByteBuffer.wrap(writer.toString().getBytes(UTF8));
+    }
+
+    private ByteBuffer toMessagePack(ByteBuffer event) throws IOException {
+        if (isMessagePackRecord(event)) {
+            ByteBuffer messagePack = event.duplicate();
+            messagePack.position(messagePack.position() + 2);
+            return messagePack.slice();
+        }
+        Map<String, Object> value = readEvent(event);
+        if (value == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(event.remaining());
+        TDMessagePack.write(out, value);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private Map<String, Object> readEvent(ByteBuffer event) throws IOException {
+        if (isPlainJson(event)) {
+            return jsonHandler.readJsonWithoutDecryption(new StringReader(UTF8.decode(event.duplicate()).toString()));
+        }
+        return jsonHandler.readRecord(event);
+    }
+
+    /**
+     * @return the number of removed events
+     */
+    private int upload(Batch batch, boolean retryUploading) throws TDUploadException {
+        TDHttpHandler.EventsResponse response;
+        try {
+            response = httpHandler.sendEvents(batch);
+        } catch (IOException e) {
+            if (!retryUploading) {
+                removeAll(batch);
+            }
+            throw new TDUploadException(KeenClient.ERROR_CODE_NETWORK_ERROR, e).withBackoff(-1);
+        }
+
+        if (response.statusCode / 100 != 2) {
+            boolean eventError = isEventError(response.statusCode);
+            if (!retryUploading) {
+                removeAll(batch);
+            }
+            else if (eventError) {
+                for (Map.Entry<String, List<Object>> entry : batch.handles.entrySet()) {
+                    for (Object handle : entry.getValue()) {
+                        addAttempt(entry.getKey(), handle);
+                    }
+                }
+            }
+            TDUploadException e = new TDUploadException(KeenClient.ERROR_CODE_SERVER_RESPONSE,
+                    "Server returned an error: status=" + response.statusCode + ", body=" + response.body);
+            throw eventError ? e : e.withBackoff(response.retryAfterMillis);
+        }
+
+        Map<String, Object> results;
+        try {
+            results = jsonHandler.readJsonWithoutDecryption(new StringReader(response.body));
+        } catch (IOException e) {
+            results = null;
+        }
+        if (results == null) {
+            Log.w(TAG, "Unexpected response: " + response.body);
+            return 0;
+        }
+
+        int removed = 0;
+        for (Map.Entry<String, List<Object>> entry : batch.handles.entrySet()) {
+            Object collectionResults = results.get(entry.getKey());
+            if (!(collectionResults instanceof List)) {
+                continue;
+            }
+            List<?> resultList = (List<?>) collectionResults;
+            List<Object> handles = entry.getValue();
+            for (int i = 0; i < handles.size() && i < resultList.size(); i++) {
+                if (shouldRemove(resultList.get(i), retryUploading)) {
+                    try {
+                        eventStore.remove(handles.get(i));
+                        removed++;
+                    } catch (IOException e) {
+                        throw new TDUploadException(KeenClient.ERROR_CODE_STORAGE_ERROR, e);
+                    }
+                }
+                else if (addAttempt(entry.getKey(), handles.get(i))) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Whether the server rejected the request because of the events in it. Other errors,
+     * including authentication errors and 429, are about the endpoint or the client
+     */
+    private static boolean isEventError(int statusCode) {
+        return statusCode / 100 == 4 && statusCode != 401 && statusCode != 403 && statusCode != 408 && statusCode != 429;
+    }
+
+    /**
+     * Counts a failed attempt of the event, and quarantines it if it failed too many times.
+     *
+     * @return true if the event is quarantined
+     */
+    private boolean addAttempt(String collection, Object handle) throws TDUploadException {
+        try {
+            int attempts = eventStore.addAttempt(handle);
+            if (attempts < retryPolicy.getMaxAttempts()) {
+                return false;
+            }
+            Log.w(TAG, "Quarantining an event that failed " + attempts + " times: collection=" + collection);
+            eventStore.quarantine(collection, handle);
+            return true;
+        } catch (IOException e) {
+            throw new TDUploadException(KeenClient.ERROR_CODE_STORAGE_ERROR, e);
+        }
+    }
+
+    private static boolean shouldRemove(Object result, boolean retryUploading) {
+        if (!(result instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> resultMap = (Map<?, ?>) result;
+        if (Boolean.TRUE.equals(resultMap.get("success"))) {
+            return true;
+        }
+        if (!retryUploading) {
+            return true;
+        }
+        Object error = resultMap.get("error");
+        return error instanceof Map && NON_RETRYABLE_ERRORS.contains(((Map<?, ?>) error).get("name"));
+    }
+
+    private void removeAll(Batch batch) throws TDUploadException {
+        for (List<Object> handles : batch.handles.values()) {
+            for (Object handle : handles) {
+                try {
+                    eventStore.remove(handle);
+                } catch (IOException e) {
+                    throw new TDUploadException(KeenClient.ERROR_CODE_STORAGE_ERROR, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Events to be sent in a request, written as {"collection":[event, ...], ...} in JSON or MessagePack
+     */
+    static class Batch implements OutputSource {
+        private static final JsonStringEncoder STRING_ENCODER = JsonStringEncoder.getInstance();
+        private final Map<String, List<Object>> handles = new LinkedHashMap<String, List<Object>>();
+        private final Map<String, List<ByteBuffer>> events = new LinkedHashMap<String, List<ByteBuffer>>();
+        private final boolean messagePack;
+
+        Batch(boolean messagePack) {
+            this.messagePack = messagePack;
+        }
+
+        String getContentType() {
+            return messagePack ? "application/x-msgpack" : "application/json";
+        }
+
+        void add(String collection, Object handle, ByteBuffer event) {
+            List<Object> collectionHandles = handles.get(collection);
+            if (collectionHandles == null) {
+                collectionHandles = new ArrayList<Object>();
+                handles.put(collection, collectionHandles);
+                events.put(collection, new ArrayList<ByteBuffer>());
+            }
+            collectionHandles.add(handle);
+            events.get(collection).add(event);
+        }
+
+        boolean isEmpty() {
+            return handles.isEmpty();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (messagePack) {
+                writeMessagePackTo(out);
+                return;
+            }
+
+            WritableByteChannel channel = Channels.newChannel(out);
+            out.write('{');
+            boolean firstCollection = true;
+            for (Map.Entry<String, List<ByteBuffer>> entry : events.entrySet()) {
+                if (!firstCollection) {
+                    out.write(',');
+                }
+                firstCollection = false;
+                out.write('"');
+                out.write(STRING_ENCODER.quoteAsUTF8(entry.getKey()));
+                out.write('"');
+                out.write(':');
+                out.write('[');
+                boolean firstEvent = true;
+                for (ByteBuffer event : entry.getValue()) {
+                    if (!firstEvent) {
+                        out.write(',');
+                    }
+                    firstEvent = false;
+                    writeBuffer(channel, event);
+                }
+                out.write(']');
+            }
+            out.write('}');
+        }
+
+        private void writeMessagePackTo(OutputStream out) throws IOException {
+            WritableByteChannel channel = Channels.newChannel(out);
+            TDMessagePack.writeMapHeader(out, events.size());
+            for (Map.Entry<String, List<ByteBuffer>> entry : events.entrySet()) {
+                TDMessagePack.writeString(out, entry.getKey());
+                TDMessagePack.writeArrayHeader(out, entry.getValue().size());
+                for (ByteBuffer event : entry.getValue()) {
+                    writeBuffer(channel, event);
+                }
+            }
+        }
+
+        private static void writeBuffer(WritableByteChannel channel, ByteBuffer event) throws IOException {
+            // Duplicate the buffer so that the body can be written again
+            ByteBuffer buffer = event.duplicate();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
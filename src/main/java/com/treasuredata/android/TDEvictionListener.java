@@ -0,0 +1,12 @@
+package com.treasuredata.android;
+
+/**
+ * Notified when buffered events are dropped to keep the quota of the local buffer,
+ * see {@link TreasureData#setEventStoreQuota(long, int, TDEvictionPolicy)}
+ */
+public interface TDEvictionListener {
+    /**
+     * Called on the thread storing the event that caused the eviction, or the one changing the quota.
+     */
+    void onEvicted(String database, String table, int count);
+}
@@ -0,0 +1,21 @@
+package com.treasuredata.android;
+
+/**
+ * Which buffered events to drop when the local buffer is full,
+ * see {@link TreasureData#setEventStoreQuota(long, int, TDEvictionPolicy)}
+ */
+public enum TDEvictionPolicy {
+    /**
+     * Drop the oldest event
+     */
+    DROP_OLDEST,
+    /**
+     * Drop the oldest event of the table with the lowest priority, see {@link TreasureData#setTablePriority(String, String, int)}.
+     * A new event is dropped instead if its table has lower priority than all the buffered events
+     */
+    DROP_LOWEST_PRIORITY,
+    /**
+     * Drop every other event from the oldest one, so that the events left are spread over the whole buffered period
+     */
+    SAMPLE
+}
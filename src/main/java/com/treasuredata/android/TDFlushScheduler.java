@@ -0,0 +1,276 @@
+package com.treasuredata.android;
+
+import io.keen.client.java.KeenCallback;
+import io.keen.client.java.KeenClient;
+import org.komamitsu.android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when queued events are uploaded, and runs at most one upload at a time.
+ *
+ * Upload requests made while an upload is in flight are coalesced into a single upload
+ * started after it, since the in-flight one may not include events queued after it started.
+ *
+ * With automatic flush enabled, an upload is also started when the queued bytes reach a threshold,
+ * when the oldest queued event gets too old, or when no event has been queued for a while.
+ * Automatic uploads are skipped while the network is known to be unavailable.
+ */
+class TDFlushScheduler {
+    private static final String TAG = TDFlushScheduler.class.getSimpleName();
+
+    interface Uploader {
+        /**
+         * Uploads queued events in the background and calls the callback when it's done.
+         */
+        void upload(KeenCallback callback);
+
+        boolean isNetworkAvailable();
+    }
+
+    private final Uploader uploader;
+    // The followings are guarded by this
+    private boolean uploading;
+    // Callbacks of the coalesced upload to start after the in-flight one. null if no upload is requested
+    private List<KeenCallback> pendingCallbacks;
+    private boolean autoFlushEnabled;
+    private long maxQueuedBytes;
+    private long maxEventAgeMillis;
+    private long idleMillis;
+    private long queuedBytes;
+    // Whether events are queued since the last upload started
+    private boolean eventsQueued;
+    // Times in milliseconds of now()
+    private long oldestEventAt;
+    private long lastEventAt;
+    // Automatic uploads don't start before this after an upload failed or was skipped
+    private long notBefore;
+    private boolean timerScheduled;
+
+    TDFlushScheduler(Uploader uploader) {
+        this.uploader = uploader;
+    }
+
+    /**
+     * @param maxQueuedBytes upload when events of this size are queued
+     * @param maxEventAgeMillis upload when the oldest queued event gets this old
+     * @param idleMillis upload when no event is queued for this long
+     */
+    synchronized void enableAutoFlush(long maxQueuedBytes, long maxEventAgeMillis, long idleMillis) {
+        if (maxQueuedBytes < 1 || maxEventAgeMillis < 1 || idleMillis < 1) {
+            throw new IllegalArgumentException(String.format("Thresholds must be positive: maxQueuedBytes=%d, maxEventAgeMillis=%d, idleMillis=%d",
+                    maxQueuedBytes, maxEventAgeMillis, idleMillis));
+        }
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.maxEventAgeMillis = maxEventAgeMillis;
+        this.idleMillis = idleMillis;
+        this.autoFlushEnabled = true;
+        if (eventsQueued) {
+            scheduleTimer(now());
+        }
+    }
+
+    synchronized void disableAutoFlush() {
+        autoFlushEnabled = false;
+    }
+
+    synchronized boolean isAutoFlushEnabled() {
+        return autoFlushEnabled;
+    }
+
+    /**
+     * Called when an event of the size is stored in the event store.
+     */
+    void onEventStored(int bytes) {
+        boolean flush;
+        synchronized (this) {
+            long now = now();
+            queuedBytes += bytes;
+            if (!eventsQueued) {
+                eventsQueued = true;
+                oldestEventAt = now;
+            }
+            lastEventAt = now;
+            if (!autoFlushEnabled) {
+                return;
+            }
+            flush = queuedBytes >= maxQueuedBytes && now >= notBefore && !uploading && pendingCallbacks == null;
+            if (!flush) {
+                scheduleTimer(now);
+            }
+        }
+        if (flush) {
+            autoFlush();
+        }
+    }
+
+    /**
+     * Requests an upload. The callback is called when an upload started after this call is done.
+     */
+    void requestFlush(KeenCallback callback) {
+        List<KeenCallback> callbacks = new ArrayList<KeenCallback>(1);
+        callbacks.add(callback);
+        synchronized (this) {
+            if (uploading) {
+                if (pendingCallbacks == null) {
+                    pendingCallbacks = callbacks;
+                }
+                else {
+                    pendingCallbacks.add(callback);
+                }
+                return;
+            }
+            startUpload();
+        }
+        upload(callbacks);
+    }
+
+    private void autoFlush() {
+        synchronized (this) {
+            if (uploading || !autoFlushEnabled) {
+                return;
+            }
+            if (!uploader.isNetworkAvailable()) {
+                if (TDLogging.isEnabled()) {
+                    Log.d(TAG, "Network is unavailable. Skipped uploading events");
+                }
+                long now = now();
+                notBefore = now + maxEventAgeMillis;
+                scheduleTimer(now);
+                return;
+            }
+            startUpload();
+        }
+        upload(new ArrayList<KeenCallback>(1));
+    }
+
+    // Events queued so far are uploaded by the upload starting now
+    private void startUpload() {
+        uploading = true;
+        queuedBytes = 0;
+        eventsQueued = false;
+    }
+
+    private void upload(final List<KeenCallback> callbacks) {
+        final long startedAt = now();
+        KeenClient.KeenCallbackWithErrorCode uploadCallback = new KeenClient.KeenCallbackWithErrorCode() {
+            private String errorCode;
+
+            @Override
+            public void onSuccess() {
+                for (KeenCallback callback : callbacks) {
+                    if (callback != null) {
+                        callback.onSuccess();
+                    }
+                }
+                onUploaded(true, startedAt);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                for (KeenCallback callback : callbacks) {
+                    if (callback == null) {
+                        continue;
+                    }
+                    if (callback instanceof KeenClient.KeenCallbackWithErrorCode) {
+                        ((KeenClient.KeenCallbackWithErrorCode) callback).setErrorCode(errorCode);
+                    }
+                    callback.onFailure(e);
+                }
+                onUploaded(false, startedAt);
+            }
+
+            @Override
+            public void setErrorCode(String errorCode) {
+                this.errorCode = errorCode;
+            }
+
+            @Override
+            public String getErrorCode() {
+                return errorCode;
+            }
+        };
+        try {
+            uploader.upload(uploadCallback);
+        }
+        catch (RuntimeException e) {
+            // e.g. the upload lane is full. Otherwise uploading stays set and no upload starts anymore
+            Log.w(TAG, "Failed to start uploading events", e);
+            uploadCallback.onFailure(e);
+        }
+    }
+
+    private void onUploaded(boolean succeeded, long startedAt) {
+        List<KeenCallback> callbacks;
+        synchronized (this) {
+            uploading = false;
+            if (!succeeded) {
+                // The events are still queued. Retry them after the max event age instead of
+                // uploading for each added event while offline
+                if (!eventsQueued) {
+                    eventsQueued = true;
+                    oldestEventAt = startedAt;
+                    lastEventAt = startedAt;
+                }
+                notBefore = now() + maxEventAgeMillis;
+            }
+            callbacks = pendingCallbacks;
+            pendingCallbacks = null;
+            if (callbacks != null) {
+                startUpload();
+            }
+            else if (autoFlushEnabled && eventsQueued) {
+                scheduleTimer(now());
+            }
+        }
+        if (callbacks != null) {
+            upload(callbacks);
+        }
+    }
+
+    private synchronized void onTimer() {
+        timerScheduled = false;
+        if (!autoFlushEnabled || !eventsQueued || uploading) {
+            // The timer is scheduled again when the event is stored or the upload is done
+            return;
+        }
+        long now = now();
+        if (now >= nextDeadline()) {
+            // Not to call the uploader while holding the lock
+            TDScheduler.timer().execute(new Runnable() {
+                @Override
+                public void run() {
+                    autoFlush();
+                }
+            });
+        }
+        else {
+            scheduleTimer(now);
+        }
+    }
+
+    private long nextDeadline() {
+        return Math.max(notBefore, Math.min(oldestEventAt + maxEventAgeMillis, lastEventAt + idleMillis));
+    }
+
+    // Only one timer is scheduled, and it's never cancelled. When it fires earlier than the deadline
+    // because more events were queued, it's just scheduled again
+    private void scheduleTimer(long now) {
+        if (timerScheduled) {
+            return;
+        }
+        timerScheduled = true;
+        TDScheduler.timer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimer();
+            }
+        }, Math.max(0, nextDeadline() - now), TimeUnit.MILLISECONDS);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -1,14 +1,21 @@
 package com.treasuredata.android;
 
 import android.os.Build;
+import io.keen.client.java.http.OutputSource;
 import io.keen.client.java.http.Request;
 import io.keen.client.java.http.Response;
 import io.keen.client.java.http.UrlConnectionHttpHandler;
 
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
-import java.util.zip.DeflaterInputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 class TDHttpHandler extends UrlConnectionHttpHandler {
     static volatile String VERSION = "0.0.0";
@@ -19,6 +26,15 @@ class TDHttpHandler extends UrlConnectionHttpHandler {
 
     private final String apiKey;
     private final String apiEndpoint;
+    // Built once instead of for each request. null if apiEndpoint is malformed
+    private final URL eventUrl;
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong handshakeCount = new AtomicLong();
+    // The same instance needs to be set to every connection, since pooled connections are reused
+    // only for requests with the same socket factory. It's replaced when the app sets another default factory
+    private volatile HandshakeCountingSocketFactory sslSocketFactory;
+    // null means following enableEventCompression() / disableEventCompression()
+    private volatile TDCompressionCodec compressionCodec;
 
     public static void disableEventCompression() {
         isEventCompression = false;
@@ -37,49 +53,229 @@ class TDHttpHandler extends UrlConnectionHttpHandler {
         }
         this.apiKey = apiKey;
         this.apiEndpoint = apiEndpoint;
+        URL eventUrl = null;
+        try {
+            eventUrl = buildEventUrl();
+        }
+        catch (MalformedURLException e) {
+            // Reported when events are sent
+        }
+        this.eventUrl = eventUrl;
+    }
+
+    private URL buildEventUrl() throws MalformedURLException {
+        return new URL(String.format("%s/android/v3/event", apiEndpoint));
+    }
+
+    void setCompressionCodec(TDCompressionCodec compressionCodec) {
+        this.compressionCodec = compressionCodec;
+    }
+
+    private TDCompressionCodec getCompressionCodec() {
+        TDCompressionCodec codec = compressionCodec;
+        if (codec != null) {
+            return codec;
+        }
+        return isEventCompression ? TDCompressionCodec.DEFLATE : TDCompressionCodec.IDENTITY;
+    }
+
+    /**
+     * Response of {@link #sendEvents(OutputSource)}, with the Retry-After header as well
+     */
+    static class EventsResponse {
+        final int statusCode;
+        final String body;
+        // -1 if the server didn't ask
+        final long retryAfterMillis;
+
+        EventsResponse(int statusCode, String body, long retryAfterMillis) {
+            this.statusCode = statusCode;
+            this.body = body;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    EventsResponse sendEvents(OutputSource body) throws IOException {
+        URL url = eventUrl != null ? eventUrl : buildEventUrl();
+        requestCount.incrementAndGet();
+        Request request = new Request(url, "POST", apiKey, body);
+        HttpURLConnection connection = openConnection(request);
+        sendRequest(connection, request);
+        Response response = readResponse(connection);
+        return new EventsResponse(response.statusCode, response.body, getRetryAfterMillis(connection));
+    }
+
+    /**
+     * Parses Retry-After, which is either seconds or an HTTP date
+     */
+    private static long getRetryAfterMillis(HttpURLConnection connection) {
+        String retryAfter = connection.getHeaderField("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+        }
+        catch (NumberFormatException e) {
+            long date = connection.getHeaderFieldDate("Retry-After", -1);
+            return date < 0 ? -1 : Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return the number of requests sent so far
+     */
+    long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of TLS connections opened so far, that is, the number of TLS handshakes
+     */
+    long getHandshakeCount() {
+        return handshakeCount.get();
     }
 
     protected HttpURLConnection openConnection(Request request) throws IOException {
-        URL url = new URL(String.format("%s/android/v3/event", this.apiEndpoint));
-        HttpURLConnection result = (HttpURLConnection) url.openConnection();
+        HttpURLConnection result = (HttpURLConnection) request.url.openConnection();
         result.setConnectTimeout(DEFAULT_CONNECT_TIMEOUT);
         result.setReadTimeout(DEFAULT_READ_TIMEOUT);
+        if (result instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) result).setSSLSocketFactory(getSSLSocketFactory());
+        }
         return result;
     }
 
+    /**
+     * Wraps the current default factory, so that a factory the app sets later, e.g. one enabling TLS 1.2 on API 16-19,
+     * is still used
+     */
+    private SSLSocketFactory getSSLSocketFactory() {
+        SSLSocketFactory defaultFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        HandshakeCountingSocketFactory factory = sslSocketFactory;
+        if (factory == null || factory.delegate != defaultFactory) {
+            factory = new HandshakeCountingSocketFactory(defaultFactory, handshakeCount);
+            sslSocketFactory = factory;
+        }
+        return factory;
+    }
+
     protected void sendRequest(HttpURLConnection connection, Request request) throws IOException {
         connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
+        String contentType = "application/json";
+        if (request.body instanceof TDEventUploader.Batch) {
+            contentType = ((TDEventUploader.Batch) request.body).getContentType();
+        }
+        connection.setRequestProperty("Content-Type", contentType);
         connection.setRequestProperty("X-TD-Data-Type", "k");
         connection.setRequestProperty("X-TD-Write-Key", apiKey);
         connection.setRequestProperty("User-Agent", String.format("TD-Android-SDK/%s (%s %s)", VERSION, Build.MODEL, Build.VERSION.RELEASE));
+        connection.setRequestProperty("Connection", "keep-alive");
         connection.setDoOutput(true);
+        // Stream the body instead of letting HttpURLConnection buffer the whole of it
+        connection.setChunkedStreamingMode(0);
+        TDCompressionCodec codec = getCompressionCodec();
+        if (codec.getContentEncoding() != null) {
+            connection.setRequestProperty("Content-Encoding", codec.getContentEncoding());
+        }
 
+        OutputStream outputStream = connection.getOutputStream();
         try {
-            if (isEventCompression) {
-                connection.setRequestProperty("Content-Encoding", "deflate");
-                ByteArrayOutputStream srcOutputStream = new ByteArrayOutputStream();
-                request.body.writeTo(srcOutputStream);
-                byte[] srcBytes = srcOutputStream.toByteArray();
-
-                BufferedInputStream compressedInputStream = new BufferedInputStream(new DeflaterInputStream(new ByteArrayInputStream(srcBytes)));
-                int readLen;
-                byte[] buf = new byte[256];
-                while ((readLen = compressedInputStream.read(buf)) > 0) {
-                    connection.getOutputStream().write(buf, 0, readLen);
-                }
-            }
-            else {
-                request.body.writeTo(connection.getOutputStream());
-            }
+            codec.compress(request.body, outputStream);
         }
         finally {
-            connection.getOutputStream().close();
+            outputStream.close();
         }
     }
 
+    /**
+     * Reads the response body to the end, including error responses, and closes it.
+     * Otherwise the connection can't go back to the pool, and the next request opens a new connection.
+     */
     @Override
     protected Response readResponse(HttpURLConnection connection) throws IOException {
-        return super.readResponse(connection);
+        int statusCode = connection.getResponseCode();
+        InputStream in;
+        try {
+            in = connection.getInputStream();
+        }
+        catch (IOException e) {
+            in = connection.getErrorStream();
+        }
+        if (in == null) {
+            return new Response(statusCode, "");
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            byte[] buf = new byte[1024];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                body.write(buf, 0, len);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return new Response(statusCode, body.toString("UTF-8"));
+    }
+
+    /**
+     * Counts the sockets created, as a new TLS socket means a handshake. Reused connections don't create one.
+     */
+    private static class HandshakeCountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final AtomicLong handshakeCount;
+
+        HandshakeCountingSocketFactory(SSLSocketFactory delegate, AtomicLong handshakeCount) {
+            this.delegate = delegate;
+            this.handshakeCount = handshakeCount;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            handshakeCount.incrementAndGet();
+            return delegate.createSocket();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            handshakeCount.incrementAndGet();
+            return delegate.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            handshakeCount.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            handshakeCount.incrementAndGet();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            handshakeCount.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            handshakeCount.incrementAndGet();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
     }
 }
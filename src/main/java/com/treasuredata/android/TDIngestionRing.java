@@ -0,0 +1,326 @@
+package com.treasuredata.android;
+
+import io.keen.client.java.KeenCallback;
+import io.keen.client.java.KeenClient;
+import org.komamitsu.android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring buffer in front of {@link TDClient#queueEvent}.
+ *
+ * Callers only put events into the ring, and a background flusher thread serializes and stores
+ * them in batches. The flusher wakes up when the ring is half full, or at the latest after
+ * {@code maxLossMillis}, which bounds how many milliseconds of events can be lost if the process dies.
+ *
+ * The ring is the bounded queue by Dmitry Vyukov. Each slot has a sequence number telling whether
+ * it's ready to be written or read, so producers only need a CAS on the tail. It also allows
+ * producers to take the oldest event for {@link TDBackpressurePolicy#DROP_OLDEST}.
+ *
+ * Events are stored by a single consumer at a time, so events put by a thread are stored in the order
+ * they're put. After {@link #close()}, callers wait for the flusher to finish, and then store the events
+ * left in the ring and their own event under {@code closeLock}.
+ */
+class TDIngestionRing {
+    private static final String TAG = TDIngestionRing.class.getSimpleName();
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    static class Entry {
+        final String eventCollection;
+        // Either of them is set
+        final Map<String, Object> event;
+        final TDEvent typedEvent;
+        final KeenCallback callback;
+
+        Entry(String eventCollection, Map<String, Object> event, TDEvent typedEvent, KeenCallback callback) {
+            this.eventCollection = eventCollection;
+            this.event = event;
+            this.typedEvent = typedEvent;
+            this.callback = callback;
+        }
+    }
+
+    interface Sink {
+        void queueEvent(Entry entry);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final TDBackpressurePolicy backpressurePolicy;
+    private final long maxLossNanos;
+    private final int wakeUpThreshold;
+    private final Sink sink;
+    private final ConcurrentLinkedQueue<Runnable> pendingActions = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread flusher;
+    private volatile boolean closed;
+    // Held to store events after the flusher finished
+    private final Object closeLock = new Object();
+
+    TDIngestionRing(int capacity, TDBackpressurePolicy backpressurePolicy, long maxLossMillis, Sink sink) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be 2 or more: " + capacity);
+        }
+        if (backpressurePolicy == null) {
+            throw new IllegalArgumentException("backpressurePolicy is null");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.entries = new AtomicReferenceArray<Entry>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.backpressurePolicy = backpressurePolicy;
+        this.maxLossNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, maxLossMillis));
+        this.wakeUpThreshold = size / 2;
+        this.sink = sink;
+
+        flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runFlusher();
+            }
+        }, "td-ingestion-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Puts an event into the ring. This doesn't block unless the ring is full with {@link TDBackpressurePolicy#BLOCK}.
+     * The callback is called on the flusher thread, or on the caller's thread if the event is dropped.
+     */
+    void offer(String eventCollection, Map<String, Object> event, KeenCallback callback) {
+        offer(new Entry(eventCollection, event, null, callback));
+    }
+
+    void offer(String eventCollection, TDEvent event, KeenCallback callback) {
+        offer(new Entry(eventCollection, null, event, callback));
+    }
+
+    private void offer(Entry entry) {
+        if (closed) {
+            storeAfterClose(entry);
+            return;
+        }
+
+        while (!tryOffer(entry)) {
+            switch (backpressurePolicy) {
+                case DROP_NEWEST:
+                    drop(entry);
+                    return;
+                case DROP_OLDEST:
+                    Entry oldest = poll();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                    break;
+                case BLOCK:
+                default:
+                    LockSupport.unpark(flusher);
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                    if (closed) {
+                        storeAfterClose(entry);
+                        return;
+                    }
+                    break;
+            }
+        }
+
+        if (closed) {
+            // The flusher may have finished before this event was put
+            storeAfterClose(null);
+        }
+        else if (size() >= wakeUpThreshold) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    /**
+     * Runs the action on the flusher thread after all the events put before this call are stored.
+     */
+    void flush(Runnable action) {
+        pendingActions.add(action);
+        LockSupport.unpark(flusher);
+        // The flusher may have finished before the action was added. Whichever removes it runs it
+        if (closed && pendingActions.remove(action)) {
+            storeAfterClose(null);
+            runAction(action);
+        }
+    }
+
+    /**
+     * Stops the flusher after storing all the events, and waits for it.
+     * Events put after this are stored on the caller's thread.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(flusher);
+        awaitFlusher();
+    }
+
+    private void awaitFlusher() {
+        // A callback called on the flusher may add an event
+        if (Thread.currentThread() == flusher) {
+            return;
+        }
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stores the events left in the ring, and then the entry if not null, after the flusher finished.
+     */
+    private void storeAfterClose(Entry entry) {
+        awaitFlusher();
+        synchronized (closeLock) {
+            drain();
+            if (entry != null) {
+                sink.queueEvent(entry);
+            }
+        }
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    private boolean tryOffer(Entry entry) {
+        while (true) {
+            long currentTail = tail.get();
+            int index = (int) currentTail & mask;
+            long diff = sequences.get(index) - currentTail;
+            if (diff == 0) {
+                if (tail.compareAndSet(currentTail, currentTail + 1)) {
+                    entries.lazySet(index, entry);
+                    sequences.lazySet(index, currentTail + 1);
+                    return true;
+                }
+            }
+            else if (diff < 0) {
+                // Full
+                return false;
+            }
+            // Another producer took the slot. Retry
+        }
+    }
+
+    private Entry poll() {
+        while (true) {
+            long currentHead = head.get();
+            int index = (int) currentHead & mask;
+            long diff = sequences.get(index) - (currentHead + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(currentHead, currentHead + 1)) {
+                    Entry entry = entries.get(index);
+                    entries.lazySet(index, null);
+                    sequences.lazySet(index, currentHead + capacity);
+                    return entry;
+                }
+            }
+            else if (diff < 0) {
+                // Empty, or a producer hasn't finished writing the slot
+                return null;
+            }
+        }
+    }
+
+    private void drop(Entry entry) {
+        if (TDLogging.isEnabled()) {
+            Log.w(TAG, "Dropped an event since the ingestion buffer is full: collection=" + entry.eventCollection);
+        }
+        KeenCallback callback = entry.callback;
+        if (callback != null) {
+            if (callback instanceof KeenClient.KeenCallbackWithErrorCode) {
+                ((KeenClient.KeenCallbackWithErrorCode) callback).setErrorCode(KeenClient.ERROR_CODE_STORAGE_ERROR);
+            }
+            callback.onFailure(new IllegalStateException("The ingestion buffer is full"));
+        }
+    }
+
+    private void runFlusher() {
+        List<Runnable> actions = new ArrayList<Runnable>();
+        while (true) {
+            boolean closing = closed;
+            Runnable action;
+            while ((action = pendingActions.poll()) != null) {
+                actions.add(action);
+            }
+
+            drain();
+
+            for (Runnable a : actions) {
+                runAction(a);
+            }
+            actions.clear();
+
+            if (closing) {
+                // Events and actions might be put while closing
+                drain();
+                while ((action = pendingActions.poll()) != null) {
+                    runAction(action);
+                }
+                return;
+            }
+            if (pendingActions.isEmpty() && size() < wakeUpThreshold) {
+                LockSupport.parkNanos(this, maxLossNanos);
+            }
+        }
+    }
+
+    private static void runAction(Runnable action) {
+        try {
+            action.run();
+        }
+        catch (Throwable e) {
+            Log.e(TAG, "Failed to run an action after flushing", e);
+        }
+    }
+
+    /**
+     * Stores the events put so far. Events put while draining are left to the next drain
+     * so that pending actions don't wait forever under a constant load.
+     */
+    private void drain() {
+        long target = tail.get();
+        while (head.get() < target) {
+            Entry entry = poll();
+            if (entry == null) {
+                // A producer is in the middle of writing the slot
+                Thread.yield();
+                continue;
+            }
+            try {
+                sink.queueEvent(entry);
+            } catch (Throwable e) {
+                Log.e(TAG, "Failed to queue an event", e);
+            }
+        }
+    }
+}
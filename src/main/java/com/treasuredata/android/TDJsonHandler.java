@@ -1,22 +1,62 @@
 package com.treasuredata.android;
 
 import android.util.Base64;
+import android.util.Base64OutputStream;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.jr.ob.JSON;
 import io.keen.client.java.KeenJsonHandler;
 import org.komamitsu.android.util.Log;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.security.InvalidKeyException;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.Map;
 
-class TDJsonHandler implements KeenJsonHandler {
+/**
+ * Serializes events, encrypting them when an encryption key is given.
+ *
+ * Encrypted events are written as binary records:
+ * <pre>
+ * [0x00][version=1][12 bytes nonce][AES-GCM(JSON) with 16 bytes tag]
+ * [0x00][version=3][12 bytes nonce][AES-GCM(MessagePack) with 16 bytes tag]
+ * </pre>
+ * and unencrypted events as JSON text, or as {@code [0x00][version=2][MessagePack]} when
+ * written by {@link TDMessagePackHandler}. The first two bytes are authenticated as well. The key is
+ * derived from the keyword with PBKDF2 and a salt generated for each installation. Binary records need
+ * API level 19 for AES/GCM with the authenticated header, so older versions write the legacy format
+ * and skip binary records they can't decrypt.
+ *
+ * {@link TDEventStore} stores the records as raw bytes through {@link #toRecord(TDEvent)} and {@link #readRecord(ByteBuffer)}.
+ * As {@link KeenJsonHandler} passes events as text, binary records are written to a Writer as {@code "!"}
+ * followed by the Base64 encoded record, which the store converts back to raw bytes. Neither 0x00 nor "!"
+ * can start JSON or Base64, so records written in the legacy format (AES/ECB encrypted and Base64 encoded)
+ * are still readable.
+ */
+class TDJsonHandler implements KeenJsonHandler, TDEventStore.EventCodec {
     private static final String TAG = TDJsonHandler.class.getSimpleName();
+    static final byte BINARY_RECORD_MARKER = 0x00;
+    static final char TEXT_RECORD_MARKER = '!';
+    private static final byte RECORD_VERSION_AES_GCM = 1;
+    static final byte RECORD_VERSION_MESSAGE_PACK = 2;
+    private static final byte RECORD_VERSION_AES_GCM_MESSAGE_PACK = 3;
+    private static final int RECORD_HEADER_LENGTH = 2;
+    private static final int GCM_NONCE_LENGTH = 12;
+    private static final int GCM_TAG_BITS = 128;
+    private static final int KEY_DERIVATION_ITERATIONS = 10000;
+    private static final int KEY_BITS = 256;
+    private static final int SALT_LENGTH = 16;
+    // Used only when no salt file is given, which is the case of tests
+    private static final byte[] DEFAULT_SALT = new byte[SALT_LENGTH];
     private static final Base64Encoder DEFAULT_BASE64_ENCODER = new Base64Encoder() {
         @Override
         public String encode(byte[] data)
@@ -30,8 +70,24 @@ class TDJsonHandler implements KeenJsonHandler {
             return Base64.decode(encoded, Base64.DEFAULT);
         }
     };
-    private SecretKeySpec secretKeySpec;
-    private final Cipher cipher;
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    // Cipher.updateAAD() is available since API level 19. Older versions keep writing the legacy format
+    private static final boolean BINARY_RECORD_AVAILABLE = isUpdateAADAvailable();
+    // Key of the legacy format
+    private volatile SecretKeySpec secretKeySpec;
+    // Key of the binary record format, derived on the first use since PBKDF2 takes a while.
+    // null until then, or if AES/GCM isn't available
+    private volatile SecretKeySpec recordKeySpec;
+    private volatile boolean recordKeyUnavailable;
+    private final Object recordKeyLock = new Object();
+    private final String encryptionKeyword;
+    private final File saltFile;
+    // Cipher isn't thread safe. Each thread keeps initialized ones, which can be reused
+    // without init() since AES/ECB doesn't have any IV
+    private final ThreadLocal<Cipher> encryptCiphers = new ThreadLocal<Cipher>();
+    private final ThreadLocal<Cipher> decryptCiphers = new ThreadLocal<Cipher>();
+    // AES/GCM ciphers need init() with a new nonce for each record
+    private final ThreadLocal<Cipher> recordCiphers = new ThreadLocal<Cipher>();
     private static final Charset UTF8 = Charset.forName("UTF-8");
     private final Base64Encoder base64Encoder;
 
@@ -52,7 +108,18 @@ class TDJsonHandler implements KeenJsonHandler {
     }
 
     private Map<String, Object> readJson(Reader reader, boolean withoutDecryption) throws IOException {
-        if (withoutDecryption || secretKeySpec == null) {
+        if (!withoutDecryption && secretKeySpec == null) {
+            PushbackReader pushbackReader = new PushbackReader(reader);
+            int firstChar = pushbackReader.read();
+            if (firstChar >= 0) {
+                pushbackReader.unread(firstChar);
+            }
+            // Unencrypted MessagePack records need to be read as binary
+            withoutDecryption = firstChar != TEXT_RECORD_MARKER;
+            reader = pushbackReader;
+        }
+
+        if (withoutDecryption) {
             try {
                 return json.mapFrom(reader);
             } catch (Exception e) {
@@ -61,17 +128,32 @@ class TDJsonHandler implements KeenJsonHandler {
             }
         }
         else {
-            BufferedReader bufferedReader = new BufferedReader(reader);
             StringBuilder buf = new StringBuilder();
-            while (true) {
-                String line = bufferedReader.readLine();
-                if (line == null)
-                    break;
-
-                buf.append(line).append("\n");
+            char[] chars = new char[1024];
+            int len;
+            while ((len = reader.read(chars)) > 0) {
+                buf.append(chars, 0, len);
             }
 
             String data = buf.toString();
+            if (data.length() > 0 && data.charAt(0) == TEXT_RECORD_MARKER) {
+                byte[] record = decodeTextRecord(data);
+                if (record == null) {
+                    Log.w(TAG, "This event can't be decoded as a binary record");
+                    return null;
+                }
+                return readBinaryRecord(record);
+            }
+
+            if (secretKeySpec == null) {
+                try {
+                    return json.mapFrom(data);
+                } catch (Exception e) {
+                    Log.w(TAG, "This event can't be handled as a plain", e);
+                    return null;
+                }
+            }
+
             try {
                 byte[] decryptedBytes = decrypt(base64Encoder.decode(data));
                 return json.mapFrom(new String(decryptedBytes, UTF8));
@@ -87,49 +169,420 @@ class TDJsonHandler implements KeenJsonHandler {
         }
     }
 
+    /**
+     * Reads a record stored by {@link TDEventStore}, in any format written by {@link #toRecord(TDEvent)}
+     * or {@link #writeJson(Writer, Map)}.
+     *
+     * @return null if the record can't be read
+     */
+    Map<String, Object> readRecord(ByteBuffer record) throws IOException {
+        if (record.hasRemaining() && record.get(record.position()) == BINARY_RECORD_MARKER) {
+            byte[] bytes = new byte[record.remaining()];
+            record.duplicate().get(bytes);
+            return readBinaryRecord(bytes);
+        }
+        return readJson(new StringReader(UTF8.decode(record.duplicate()).toString()));
+    }
+
+    private Map<String, Object> readBinaryRecord(byte[] record) {
+        byte version = record.length > 1 ? record[1] : -1;
+        if (version == RECORD_VERSION_MESSAGE_PACK) {
+            try {
+                return readMessagePack(new ByteArrayInputStream(record, RECORD_HEADER_LENGTH, record.length - RECORD_HEADER_LENGTH));
+            } catch (Exception e) {
+                Log.w(TAG, "This event can't be handled as MessagePack", e);
+                return null;
+            }
+        }
+
+        if (record.length < RECORD_HEADER_LENGTH + GCM_NONCE_LENGTH ||
+                (version != RECORD_VERSION_AES_GCM && version != RECORD_VERSION_AES_GCM_MESSAGE_PACK)) {
+            Log.w(TAG, "Unknown record format: length=" + record.length + ", version=" + version);
+            return null;
+        }
+        SecretKeySpec keySpec = getRecordKeySpec();
+        if (keySpec == null) {
+            Log.w(TAG, "This event can't be decrypted without the encryption key or AES/GCM");
+            return null;
+        }
+
+        // The whole record is in memory, so it's decrypted at once. CipherInputStream of some versions
+        // ignores AEADBadTagException at the end of the stream
+        byte[] decryptedBytes;
+        try {
+            Cipher cipher = getRecordCipher(Cipher.DECRYPT_MODE, keySpec, record, RECORD_HEADER_LENGTH);
+            cipher.updateAAD(record, 0, RECORD_HEADER_LENGTH);
+            int offset = RECORD_HEADER_LENGTH + GCM_NONCE_LENGTH;
+            decryptedBytes = cipher.doFinal(record, offset, record.length - offset);
+        } catch (Exception e) {
+            Log.w(TAG, "Decryption failed. This event is corrupted or encrypted with another key", e);
+            recordCiphers.remove();
+            return null;
+        }
+
+        try {
+            InputStream in = new ByteArrayInputStream(decryptedBytes);
+            if (version == RECORD_VERSION_AES_GCM_MESSAGE_PACK) {
+                return readMessagePack(in);
+            }
+            return json.mapFrom(in);
+        } catch (Exception e) {
+            Log.w(TAG, "This event can't be handled after decryption", e);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readMessagePack(InputStream in) throws IOException {
+        Object value = TDMessagePack.read(in);
+        if (!(value instanceof Map)) {
+            throw new IOException("Not a map: " + (value == null ? null : value.getClass()));
+        }
+        return (Map<String, Object>) value;
+    }
+
+    /**
+     * @return true to write events in MessagePack instead of JSON text
+     */
+    boolean writesMessagePack() {
+        return false;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void writeJson(Writer writer, Map<String, ?> value) throws IOException {
-        writeJson(writer, value, false);
+        writeRecord(writer, new MapBody(value), false);
     }
 
     @Override
     public void writeJsonWithoutEncryption(Writer writer, Map<String, ?> value) throws IOException {
-        writeJson(writer, value, true);
+        writeRecord(writer, new MapBody(value), true);
+    }
+
+    /**
+     * Writes a {@link TDEvent} in the same format as {@link #writeJson(Writer, Map)}.
+     */
+    void writeEvent(Writer writer, TDEvent event) throws IOException {
+        writeRecord(writer, new EventBody(event), false);
     }
 
-    private void writeJson(Writer writer, Map<String, ?> value, boolean withoutEncryption) throws IOException {
-        if (withoutEncryption || secretKeySpec == null) {
-            writer.append(json.asString(value));
+    /**
+     * @return the record of the Map to store as is
+     */
+    byte[] toRecord(Map<String, ?> value) throws IOException {
+        return toRecord(new MapBody(value));
+    }
+
+    /**
+     * @return the record of the {@link TDEvent} to store as is
+     */
+    byte[] toRecord(TDEvent event) throws IOException {
+        return toRecord(new EventBody(event));
+    }
+
+    private void writeRecord(Writer writer, Body value, boolean withoutEncryption) throws IOException {
+        if (withoutEncryption || (secretKeySpec == null && !writesMessagePack())) {
+            writer.append(value.asJsonString());
         }
         else {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(byteArrayOutputStream));
-            bufferedWriter.append(json.asString(value));
-            bufferedWriter.close();
+            byte[] record = toRecord(value);
+            if (record.length > 0 && record[0] == BINARY_RECORD_MARKER) {
+                writer.append(TEXT_RECORD_MARKER).append(base64Encoder.encode(record));
+            }
+            else {
+                // JSON, or Base64 of the legacy format
+                writer.append(new String(record, UTF8));
+            }
+        }
+        writer.close();
+    }
+
+    private byte[] toRecord(Body value) throws IOException {
+        if (secretKeySpec == null) {
+            if (writesMessagePack()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(BINARY_RECORD_MARKER);
+                out.write(RECORD_VERSION_MESSAGE_PACK);
+                value.writeMessagePack(out);
+                return out.toByteArray();
+            }
+            return value.asJsonBytes();
+        }
+        else {
+            SecretKeySpec keySpec = getRecordKeySpec();
+            if (keySpec != null) {
+                return toBinaryRecord(keySpec, value);
+            }
+            return toLegacyRecord(value);
+        }
+    }
+
+    private byte[] toBinaryRecord(SecretKeySpec keySpec, Body value) throws IOException {
+        byte[] header = new byte[RECORD_HEADER_LENGTH + GCM_NONCE_LENGTH];
+        header[0] = BINARY_RECORD_MARKER;
+        header[1] = writesMessagePack() ? RECORD_VERSION_AES_GCM_MESSAGE_PACK : RECORD_VERSION_AES_GCM;
+        byte[] nonce = new byte[GCM_NONCE_LENGTH];
+        SECURE_RANDOM.nextBytes(nonce);
+        System.arraycopy(nonce, 0, header, RECORD_HEADER_LENGTH, GCM_NONCE_LENGTH);
+
+        Cipher cipher;
+        try {
+            cipher = getRecordCipher(Cipher.ENCRYPT_MODE, keySpec, header, RECORD_HEADER_LENGTH);
+            cipher.updateAAD(header, 0, RECORD_HEADER_LENGTH);
+        } catch (Exception e) {
+            Log.w(TAG, "Encryption failed. Storing this event as a plain", e);
+            recordCiphers.remove();
+            secretKeySpec = null;
+            return value.asJsonBytes();
+        }
+
+        // JSON or MessagePack -> AES/GCM -> bytes in one pass. Closing the generator finishes the cipher
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        try {
+            if (writesMessagePack()) {
+                OutputStream cipherOutputStream = new CipherOutputStream(new BufferedOutputStream(out), cipher);
+                value.writeMessagePack(cipherOutputStream);
+                cipherOutputStream.close();
+            }
+            else {
+                value.writeJson(new CipherOutputStream(out, cipher));
+            }
+        } catch (IOException e) {
+            recordCiphers.remove();
+            throw e;
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] toLegacyRecord(Body value) throws IOException {
+        Cipher cipher = null;
+        try {
+            cipher = getCipher(encryptCiphers, Cipher.ENCRYPT_MODE);
+        } catch (Exception e) {
+            Log.w(TAG, "Encryption failed. Storing this event as a plain", e);
+            secretKeySpec = null;
+        }
+
+        if (cipher == null) {
+            return value.asJsonBytes();
+        }
+        else if (base64Encoder == DEFAULT_BASE64_ENCODER) {
+            // JSON -> AES -> Base64 -> bytes in one pass. Closing the generator finishes the cipher and Base64
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OutputStream base64OutputStream = new Base64OutputStream(out, Base64.DEFAULT);
             try {
-                byte[] encryptedBytes = encrypt(byteArrayOutputStream.toByteArray());
-                String base64 = base64Encoder.encode(encryptedBytes);
-                writer.write(base64);
-            } catch (Exception e) {
+                value.writeJson(new CipherOutputStream(base64OutputStream, cipher));
+            } catch (IOException e) {
+                // The cipher may be left in the middle of an operation
+                encryptCiphers.remove();
+                throw e;
+            }
+            return out.toByteArray();
+        }
+        else {
+            try {
+                byte[] encryptedBytes = cipher.doFinal(value.asJsonBytes());
+                return base64Encoder.encode(encryptedBytes).getBytes(UTF8);
+            } catch (GeneralSecurityException e) {
                 Log.w(TAG, "Encryption failed. Storing this event as a plain", e);
+                encryptCiphers.remove();
                 secretKeySpec = null;
-                writer.append(json.asString(value));
+                return value.asJsonBytes();
             }
         }
-        writer.close();
     }
 
-    private byte[] encrypt(byte[] data) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec);
-        return cipher.doFinal(data);
+    /**
+     * Stores binary records written to a Writer as raw bytes.
+     */
+    @Override
+    public byte[] encodeEvent(String event) {
+        if (event.length() > 0 && event.charAt(0) == TEXT_RECORD_MARKER) {
+            byte[] record = decodeTextRecord(event);
+            if (record != null) {
+                return record;
+            }
+        }
+        return event.getBytes(UTF8);
     }
 
-    private byte[] decrypt(byte[] encData) throws InvalidKeyException, BadPaddingException, IllegalBlockSizeException {
-        cipher.init(Cipher.DECRYPT_MODE, secretKeySpec);
-        return cipher.doFinal(encData);
+    /**
+     * The reverse of {@link #encodeEvent(String)}.
+     */
+    @Override
+    public String decodeEvent(ByteBuffer event) {
+        if (event.hasRemaining() && event.get(event.position()) == BINARY_RECORD_MARKER) {
+            byte[] record = new byte[event.remaining()];
+            event.get(record);
+            return TEXT_RECORD_MARKER + base64Encoder.encode(record);
+        }
+        return UTF8.decode(event).toString();
+    }
+
+    /**
+     * @return null if the text isn't a binary record
+     */
+    private byte[] decodeTextRecord(String data) {
+        byte[] record;
+        try {
+            record = base64Encoder.decode(data.substring(1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (record == null || record.length == 0 || record[0] != BINARY_RECORD_MARKER) {
+            return null;
+        }
+        return record;
+    }
+
+    private byte[] decrypt(byte[] encData) throws GeneralSecurityException {
+        try {
+            return getCipher(decryptCiphers, Cipher.DECRYPT_MODE).doFinal(encData);
+        } catch (GeneralSecurityException e) {
+            // Not all the providers reset the cipher on failure
+            decryptCiphers.remove();
+            throw e;
+        }
+    }
+
+    private Cipher getCipher(ThreadLocal<Cipher> ciphers, int mode) throws GeneralSecurityException {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+            cipher.init(mode, secretKeySpec);
+            ciphers.set(cipher);
+        }
+        return cipher;
+    }
+
+    private Cipher getRecordCipher(int mode, SecretKeySpec keySpec, byte[] nonce, int nonceOffset) throws GeneralSecurityException {
+        Cipher cipher = recordCiphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            recordCiphers.set(cipher);
+        }
+        cipher.init(mode, keySpec, new GCMParameterSpec(GCM_TAG_BITS, nonce, nonceOffset, GCM_NONCE_LENGTH));
+        return cipher;
+    }
+
+    private static boolean isUpdateAADAvailable() {
+        try {
+            Cipher.class.getMethod("updateAAD", byte[].class, int.class, int.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Derives the key of the binary record format on the first call, which takes a while.
+     * {@link TDClient} calls this in the background beforehand.
+     *
+     * @return null if the binary record format isn't available
+     */
+    SecretKeySpec getRecordKeySpec() {
+        SecretKeySpec keySpec = recordKeySpec;
+        if (keySpec != null || recordKeyUnavailable) {
+            return keySpec;
+        }
+        synchronized (recordKeyLock) {
+            if (recordKeySpec == null && !recordKeyUnavailable) {
+                try {
+                    byte[] salt = saltFile == null ? DEFAULT_SALT : loadSalt(saltFile);
+                    PBEKeySpec pbeKeySpec = new PBEKeySpec(encryptionKeyword.toCharArray(), salt, KEY_DERIVATION_ITERATIONS, KEY_BITS);
+                    byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(pbeKeySpec).getEncoded();
+                    Cipher.getInstance("AES/GCM/NoPadding");
+                    recordKeySpec = new SecretKeySpec(key, "AES");
+                } catch (Exception e) {
+                    Log.w(TAG, "AES/GCM or its key isn't available. Using the legacy encryption format", e);
+                    recordKeyUnavailable = true;
+                }
+            }
+            return recordKeySpec;
+        }
+    }
+
+    /**
+     * Event to write, either a Map or a {@link TDEvent}.
+     */
+    private abstract static class Body {
+        abstract String asJsonString() throws IOException;
+
+        abstract byte[] asJsonBytes() throws IOException;
+
+        /**
+         * Writes JSON and closes the stream.
+         */
+        abstract void writeJson(OutputStream out) throws IOException;
+
+        abstract void writeMessagePack(OutputStream out) throws IOException;
+    }
+
+    private class MapBody extends Body {
+        private final Map<String, ?> value;
+
+        MapBody(Map<String, ?> value) {
+            this.value = value;
+        }
+
+        @Override
+        String asJsonString() throws IOException {
+            return json.asString(value);
+        }
+
+        @Override
+        byte[] asJsonBytes() throws IOException {
+            return json.asBytes(value);
+        }
+
+        @Override
+        void writeJson(OutputStream out) throws IOException {
+            json.write(value, out);
+        }
+
+        @Override
+        void writeMessagePack(OutputStream out) throws IOException {
+            TDMessagePack.write(out, value);
+        }
+    }
+
+    private class EventBody extends Body {
+        private final TDEvent event;
+
+        EventBody(TDEvent event) {
+            this.event = event;
+        }
+
+        @Override
+        String asJsonString() throws IOException {
+            StringWriter writer = new StringWriter();
+            JsonGenerator generator = json.getStreamingFactory().createGenerator(writer);
+            event.writeJson(generator);
+            generator.close();
+            return writer.toString();
+        }
+
+        @Override
+        byte[] asJsonBytes() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeJson(out);
+            return out.toByteArray();
+        }
+
+        @Override
+        void writeJson(OutputStream out) throws IOException {
+            JsonGenerator generator = json.getStreamingFactory().createGenerator(out, JsonEncoding.UTF8);
+            event.writeJson(generator);
+            generator.close();
+        }
+
+        @Override
+        void writeMessagePack(OutputStream out) throws IOException {
+            event.writeMessagePack(out);
+        }
     }
 
     ///// DEFAULT ACCESS CONSTRUCTORS /////
@@ -143,20 +596,28 @@ class TDJsonHandler implements KeenJsonHandler {
 
     // Exposing this API for testing
     TDJsonHandler(String encryptionKeyword, Base64Encoder base64Encoder) {
-        SecretKeySpec secretKeySpec = null;
-        Cipher cipher = null;
+        this(encryptionKeyword, null, base64Encoder);
+    }
+
+    /**
+     * @param saltFile file to keep the salt of the key derivation, which is created if it doesn't exist
+     */
+    TDJsonHandler(String encryptionKeyword, File saltFile, Base64Encoder base64Encoder) {
+        this.encryptionKeyword = encryptionKeyword;
+        this.saltFile = saltFile;
         if (encryptionKeyword != null) {
             try {
                 MessageDigest digester = MessageDigest.getInstance("MD5");
                 digester.update(encryptionKeyword.getBytes(), 0, encryptionKeyword.getBytes().length);
-                secretKeySpec = new SecretKeySpec(digester.digest(), "AES");
-                cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+                this.secretKeySpec = new SecretKeySpec(digester.digest(), "AES");
+                // Make sure that the cipher is available
+                getCipher(encryptCiphers, Cipher.ENCRYPT_MODE);
             } catch (Exception e) {
                 e.printStackTrace();
+                this.secretKeySpec = null;
             }
         }
-        this.secretKeySpec = secretKeySpec;
-        this.cipher = cipher;
+        this.recordKeyUnavailable = secretKeySpec == null || !BINARY_RECORD_AVAILABLE;
         if (base64Encoder == null) {
             this.base64Encoder = DEFAULT_BASE64_ENCODER;
         }
@@ -168,7 +629,44 @@ class TDJsonHandler implements KeenJsonHandler {
     }
 
     TDJsonHandler(String encryptionKeyword) {
-        this(encryptionKeyword, null);
+        this(encryptionKeyword, null, null);
+    }
+
+    TDJsonHandler(String encryptionKeyword, File saltFile) {
+        this(encryptionKeyword, saltFile, null);
+    }
+
+    /**
+     * Reads the salt, or generates and saves it on the first call. Records encrypted before the salt
+     * was lost can't be decrypted any more.
+     */
+    private static synchronized byte[] loadSalt(File saltFile) throws IOException {
+        if (saltFile.exists()) {
+            DataInputStream in = new DataInputStream(new FileInputStream(saltFile));
+            try {
+                byte[] salt = new byte[SALT_LENGTH];
+                in.readFully(salt);
+                return salt;
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        byte[] salt = new byte[SALT_LENGTH];
+        SECURE_RANDOM.nextBytes(salt);
+        File tmpFile = new File(saltFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmpFile);
+        try {
+            out.write(salt);
+        }
+        finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(saltFile)) {
+            throw new IOException("Failed to rename " + tmpFile + " to " + saltFile);
+        }
+        return salt;
     }
 
     ///// PRIVATE CONSTANTS /////
@@ -177,4 +675,3 @@ class TDJsonHandler implements KeenJsonHandler {
 
     private final JSON json;
 }
-
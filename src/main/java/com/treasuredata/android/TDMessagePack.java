@@ -0,0 +1,433 @@
+package com.treasuredata.android;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal MessagePack encoder and decoder for events.
+ *
+ * Values are mapped the same way as {@link CustomizedJSON} writes them: null values in maps are
+ * skipped, floats are written as float32, dates are formatted strings, and UUID, URL, URI, enums
+ * and other unknown objects are written as their string representation. BigDecimal values are
+ * written as strings as well, since MessagePack has no exact decimal type. Only the types needed
+ * for events are supported (no ext types).
+ */
+class TDMessagePack {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private TDMessagePack() {
+    }
+
+    static void write(OutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.write(0xc0);
+        }
+        else if (value instanceof String) {
+            writeString(out, (String) value);
+        }
+        else if (value instanceof Boolean) {
+            writeBoolean(out, (Boolean) value);
+        }
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            writeLong(out, ((Number) value).longValue());
+        }
+        else if (value instanceof Double) {
+            writeDouble(out, (Double) value);
+        }
+        else if (value instanceof Float) {
+            writeFloat(out, (Float) value);
+        }
+        else if (value instanceof BigDecimal) {
+            writeString(out, value.toString());
+        }
+        else if (value instanceof BigInteger) {
+            BigInteger bigInteger = (BigInteger) value;
+            if (bigInteger.bitLength() < 64) {
+                writeLong(out, bigInteger.longValue());
+            }
+            else {
+                writeString(out, bigInteger.toString());
+            }
+        }
+        else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            int size = 0;
+            for (Object element : map.values()) {
+                if (element != null) {
+                    size++;
+                }
+            }
+            writeMapHeader(out, size);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                if (entry.getValue() != null) {
+                    writeString(out, String.valueOf(entry.getKey()));
+                    write(out, entry.getValue());
+                }
+            }
+        }
+        else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            writeArrayHeader(out, collection.size());
+            for (Object element : collection) {
+                write(out, element);
+            }
+        }
+        else if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            writeArrayHeader(out, length);
+            for (int i = 0; i < length; i++) {
+                write(out, Array.get(value, i));
+            }
+        }
+        else if (value instanceof Date) {
+            writeString(out, TDDateFormatter.formatDate((Date) value));
+        }
+        else if (value instanceof Enum) {
+            writeString(out, ((Enum<?>) value).name());
+        }
+        else {
+            writeString(out, value.toString());
+        }
+    }
+
+    static void writeString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        if (bytes.length < 32) {
+            out.write(0xa0 | bytes.length);
+        }
+        else if (bytes.length < 0x100) {
+            out.write(0xd9);
+            out.write(bytes.length);
+        }
+        else if (bytes.length < 0x10000) {
+            out.write(0xda);
+            writeShort(out, bytes.length);
+        }
+        else {
+            out.write(0xdb);
+            writeInt(out, bytes.length);
+        }
+        out.write(bytes);
+    }
+
+    static void writeBoolean(OutputStream out, boolean value) throws IOException {
+        out.write(value ? 0xc3 : 0xc2);
+    }
+
+    static void writeFloat(OutputStream out, float value) throws IOException {
+        out.write(0xca);
+        writeInt(out, Float.floatToIntBits(value));
+    }
+
+    static void writeDouble(OutputStream out, double value) throws IOException {
+        out.write(0xcb);
+        writeLong64(out, Double.doubleToLongBits(value));
+    }
+
+    static void writeLong(OutputStream out, long value) throws IOException {
+        if (value >= -32 && value < 128) {
+            out.write((int) value & 0xff);
+        }
+        else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            out.write(0xd2);
+            writeInt(out, (int) value);
+        }
+        else {
+            out.write(0xd3);
+            writeLong64(out, value);
+        }
+    }
+
+    static void writeMapHeader(OutputStream out, int size) throws IOException {
+        writeHeader(out, size, 0x80, 0xde, 0xdf);
+    }
+
+    static void writeArrayHeader(OutputStream out, int size) throws IOException {
+        writeHeader(out, size, 0x90, 0xdc, 0xdd);
+    }
+
+    private static void writeHeader(OutputStream out, int size, int fixType, int type16, int type32) throws IOException {
+        if (size < 16) {
+            out.write(fixType | size);
+        }
+        else if (size < 0x10000) {
+            out.write(type16);
+            writeShort(out, size);
+        }
+        else {
+            out.write(type32);
+            writeInt(out, size);
+        }
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write((value >>> 8) & 0xff);
+        out.write(value & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        writeShort(out, value >>> 16);
+        writeShort(out, value);
+    }
+
+    private static void writeLong64(OutputStream out, long value) throws IOException {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+
+    /**
+     * Reads a value written by {@link #write(OutputStream, Object)}. Integers are returned as Integer or Long,
+     * like jackson-jr reads JSON, and floating point numbers as Float or Double as they were written.
+     */
+    static Object read(InputStream in) throws IOException {
+        return read(new Source(in));
+    }
+
+    private static Object read(Source in) throws IOException {
+        int type = in.readByte();
+        if (type <= 0x7f) {
+            return type;
+        }
+        if (type >= 0xe0) {
+            return type - 0x100;
+        }
+        if ((type & 0xe0) == 0xa0) {
+            return in.readString(type & 0x1f);
+        }
+        if ((type & 0xf0) == 0x90) {
+            return readList(in, type & 0x0f);
+        }
+        if ((type & 0xf0) == 0x80) {
+            return readMap(in, type & 0x0f);
+        }
+        switch (type) {
+            case 0xc0:
+                return null;
+            case 0xc2:
+                return false;
+            case 0xc3:
+                return true;
+            case 0xca:
+                return Float.intBitsToFloat(in.readInt());
+            case 0xcb:
+                return Double.longBitsToDouble(in.readLong());
+            case 0xcc:
+                return in.readByte();
+            case 0xcd:
+                return in.readShort();
+            case 0xce:
+                return toNumber(in.readInt() & 0xffffffffL);
+            case 0xcf: {
+                long value = in.readLong();
+                return value >= 0 ? toNumber(value) : BigInteger.valueOf(value).add(BigInteger.ONE.shiftLeft(64));
+            }
+            case 0xd0:
+                return (int) (byte) in.readByte();
+            case 0xd1:
+                return (int) (short) in.readShort();
+            case 0xd2:
+                return in.readInt();
+            case 0xd3:
+                return toNumber(in.readLong());
+            case 0xd9:
+                return in.readString(in.readByte());
+            case 0xda:
+                return in.readString(in.readShort());
+            case 0xdb:
+                return in.readString(in.readInt());
+            case 0xdc:
+                return readList(in, in.readShort());
+            case 0xdd:
+                return readList(in, in.readInt());
+            case 0xde:
+                return readMap(in, in.readShort());
+            case 0xdf:
+                return readMap(in, in.readInt());
+            default:
+                throw new IOException("Unsupported MessagePack type: " + type);
+        }
+    }
+
+    private static Object toNumber(long value) {
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    private static List<Object> readList(Source in, int size) throws IOException {
+        List<Object> list = new ArrayList<Object>(Math.min(size, 1024));
+        for (int i = 0; i < size; i++) {
+            list.add(read(in));
+        }
+        return list;
+    }
+
+    private static Map<String, Object> readMap(Source in, int size) throws IOException {
+        Map<String, Object> map = new LinkedHashMap<String, Object>(Math.min(size, 1024) * 2);
+        for (int i = 0; i < size; i++) {
+            map.put(String.valueOf(read(in)), read(in));
+        }
+        return map;
+    }
+
+    /**
+     * Writes a MessagePack value as JSON without building maps. The buffer's position is advanced.
+     */
+    static void transcodeToJson(ByteBuffer in, JsonGenerator generator) throws IOException {
+        transcodeToJson(new Source(in), generator);
+    }
+
+    private static void transcodeToJson(Source in, JsonGenerator generator) throws IOException {
+        int type = in.peekByte();
+        int size;
+        if ((type & 0xf0) == 0x80 || type == 0xde || type == 0xdf) {
+            in.readByte();
+            size = type == 0xde ? in.readShort() : type == 0xdf ? in.readInt() : type & 0x0f;
+            generator.writeStartObject();
+            for (int i = 0; i < size; i++) {
+                generator.writeFieldName(String.valueOf(read(in)));
+                transcodeToJson(in, generator);
+            }
+            generator.writeEndObject();
+        }
+        else if ((type & 0xf0) == 0x90 || type == 0xdc || type == 0xdd) {
+            in.readByte();
+            size = type == 0xdc ? in.readShort() : type == 0xdd ? in.readInt() : type & 0x0f;
+            generator.writeStartArray();
+            for (int i = 0; i < size; i++) {
+                transcodeToJson(in, generator);
+            }
+            generator.writeEndArray();
+        }
+        else {
+            Object value = read(in);
+            if (value == null) {
+                generator.writeNull();
+            }
+            else if (value instanceof String) {
+                generator.writeString((String) value);
+            }
+            else if (value instanceof Boolean) {
+                generator.writeBoolean((Boolean) value);
+            }
+            else if (value instanceof Integer) {
+                generator.writeNumber((Integer) value);
+            }
+            else if (value instanceof Long) {
+                generator.writeNumber((Long) value);
+            }
+            else if (value instanceof Double) {
+                generator.writeNumber((Double) value);
+            }
+            else if (value instanceof Float) {
+                generator.writeNumber((Float) value);
+            }
+            else if (value instanceof BigInteger) {
+                generator.writeNumber((BigInteger) value);
+            }
+            else {
+                throw new IOException("Unexpected value: " + value.getClass());
+            }
+        }
+    }
+
+    /**
+     * Reads either from an InputStream or a ByteBuffer.
+     */
+    private static class Source {
+        private final InputStream in;
+        private final ByteBuffer buffer;
+        private int peeked = -1;
+
+        Source(InputStream in) {
+            this.in = in;
+            this.buffer = null;
+        }
+
+        Source(ByteBuffer buffer) {
+            this.in = null;
+            this.buffer = buffer;
+        }
+
+        int peekByte() throws IOException {
+            if (peeked < 0) {
+                peeked = readByte();
+            }
+            return peeked;
+        }
+
+        int readByte() throws IOException {
+            if (peeked >= 0) {
+                int b = peeked;
+                peeked = -1;
+                return b;
+            }
+            if (buffer != null) {
+                if (!buffer.hasRemaining()) {
+                    throw new EOFException();
+                }
+                return buffer.get() & 0xff;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        int readShort() throws IOException {
+            return (readByte() << 8) | readByte();
+        }
+
+        int readInt() throws IOException {
+            return (readShort() << 16) | readShort();
+        }
+
+        long readLong() throws IOException {
+            return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+        }
+
+        String readString(int length) throws IOException {
+            if (length < 0) {
+                throw new IOException("Too long string");
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            if (peeked >= 0 && length > 0) {
+                bytes[offset++] = (byte) readByte();
+            }
+            if (buffer != null) {
+                if (buffer.remaining() < length - offset) {
+                    throw new EOFException();
+                }
+                buffer.get(bytes, offset, length - offset);
+            }
+            else {
+                while (offset < length) {
+                    int len = in.read(bytes, offset, length - offset);
+                    if (len < 0) {
+                        throw new EOFException();
+                    }
+                    offset += len;
+                }
+            }
+            return new String(bytes, UTF8);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.treasuredata.android;
+
+import java.io.File;
+
+/**
+ * {@link TDJsonHandler} that stores events in MessagePack instead of JSON text.
+ *
+ * Records are smaller and quicker to write than JSON. {@link TDEventUploader} transcodes them into
+ * the JSON the endpoint expects without building maps, or sends them as is with the binary upload.
+ * Records written in any format can be read regardless of the handler.
+ */
+class TDMessagePackHandler extends TDJsonHandler {
+    TDMessagePackHandler(String encryptionKeyword) {
+        super(encryptionKeyword);
+    }
+
+    TDMessagePackHandler(String encryptionKeyword, File saltFile) {
+        super(encryptionKeyword, saltFile);
+    }
+
+    @Override
+    boolean writesMessagePack() {
+        return true;
+    }
+}
@@ -0,0 +1,136 @@
+package com.treasuredata.android;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Event record made of the event's own columns and a shared immutable template of columns
+ * common to all the events. The template isn't copied, so adding an event only allocates
+ * a map for its own columns.
+ *
+ * Columns of the template override the same columns given by the caller, and columns put
+ * after the construction override the template, like putting them in this order into a HashMap.
+ * Template columns can't be removed.
+ */
+class TDRecordOverlay extends AbstractMap<String, Object> {
+    private final Map<String, Object> template;
+    private final Map<String, Object> columns;
+    private Set<Entry<String, Object>> entrySet;
+
+    TDRecordOverlay(Map<String, Object> template, Map<String, Object> record) {
+        this.template = template;
+        this.columns = new HashMap<String, Object>();
+        if (record != null) {
+            for (Entry<String, Object> entry : record.entrySet()) {
+                if (!template.containsKey(entry.getKey())) {
+                    columns.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (columns.containsKey(key)) {
+            return columns.get(key);
+        }
+        return template.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return columns.containsKey(key) || template.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        if (columns.containsKey(key)) {
+            return columns.put(key, value);
+        }
+        columns.put(key, value);
+        return template.get(key);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        if (template.containsKey(key)) {
+            throw new UnsupportedOperationException("Can't remove a column of the template: " + key);
+        }
+        return columns.remove(key);
+    }
+
+    @Override
+    public int size() {
+        int size = columns.size();
+        for (String key : template.keySet()) {
+            if (!columns.containsKey(key)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<String, Object>>() {
+                @Override
+                public Iterator<Entry<String, Object>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return TDRecordOverlay.this.size();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private class EntryIterator implements Iterator<Entry<String, Object>> {
+        private final Iterator<Entry<String, Object>> columnIterator = columns.entrySet().iterator();
+        private final Iterator<Entry<String, Object>> templateIterator = template.entrySet().iterator();
+        private Entry<String, Object> next;
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (columnIterator.hasNext()) {
+                next = columnIterator.next();
+                return true;
+            }
+            while (templateIterator.hasNext()) {
+                Entry<String, Object> entry = templateIterator.next();
+                // Overridden by the event's own column
+                if (!columns.containsKey(entry.getKey())) {
+                    next = entry;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Entry<String, Object> entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.treasuredata.android;
+
+import org.komamitsu.android.util.Log;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when uploads are retried after the endpoint failed, so that devices don't keep sending
+ * requests to an endpoint that is unreachable or overloaded.
+ *
+ * After a failed upload, the next upload waits for an exponential backoff with jitter, or as long as
+ * the server asked with Retry-After if it's longer. After {@code circuitBreakerThreshold} uploads
+ * fail in a row, the circuit opens and uploads wait for {@code circuitOpenMillis}. Then a single upload
+ * is tried, which closes the circuit if it succeeds or opens it again if not.
+ *
+ * The state is saved to a file, so that it survives restarts of the app.
+ *
+ * Failures caused by events themselves are handled per event instead, see {@link #getMaxAttempts()}.
+ */
+class TDRetryPolicy {
+    private static final String TAG = TDRetryPolicy.class.getSimpleName();
+    static final long DEFAULT_BASE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    static final long DEFAULT_MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 8;
+    static final long DEFAULT_CIRCUIT_OPEN_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // Events are uploaded in halves after a failure, so this needs to be larger than log2(max upload events at once)
+    static final int DEFAULT_MAX_ATTEMPTS = 20;
+    private static final long MAX_RETRY_AFTER_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int STATE_VERSION = 1;
+
+    private final File stateFile;
+    private final Random random = new Random();
+    private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private int circuitBreakerThreshold = DEFAULT_CIRCUIT_BREAKER_THRESHOLD;
+    private long circuitOpenMillis = DEFAULT_CIRCUIT_OPEN_MILLIS;
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private int consecutiveFailures;
+    // Wall clock time, as it's saved
+    private long nextAttemptAt;
+
+    /**
+     * @param stateFile null not to save the state
+     */
+    TDRetryPolicy(File stateFile) {
+        this.stateFile = stateFile;
+        load();
+    }
+
+    synchronized void setBackoff(long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis < 1 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException(String.format("Invalid backoff: baseDelayMillis=%d, maxDelayMillis=%d", baseDelayMillis, maxDelayMillis));
+        }
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    synchronized void setCircuitBreaker(int threshold, long openMillis) {
+        if (threshold < 1 || openMillis < 1) {
+            throw new IllegalArgumentException(String.format("Invalid circuit breaker: threshold=%d, openMillis=%d", threshold, openMillis));
+        }
+        this.circuitBreakerThreshold = threshold;
+        this.circuitOpenMillis = openMillis;
+    }
+
+    void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive: " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return the number of failed attempts after which an event is quarantined
+     */
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return milliseconds until the next upload is allowed, or 0 if it's allowed now
+     */
+    synchronized long getDelayMillis() {
+        long now = System.currentTimeMillis();
+        long delay = nextAttemptAt - now;
+        if (delay <= 0) {
+            return 0;
+        }
+        long maxDelay = Math.max(MAX_RETRY_AFTER_MILLIS, circuitOpenMillis);
+        if (delay > maxDelay) {
+            // The clock was set back
+            nextAttemptAt = now + maxDelay;
+            return maxDelay;
+        }
+        return delay;
+    }
+
+    synchronized boolean isCircuitOpen() {
+        return consecutiveFailures >= circuitBreakerThreshold;
+    }
+
+    synchronized void onSuccess() {
+        if (consecutiveFailures == 0 && nextAttemptAt == 0) {
+            return;
+        }
+        consecutiveFailures = 0;
+        nextAttemptAt = 0;
+        save();
+    }
+
+    /**
+     * @param retryAfterMillis the delay the server asked for, or -1
+     * @return milliseconds until the next upload is allowed
+     */
+    synchronized long onFailure(long retryAfterMillis) {
+        consecutiveFailures++;
+        long delay;
+        if (isCircuitOpen()) {
+            if (consecutiveFailures == circuitBreakerThreshold) {
+                Log.w(TAG, String.format("Uploads failed %d times in a row. Uploads are paused for %d ms", consecutiveFailures, circuitOpenMillis));
+            }
+            delay = circuitOpenMillis;
+        }
+        else {
+            // Equal jitter: half of the backoff plus a random part, so that devices don't retry all at once
+            int shift = Math.min(consecutiveFailures - 1, Long.numberOfLeadingZeros(baseDelayMillis) - 2);
+            long backoff = Math.min(maxDelayMillis, baseDelayMillis << shift);
+            delay = backoff / 2 + (long) (random.nextDouble() * (backoff / 2 + 1));
+        }
+        if (retryAfterMillis > delay) {
+            delay = Math.min(retryAfterMillis, MAX_RETRY_AFTER_MILLIS);
+        }
+        nextAttemptAt = System.currentTimeMillis() + delay;
+        save();
+        return delay;
+    }
+
+    private void load() {
+        if (stateFile == null || !stateFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(stateFile));
+            if (in.readInt() != STATE_VERSION) {
+                return;
+            }
+            consecutiveFailures = in.readInt();
+            nextAttemptAt = in.readLong();
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Failed to read the retry state", e);
+        }
+        finally {
+            closeQuietly(in);
+        }
+    }
+
+    private void save() {
+        if (stateFile == null) {
+            return;
+        }
+        File tmpFile = new File(stateFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeInt(STATE_VERSION);
+            out.writeInt(consecutiveFailures);
+            out.writeLong(nextAttemptAt);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(stateFile)) {
+                throw new IOException("Failed to rename " + tmpFile + " to " + stateFile);
+            }
+        }
+        catch (IOException e) {
+            Log.w(TAG, "Failed to save the retry state", e);
+        }
+        finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        }
+        catch (IOException e) {
+            // Ignore
+        }
+    }
+}
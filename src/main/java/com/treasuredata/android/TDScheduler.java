@@ -0,0 +1,179 @@
+package com.treasuredata.android;
+
+import org.komamitsu.android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Threads of the SDK. Background work of the SDK runs on its own lanes instead of
+ * the executors of the app, like {@code AsyncTask.SERIAL_EXECUTOR}, so that the SDK and the app
+ * don't wait for each other's tasks.
+ *
+ * Each lane has a bounded queue. When it's full, {@code execute} throws {@link RejectedExecutionException}
+ * rather than running the task on the caller's thread, which can be the main thread. Idle threads exit
+ * after {@link #KEEP_ALIVE_SECONDS}, so lanes don't hold threads while the app doesn't use them.
+ *
+ * Lanes can be configured with {@link #configureLane(Lane, int, int)} before they're used,
+ * or replaced with an app's executor with {@link #setExecutor(Lane, Executor)}.
+ */
+public final class TDScheduler {
+    private static final String TAG = TDScheduler.class.getSimpleName();
+    static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Lane {
+        // Storing events and tracking app lifecycle events
+        INGESTION(1, 1024, Thread.NORM_PRIORITY),
+        // Uploading events
+        UPLOAD(1, 64, Thread.NORM_PRIORITY - 1),
+        // Additional requests of parallel uploads
+        UPLOAD_WORKER(4, 64, Thread.NORM_PRIORITY - 1),
+        // Profile API requests
+        CDP(1, 64, Thread.NORM_PRIORITY - 1),
+        // Reading in app purchases
+        BILLING(1, 64, Thread.MIN_PRIORITY);
+
+        private final int defaultThreads;
+        private final int defaultQueueCapacity;
+        private final int priority;
+
+        Lane(int defaultThreads, int defaultQueueCapacity, int priority) {
+            this.defaultThreads = defaultThreads;
+            this.defaultQueueCapacity = defaultQueueCapacity;
+            this.priority = priority;
+        }
+    }
+
+    // Indexed by Lane.ordinal(). Read without a lock since tasks are submitted often
+    private static final AtomicReferenceArray<Executor> executors = new AtomicReferenceArray<Executor>(Lane.values().length);
+    private static final Map<Lane, int[]> configurations = new EnumMap<Lane, int[]>(Lane.class);
+    private static final Map<Lane, Executor> laneExecutors = new EnumMap<Lane, Executor>(Lane.class);
+    private static ScheduledThreadPoolExecutor timer;
+
+    static {
+        for (final Lane lane : Lane.values()) {
+            laneExecutors.put(lane, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    getExecutor(lane).execute(command);
+                }
+            });
+        }
+    }
+
+    private TDScheduler() {
+    }
+
+    /**
+     * Returns an executor running tasks on the lane. It follows {@link #setExecutor(Lane, Executor)} called later.
+     */
+    public static Executor executor(Lane lane) {
+        return laneExecutors.get(lane);
+    }
+
+    /**
+     * Sets the number of threads and the queue capacity of the lane. This needs to be called before the lane is used.
+     */
+    public static synchronized void configureLane(Lane lane, int threads, int queueCapacity) {
+        if (threads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("threads and queueCapacity must be positive: threads=" + threads + ", queueCapacity=" + queueCapacity);
+        }
+        if (executors.get(lane.ordinal()) != null) {
+            Log.w(TAG, "Lane " + lane + " is already used. The configuration is ignored");
+            return;
+        }
+        configurations.put(lane, new int[] {threads, queueCapacity});
+    }
+
+    /**
+     * Runs the tasks of the lane on the given executor instead of the SDK's threads.
+     * Pass null to go back to the SDK's threads.
+     */
+    public static synchronized void setExecutor(Lane lane, Executor executor) {
+        Executor prev = executors.getAndSet(lane.ordinal(), executor);
+        if (prev instanceof LaneThreadPoolExecutor) {
+            // Queued tasks still run
+            ((LaneThreadPoolExecutor) prev).shutdown();
+        }
+    }
+
+    /**
+     * Returns the timer shared by the SDK. It has a single thread, so timer tasks need to be short.
+     */
+    static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "td-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            timer = executor;
+        }
+        return timer;
+    }
+
+    private static Executor getExecutor(Lane lane) {
+        Executor executor = executors.get(lane.ordinal());
+        if (executor != null) {
+            return executor;
+        }
+        synchronized (TDScheduler.class) {
+            executor = executors.get(lane.ordinal());
+            if (executor == null) {
+                executor = createExecutor(lane);
+                executors.set(lane.ordinal(), executor);
+            }
+            return executor;
+        }
+    }
+
+    private static class LaneThreadPoolExecutor extends ThreadPoolExecutor {
+        LaneThreadPoolExecutor(int threads, int queueCapacity, ThreadFactory threadFactory, RejectedExecutionHandler handler) {
+            super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueCapacity), threadFactory, handler);
+            allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private static Executor createExecutor(final Lane lane) {
+        int[] configuration = configurations.get(lane);
+        int threads = configuration == null ? lane.defaultThreads : configuration[0];
+        int queueCapacity = configuration == null ? lane.defaultQueueCapacity : configuration[1];
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "td-" + lane.name().toLowerCase(Locale.US) + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(lane.priority);
+                return thread;
+            }
+        };
+        RejectedExecutionHandler rejectedExecutionHandler = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                // Callers are told, so that callbacks waiting for the task don't wait forever
+                throw new RejectedExecutionException("Lane " + lane + " is full");
+            }
+        };
+        return new LaneThreadPoolExecutor(threads, queueCapacity, threadFactory, rejectedExecutionHandler);
+    }
+}
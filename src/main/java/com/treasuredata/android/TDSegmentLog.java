@@ -0,0 +1,329 @@
+package com.treasuredata.android;
+
+import org.komamitsu.android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log split into fixed-size segment files.
+ *
+ * Each record is stored as [payload length (int)][CRC32 of payload (int)][payload].
+ * A new segment is started once the active one would grow beyond {@code maxSegmentBytes}.
+ * Old segments are never modified, they're only deleted as a whole by the owner of the log,
+ * which moves the records still needed to the active segment beforehand.
+ *
+ * Appended records are written to the file at once, so they survive the process being killed.
+ * They're forced to the storage, which they need to survive a crash of the OS, only by {@link #sync()}
+ * and when a segment is finished, so that the owner can sync many records together.
+ */
+class TDSegmentLog implements Closeable {
+    private static final String TAG = TDSegmentLog.class.getSimpleName();
+    static final int DEFAULT_MAX_SEGMENT_BYTES = 1024 * 1024;
+    static final int RECORD_HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    interface RecordVisitor {
+        void onRecord(long segmentId, int offset, byte[] payload) throws IOException;
+    }
+
+    private final File dir;
+    private final int maxSegmentBytes;
+    private final List<Long> segmentIds = new ArrayList<Long>();
+    private final CRC32 crc32 = new CRC32();
+    private long activeSegmentId;
+    private FileChannel activeChannel;
+    private int activeSize;
+    // The bytes of all the segment files
+    private long totalBytes;
+    // Whether records are appended since the last sync
+    private boolean unsynced;
+
+    // The last segment read is kept memory-mapped, so that draining a segment doesn't copy it into the heap
+    private long mappedSegmentId = -1;
+    private ByteBuffer mappedSegment;
+
+    TDSegmentLog(File dir) throws IOException {
+        this(dir, DEFAULT_MAX_SEGMENT_BYTES);
+    }
+
+    TDSegmentLog(File dir, int maxSegmentBytes) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create a directory: " + dir);
+        }
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    segmentIds.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    totalBytes += file.length();
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Ignoring an unexpected file: " + file);
+                }
+            }
+        }
+        Collections.sort(segmentIds);
+    }
+
+    /**
+     * Reads all the records in order, truncating a torn or corrupted tail of each segment.
+     * This must be called once before any {@link #append(byte[])}.
+     */
+    synchronized void replay(RecordVisitor visitor) throws IOException {
+        for (long segmentId : segmentIds) {
+            byte[] segment = readSegment(segmentId);
+            int offset = 0;
+            while (offset < segment.length) {
+                byte[] payload = parseRecord(segment, offset);
+                if (payload == null) {
+                    Log.w(TAG, "Truncating a broken record: segment=" + segmentId + ", offset=" + offset);
+                    truncate(segmentId, offset);
+                    totalBytes -= segment.length - offset;
+                    break;
+                }
+                visitor.onRecord(segmentId, offset, payload);
+                offset += RECORD_HEADER_SIZE + payload.length;
+            }
+        }
+
+        if (segmentIds.isEmpty()) {
+            openSegment(0);
+        }
+        else {
+            long lastSegmentId = segmentIds.get(segmentIds.size() - 1);
+            activeSegmentId = lastSegmentId;
+            activeChannel = new FileOutputStream(segmentFile(lastSegmentId), true).getChannel();
+            activeSize = (int) activeChannel.size();
+        }
+    }
+
+    synchronized long getActiveSegmentId() {
+        return activeSegmentId;
+    }
+
+    /**
+     * @return the offset of the appended record in the active segment, see {@link #getActiveSegmentId()}
+     */
+    synchronized int append(byte[] payload) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (activeSize > 0 && activeSize + recordSize > maxSegmentBytes) {
+            finishSegment();
+        }
+
+        crc32.reset();
+        crc32.update(payload, 0, payload.length);
+        ByteBuffer buffer = ByteBuffer.allocate(recordSize);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc32.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            activeChannel.write(buffer);
+        }
+
+        int offset = activeSize;
+        activeSize += recordSize;
+        totalBytes += recordSize;
+        unsynced = true;
+        return offset;
+    }
+
+    /**
+     * Finishes the active segment and starts a new one, so that the finished one can be deleted.
+     */
+    synchronized void startSegment() throws IOException {
+        if (activeSize > 0) {
+            finishSegment();
+        }
+    }
+
+    private void finishSegment() throws IOException {
+        // Always, since sync() may be forcing it without the lock
+        activeChannel.force(false);
+        unsynced = false;
+        activeChannel.close();
+        openSegment(activeSegmentId + 1);
+    }
+
+    /**
+     * @return the bytes of all the segment files
+     */
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Forces appended records to the storage. Records can be appended while this is waiting for the storage.
+     */
+    void sync() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (!unsynced || activeChannel == null) {
+                return;
+            }
+            channel = activeChannel;
+            unsynced = false;
+        }
+        try {
+            channel.force(false);
+        }
+        catch (ClosedChannelException e) {
+            // The segment was finished, which forced it, or the log was closed
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                unsynced = true;
+            }
+            throw e;
+        }
+    }
+
+    synchronized byte[] read(long segmentId, int offset) throws IOException {
+        ByteBuffer buffer = readPayload(segmentId, offset);
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+        return payload;
+    }
+
+    /**
+     * Returns a read-only view of a record payload in the memory-mapped segment.
+     * CRC of records is verified in {@link #replay(RecordVisitor)}, so it's not checked here.
+     */
+    synchronized ByteBuffer readPayload(long segmentId, int offset) throws IOException {
+        if (mappedSegmentId != segmentId || mappedSegment == null || offset + RECORD_HEADER_SIZE > mappedSegment.limit()) {
+            mappedSegment = mapSegment(segmentId);
+            mappedSegmentId = segmentId;
+        }
+        ByteBuffer segment = mappedSegment;
+        if (offset < 0 || offset + RECORD_HEADER_SIZE > segment.limit()) {
+            throw new IOException("Record not found: segment=" + segmentId + ", offset=" + offset);
+        }
+        int length = segment.getInt(offset);
+        if (length < 0 || offset + RECORD_HEADER_SIZE + length > segment.limit()) {
+            throw new IOException("Broken record: segment=" + segmentId + ", offset=" + offset);
+        }
+        ByteBuffer payload = segment.duplicate();
+        payload.limit(offset + RECORD_HEADER_SIZE + length);
+        payload.position(offset + RECORD_HEADER_SIZE);
+        return payload.slice();
+    }
+
+    /**
+     * Deletes a whole segment. The active segment can't be deleted.
+     */
+    synchronized void delete(long segmentId) {
+        if (segmentId == activeSegmentId) {
+            return;
+        }
+        if (mappedSegmentId == segmentId) {
+            mappedSegment = null;
+            mappedSegmentId = -1;
+        }
+        segmentIds.remove(Long.valueOf(segmentId));
+        File file = segmentFile(segmentId);
+        long length = file.length();
+        if (!file.delete() && file.exists()) {
+            Log.w(TAG, "Failed to delete a segment: " + file);
+            return;
+        }
+        totalBytes -= length;
+    }
+
+    synchronized List<Long> getSegmentIds() {
+        return new ArrayList<Long>(segmentIds);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (activeChannel != null) {
+            activeChannel.force(false);
+            activeChannel.close();
+            activeChannel = null;
+        }
+    }
+
+    private void openSegment(long segmentId) throws IOException {
+        activeSegmentId = segmentId;
+        activeChannel = new FileOutputStream(segmentFile(segmentId), true).getChannel();
+        activeSize = (int) activeChannel.size();
+        segmentIds.add(segmentId);
+    }
+
+    private File segmentFile(long segmentId) {
+        return new File(dir, String.format(Locale.US, "%020d%s", segmentId, SEGMENT_SUFFIX));
+    }
+
+    private byte[] readSegment(long segmentId) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segmentId), "r");
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return bytes;
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private ByteBuffer mapSegment(long segmentId) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segmentId), "r");
+        try {
+            // The mapping stays valid after the file is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()).asReadOnlyBuffer();
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private void truncate(long segmentId, int size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segmentId), "rw");
+        try {
+            file.setLength(size);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    private byte[] parseRecord(byte[] segment, int offset) {
+        if (offset + RECORD_HEADER_SIZE > segment.length) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(segment, offset, RECORD_HEADER_SIZE);
+        int length = header.getInt();
+        int crc = header.getInt();
+        // A zero length with a zero CRC is a valid empty record, but it's usually a tail filled with zeros
+        // after a crash of the OS. No record is empty
+        if (length <= 0 || length > MAX_RECORD_SIZE || offset + RECORD_HEADER_SIZE + length > segment.length) {
+            return null;
+        }
+        crc32.reset();
+        crc32.update(segment, offset + RECORD_HEADER_SIZE, length);
+        if ((int) crc32.getValue() != crc) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        System.arraycopy(segment, offset + RECORD_HEADER_SIZE, payload, 0, length);
+        return payload;
+    }
+}
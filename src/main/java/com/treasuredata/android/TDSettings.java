@@ -0,0 +1,150 @@
+package com.treasuredata.android;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import org.komamitsu.android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of the SDK kept in SharedPreferences.
+ *
+ * The settings are read into memory once, and reads don't touch the storage after that.
+ * Changes are applied to memory at once, and written on a background thread with commit(),
+ * which replaces the file atomically. Changes made within {@link #WRITE_DELAY_MILLIS} are written together.
+ * Unlike apply(), the write isn't waited for when an Activity is paused. Instead, {@link #requestFlush()}
+ * is called then, and values that must not be lost, like the UUID of the device, are written with {@link #flush()}.
+ */
+class TDSettings {
+    private static final String TAG = TDSettings.class.getSimpleName();
+    static final String NAME = "td_sdk_info";
+    static final long WRITE_DELAY_MILLIS = 100;
+    private static final Object REMOVED = new Object();
+    private static TDSettings instance;
+
+    // null to keep the settings only in memory
+    private final SharedPreferences preferences;
+    // The followings are guarded by this
+    private final Map<String, Object> values;
+    private Map<String, Object> pendingChanges = new HashMap<String, Object>();
+    private boolean writeScheduled;
+    // Held while writing, so that older changes aren't written after newer ones
+    private final Object writeLock = new Object();
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @return the settings shared in the process, which are read from the storage on the first call
+     */
+    static synchronized TDSettings getInstance(Context context) {
+        if (instance == null) {
+            instance = new TDSettings(context == null ? null : context.getSharedPreferences(NAME, Context.MODE_PRIVATE));
+        }
+        return instance;
+    }
+
+    TDSettings(SharedPreferences preferences) {
+        this.preferences = preferences;
+        Map<String, ?> storedValues = preferences == null ? null : preferences.getAll();
+        this.values = storedValues == null ? new HashMap<String, Object>() : new HashMap<String, Object>(storedValues);
+    }
+
+    synchronized String getString(String key, String defaultValue) {
+        Object value = values.get(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    synchronized boolean getBoolean(String key, boolean defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    synchronized int getInt(String key, int defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Integer ? (Integer) value : defaultValue;
+    }
+
+    void putString(String key, String value) {
+        put(key, value);
+    }
+
+    void putBoolean(String key, boolean value) {
+        put(key, value);
+    }
+
+    void putInt(String key, int value) {
+        put(key, value);
+    }
+
+    void remove(String key) {
+        put(key, null);
+    }
+
+    private synchronized void put(String key, Object value) {
+        Object prevValue = value == null ? values.remove(key) : values.put(key, value);
+        if (value == null ? prevValue == null : value.equals(prevValue)) {
+            return;
+        }
+        pendingChanges.put(key, value == null ? REMOVED : value);
+        if (!writeScheduled && preferences != null) {
+            writeScheduled = true;
+            TDScheduler.timer().schedule(writeTask, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the changes not written yet in the background now, without waiting for {@link #WRITE_DELAY_MILLIS}.
+     */
+    void requestFlush() {
+        synchronized (this) {
+            if (pendingChanges.isEmpty() || preferences == null) {
+                return;
+            }
+        }
+        TDScheduler.timer().execute(writeTask);
+    }
+
+    /**
+     * Writes the changes not written yet on the caller's thread.
+     */
+    void flush() {
+        synchronized (writeLock) {
+            Map<String, Object> changes;
+            synchronized (this) {
+                writeScheduled = false;
+                if (pendingChanges.isEmpty() || preferences == null) {
+                    return;
+                }
+                changes = pendingChanges;
+                pendingChanges = new HashMap<String, Object>();
+            }
+
+            SharedPreferences.Editor editor = preferences.edit();
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                String key = change.getKey();
+                Object value = change.getValue();
+                if (value == REMOVED) {
+                    editor.remove(key);
+                }
+                else if (value instanceof Boolean) {
+                    editor.putBoolean(key, (Boolean) value);
+                }
+                else if (value instanceof Integer) {
+                    editor.putInt(key, (Integer) value);
+                }
+                else {
+                    editor.putString(key, (String) value);
+                }
+            }
+            if (!editor.commit()) {
+                Log.w(TAG, "Failed to write the settings");
+            }
+        }
+    }
+}
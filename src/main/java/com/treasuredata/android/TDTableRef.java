@@ -0,0 +1,127 @@
+package com.treasuredata.android;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Validated destination of events. Adding events with a TDTableRef, like
+ * {@link TreasureData#addEvent(TDTableRef, java.util.Map)}, skips validating
+ * the database and table names for each event.
+ * <pre>
+ *     private static final TDTableRef BUTTON_EVENTS = TDTableRef.of("testdb", "button_events");
+ *         :
+ *     td.addEvent(BUTTON_EVENTS, event);
+ * </pre>
+ * Instances are cached and shared, so the same database and table usually return the same instance.
+ */
+public final class TDTableRef {
+    private static final Pattern DATABASE_NAME_PATTERN = Pattern.compile("^[0-9a-z_]{3,255}$");
+    private static final Pattern TABLE_NAME_PATTERN = Pattern.compile("^[0-9a-z_]{3,255}$");
+    // Apps write to a handful of tables. Names beyond this are validated each time instead of cached
+    private static final int MAX_CACHED_REFS = 1024;
+    private static final ConcurrentMap<String, ConcurrentMap<String, TDTableRef>> CACHE =
+            new ConcurrentHashMap<String, ConcurrentMap<String, TDTableRef>>();
+    private static final AtomicInteger CACHED_REFS = new AtomicInteger();
+
+    private final String database;
+    private final String table;
+    private final String eventCollection;
+
+    private TDTableRef(String database, String table) {
+        this.database = database;
+        this.table = table;
+        this.eventCollection = database + "." + table;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the database or table name is invalid
+     */
+    public static TDTableRef of(String database, String table) {
+        TDTableRef tableRef = lookup(database, table);
+        if (tableRef == null) {
+            throw new IllegalArgumentException(invalidNameMessage(database, table));
+        }
+        return tableRef;
+    }
+
+    /**
+     * @return null if the database or table name is invalid
+     */
+    static TDTableRef lookup(String database, String table) {
+        if (database == null || table == null) {
+            return null;
+        }
+
+        ConcurrentMap<String, TDTableRef> tables = CACHE.get(database);
+        if (tables != null) {
+            TDTableRef tableRef = tables.get(table);
+            if (tableRef != null) {
+                return tableRef;
+            }
+        }
+
+        if (!(DATABASE_NAME_PATTERN.matcher(database).find() && TABLE_NAME_PATTERN.matcher(table).find())) {
+            return null;
+        }
+        TDTableRef tableRef = new TDTableRef(database, table);
+        if (CACHED_REFS.get() >= MAX_CACHED_REFS) {
+            return tableRef;
+        }
+
+        if (tables == null) {
+            tables = new ConcurrentHashMap<String, TDTableRef>();
+            ConcurrentMap<String, TDTableRef> existing = CACHE.putIfAbsent(database, tables);
+            if (existing != null) {
+                tables = existing;
+            }
+        }
+        TDTableRef existing = tables.putIfAbsent(table, tableRef);
+        if (existing != null) {
+            return existing;
+        }
+        CACHED_REFS.incrementAndGet();
+        return tableRef;
+    }
+
+    static String invalidNameMessage(String database, String table) {
+        return String.format("database and table need to be consist of lower letters, numbers or '_': database=%s, table=%s", database, table);
+    }
+
+    public String getDatabase() {
+        return database;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return "database.table"
+     */
+    String getEventCollection() {
+        return eventCollection;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return eventCollection.equals(((TDTableRef) o).eventCollection);
+    }
+
+    @Override
+    public int hashCode() {
+        return eventCollection.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "TDTableRef{" + eventCollection + "}";
+    }
+}
@@ -0,0 +1,44 @@
+package com.treasuredata.android;
+
+/**
+ * Failure of uploading queued events, with the error code passed to {@link TDCallback#onError(String, Exception)}.
+ */
+class TDUploadException extends Exception {
+    private final String errorCode;
+    // Whether the endpoint is unreachable or overloaded, rather than the events are wrong
+    private boolean backoff;
+    private long retryAfterMillis = -1;
+
+    TDUploadException(String errorCode, String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    TDUploadException(String errorCode, Throwable cause) {
+        super(cause.getMessage(), cause);
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * Marks this failure to be retried after a backoff, see {@link TDRetryPolicy}.
+     *
+     * @param retryAfterMillis the delay the server asked for with Retry-After, or -1
+     */
+    TDUploadException withBackoff(long retryAfterMillis) {
+        this.backoff = true;
+        this.retryAfterMillis = retryAfterMillis;
+        return this;
+    }
+
+    String getErrorCode() {
+        return errorCode;
+    }
+
+    boolean isBackoff() {
+        return backoff;
+    }
+
+    long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,43 @@
+package com.treasuredata.android;
+
+/**
+ * Numbers of the last upload, returned by {@link TreasureData#getLastUploadMetrics()}.
+ *
+ * A TLS handshake happens when a request can't reuse a pooled connection, so
+ * fewer handshakes than requests means connections are reused.
+ */
+public final class TDUploadMetrics {
+    private final long requestCount;
+    private final long handshakeCount;
+    private final long elapsedMillis;
+
+    TDUploadMetrics(long requestCount, long handshakeCount, long elapsedMillis) {
+        this.requestCount = requestCount;
+        this.handshakeCount = handshakeCount;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * @return the number of new TLS connections. Always 0 with an http:// endpoint
+     */
+    public long getHandshakeCount() {
+        return handshakeCount;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "TDUploadMetrics{" +
+                "requestCount=" + requestCount +
+                ", handshakeCount=" + handshakeCount +
+                ", elapsedMillis=" + elapsedMillis +
+                '}';
+    }
+}
@@ -2,10 +2,13 @@ package com.treasuredata.android;
 
 import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
-import android.os.AsyncTask;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Bundle;
 import com.treasuredata.android.billing.internal.Purchase;
@@ -13,31 +16,35 @@ import com.treasuredata.android.billing.internal.PurchaseEventActivityLifecycleT
 import com.treasuredata.android.cdp.CDPClient;
 import com.treasuredata.android.cdp.CDPClientImpl;
 import com.treasuredata.android.cdp.FetchUserSegmentsCallback;
+import io.keen.client.java.KeenCallback;
 import io.keen.client.java.KeenClient;
 import org.komamitsu.android.util.Log;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
-import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class TreasureData implements CDPClient {
     private static final String TAG = TreasureData.class.getSimpleName();
     private static final String VERSION = "0.3.0";
     private static final String LABEL_ADD_EVENT = "addEvent";
     private static final String LABEL_UPLOAD_EVENTS = "uploadEvents";
-    private static final Pattern DATABASE_NAME_PATTERN = Pattern.compile("^[0-9a-z_]{3,255}$");
-    private static final Pattern TABLE_NAME_PATTERN = Pattern.compile("^[0-9a-z_]{3,255}$");
-    private static final String SHARED_PREF_NAME = "td_sdk_info";
-    private static final String SHARED_PREF_KEY_UUID = "uuid";
+    // Events added before the asynchronous initialization completes are kept in memory up to this
+    private static final int MAX_PENDING_EVENTS = 10000;
     private static final String SHARED_PREF_VERSION_KEY = "version";
     private static final String SHARED_PREF_BUILD_KEY = "build";
     private static final String SHARED_PREF_KEY_FIRST_RUN = "first_run";
@@ -84,13 +91,17 @@ public class TreasureData implements CDPClient {
     }
 
     private static Context applicationContext;
-    private static volatile Executor executor;
     private static volatile TreasureData sharedInstance;
-    private final static WeakHashMap<Context, Session> sessions = new WeakHashMap<Context, Session>();
+    // The session of the application, see startSession(Context)
+    private final static AtomicReference<AppSession> appSession = new AtomicReference<AppSession>();
 
     private final Context context;
-    private final TDClient client;
-    private String uuid;
+    // Guards the settings and the fields of them
+    private final Object settingsLock = new Object();
+    // Set by initialize(), which may run in the background, see initializeSharedInstanceAsync(Context, String)
+    private volatile TDClient client;
+    // Holds the current UUID, which is read for every event
+    private volatile TDDeviceId deviceId;
     private volatile String defaultDatabase;
     private volatile String defaultTable;
     private volatile TDCallback addEventCallBack;
@@ -106,15 +117,27 @@ public class TreasureData implements CDPClient {
     private volatile boolean appLifecycleEventEnabled;
     private volatile boolean inAppPurchaseEventEnabled;
     private static volatile long sessionTimeoutMilli = Session.DEFAULT_SESSION_PENDING_MILLIS;
-    private final String appVersion;
-    private final int appVersionNumber;
+    private volatile String appVersion;
+    private volatile int appVersionNumber;
     private volatile boolean serverSideUploadTimestamp;
     private volatile String serverSideUploadTimestampColumn;
-    private Session session = new Session();
+    private final Session session = new Session();
     private volatile String autoAppendRecordUUIDColumn;
     private volatile String autoAppendAdvertisingIdColumn;
     private volatile String advertisingId;
     private volatile GetAdvertisingIdAsyncTask getAdvertisingIdTask;
+    private volatile TDIngestionRing ingestionRing;
+    private final TDEventFilter eventFilter = new TDEventFilter();
+    private final TDFlushScheduler flushScheduler;
+    private final AtomicInteger deviceContextVersion = new AtomicInteger();
+    private volatile DeviceContext deviceContext;
+
+    // Counted down when initialize() sets the client
+    private final CountDownLatch clientInitialized = new CountDownLatch(1);
+    // Events added before initialize() completes, which are added in order after that
+    private final Object pendingEventsLock = new Object();
+    private List<Runnable> pendingEvents = new ArrayList<Runnable>();
+    private volatile boolean eventsReady;
 
     private final AtomicBoolean isInAppPurchaseEventTracking = new AtomicBoolean(false);
     private CDPClientImpl cdpClientDelegate;
@@ -132,6 +155,25 @@ public class TreasureData implements CDPClient {
         return initializeSharedInstance(context, null);
     }
 
+    /**
+     * Like {@link #initializeSharedInstance(Context, String)}, but reads the preferences, the package information
+     * and the local buffer of events on a background thread, so that this returns without blocking Application#onCreate.
+     * Events added before that completes are kept in memory, and stored in the added order after that.
+     * Methods using the local buffer or the uploader, like {@link #uploadEvents()}, wait for it.
+     */
+    public static TreasureData initializeSharedInstanceAsync(Context context, String apiKey) {
+        synchronized (TreasureData.class) {
+            if (sharedInstance == null) {
+                sharedInstance = new TreasureData(context, apiKey, true);
+            }
+        }
+        return sharedInstance;
+    }
+
+    public static TreasureData initializeSharedInstanceAsync(Context context) {
+        return initializeSharedInstanceAsync(context, null);
+    }
+
     public static TreasureData sharedInstance() {
         if (sharedInstance == null) {
             synchronized (TreasureData.class) {
@@ -148,32 +190,25 @@ public class TreasureData implements CDPClient {
         return applicationContext;
     }
 
+    /**
+     * @return the executor of {@link TDScheduler.Lane#INGESTION}. It throws
+     * {@link RejectedExecutionException} when the lane is full
+     */
     public static Executor getExecutor() {
-        if (executor == null) { //Check for the first time
-            synchronized (TreasureData.class) {
-                if (executor == null) { //Check for the second time
-                    //If there is no instance available. Create new one
-                    executor = AsyncTask.SERIAL_EXECUTOR;
-                }
-            }
-        }
-        return executor;
+        return TDScheduler.executor(TDScheduler.Lane.INGESTION);
     }
 
-    private SharedPreferences getSharedPreference(Context context) {
-        return context.getSharedPreferences(SHARED_PREF_NAME, Context.MODE_PRIVATE);
+    private TDSettings getSettings() {
+        return TDSettings.getInstance(context);
     }
 
     public String getUUID() {
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            String uuid = sharedPreferences.getString(SHARED_PREF_KEY_UUID, null);
-            if (uuid == null) {
-                uuid = UUID.randomUUID().toString();
-                sharedPreferences.edit().putString(SHARED_PREF_KEY_UUID, uuid).commit();
-            }
-            return uuid;
-        }
+        return getDeviceId().get();
+    }
+
+    private TDDeviceId getDeviceId() {
+        TDDeviceId deviceId = this.deviceId;
+        return deviceId != null ? deviceId : TDDeviceId.getInstance(context);
     }
 
     /**
@@ -196,88 +231,73 @@ public class TreasureData implements CDPClient {
 
         // Send forget_device_uuid event
         Map record = new HashMap<String, Object>();
-        uuid = getUUID();
         record.put(isOnUnity() ? EVENT_KEY_UNITY_EVENT : EVENT_KEY_EVENT, EVENT_RESET_UUID);
-        record.put(EVENT_KEY_UUID, uuid);
+        record.put(EVENT_KEY_UUID, getUUID());
         record.put(EVENT_KEY_RESET_UUID_EVENT_PRIVATE, true);
         addEvent(targetDatabase, targetTable, record);
 
-        // Reset UUID
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            String uuid = UUID.randomUUID().toString();
-            sharedPreferences.edit().putString(SHARED_PREF_KEY_UUID, uuid).commit();
-        }
+        // Reset UUID. Events added after this have the new one
+        getDeviceId().reset();
+        invalidateDeviceContext();
     }
 
     private String getAdvertisingIdFromSharedPreferences() {
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            return sharedPreferences.getString(SHARED_PREF_KEY_ADVERTISING_ID, null);
+        TDSettings settings = getSettings();
+        synchronized (settingsLock) {
+            return settings.getString(SHARED_PREF_KEY_ADVERTISING_ID, null);
         }
     }
 
     private void setAdvertisingId(String advertisingId) {
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
+        TDSettings settings = getSettings();
+        synchronized (settingsLock) {
             this.advertisingId = advertisingId;
             if (advertisingId == null) {
-                sharedPreferences.edit().remove(SHARED_PREF_KEY_ADVERTISING_ID).commit();
+                settings.remove(SHARED_PREF_KEY_ADVERTISING_ID);
             } else {
-                sharedPreferences.edit().putString(SHARED_PREF_KEY_ADVERTISING_ID, advertisingId).commit();
+                settings.putString(SHARED_PREF_KEY_ADVERTISING_ID, advertisingId);
             }
         }
     }
 
     public boolean isFirstRun(Context context) {
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            return sharedPreferences.getBoolean(SHARED_PREF_KEY_FIRST_RUN, true);
+        TDSettings settings = TDSettings.getInstance(context);
+        synchronized (settingsLock) {
+            return settings.getBoolean(SHARED_PREF_KEY_FIRST_RUN, true);
         }
     }
 
     public void clearFirstRun(Context context) {
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            sharedPreferences.edit().putBoolean(SHARED_PREF_KEY_FIRST_RUN, false).commit();
+        TDSettings settings = TDSettings.getInstance(context);
+        synchronized (settingsLock) {
+            settings.putBoolean(SHARED_PREF_KEY_FIRST_RUN, false);
         }
+        // Not to report the first run again if the process dies soon
+        settings.flush();
     }
 
     public TreasureData(Context context, String apiKey) {
+        this(context, apiKey, false);
+    }
+
+    private TreasureData(Context context, final String apiKey, boolean async) {
         applicationContext = context.getApplicationContext();
         this.context = context.getApplicationContext();
-        this.uuid = getUUID();
-        this.appLifecycleEventEnabled = getAppLifecycleEventEnabled();
-        this.customEventEnabled = getCustomEventEnabled();
-        this.inAppPurchaseEventEnabled = getInAppPurchaseEventEventEnabled();
-        this.advertisingId = getAdvertisingIdFromSharedPreferences();
-
-        TDClient client = null;
-        if (apiKey == null && TDClient.getDefaultApiKey() == null) {
-            Log.e(TAG, "initializeApiKey() hasn't called yet");
+        this.flushScheduler = createFlushScheduler();
+        if (async) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    initialize(apiKey);
+                }
+            }, "td-init");
+            thread.setDaemon(true);
+            thread.start();
         }
         else {
-            try {
-                client = new TDClient(apiKey, applicationContext.getCacheDir());
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to construct TreasureData object", e);
-            }
+            initialize(apiKey);
         }
 
-        String appVersion = "";
-        int appVersionNumber = 0;
-        try {
-            PackageInfo pkgInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
-            appVersion = pkgInfo.versionName;
-            appVersionNumber = pkgInfo.versionCode;
-        }
-        catch (Exception e) {
-            Log.e(TAG, "Failed to get package information", e);
-        }
-        this.appVersion = appVersion;
-        this.appVersionNumber = appVersionNumber;
-
-        this.client = client;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
             final Application application = (Application) applicationContext;
             application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
@@ -285,15 +305,23 @@ public class TreasureData implements CDPClient {
 
                 @Override
                 public void onActivityCreated(Activity activity, Bundle bundle) {
-                    TreasureData.getExecutor().execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (!trackedAppLifecycleEvents.getAndSet(true)
-                                    && appLifecycleEventEnabled) {
-                                trackApplicationLifecycleEvents();
+                    try {
+                        TreasureData.getExecutor().execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                // The flag and the app version are read by initialize()
+                                getClient();
+                                if (!trackedAppLifecycleEvents.getAndSet(true)
+                                        && appLifecycleEventEnabled) {
+                                    trackApplicationLifecycleEvents();
+                                }
                             }
-                        }
-                    });
+                        });
+                    }
+                    catch (RejectedExecutionException e) {
+                        // Tried again when the next activity is created
+                        Log.w(TAG, "Skipped tracking app lifecycle events: " + e.getMessage());
+                    }
                 }
 
                 @Override
@@ -308,7 +336,8 @@ public class TreasureData implements CDPClient {
 
                 @Override
                 public void onActivityPaused(Activity activity) {
-
+                    // The process may be killed in the background
+                    getSettings().requestFlush();
                 }
 
                 @Override
@@ -326,6 +355,131 @@ public class TreasureData implements CDPClient {
 
                 }
             });
+            application.registerComponentCallbacks(new ComponentCallbacks2() {
+                @Override
+                public void onConfigurationChanged(Configuration configuration) {
+                    // The locale may have changed
+                    invalidateDeviceContext();
+                }
+
+                @Override
+                public void onLowMemory() {
+                    getSettings().requestFlush();
+                }
+
+                @Override
+                public void onTrimMemory(int level) {
+                    // The process is likely to be killed
+                    getSettings().requestFlush();
+                }
+            });
+        }
+    }
+
+    private void initialize(String apiKey) {
+        this.deviceId = TDDeviceId.getInstance(context);
+        // The setters called meanwhile write the settings under the same lock, so the values read here aren't older
+        synchronized (settingsLock) {
+            this.appLifecycleEventEnabled = getAppLifecycleEventEnabled();
+            this.customEventEnabled = getCustomEventEnabled();
+            this.inAppPurchaseEventEnabled = getInAppPurchaseEventEventEnabled();
+            this.advertisingId = getAdvertisingIdFromSharedPreferences();
+        }
+
+        TDClient client = null;
+        if (apiKey == null && TDClient.getDefaultApiKey() == null) {
+            Log.e(TAG, "initializeApiKey() hasn't called yet");
+        }
+        else {
+            try {
+                client = new TDClient(apiKey, applicationContext.getCacheDir());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to construct TreasureData object", e);
+            }
+        }
+
+        String appVersion = "";
+        int appVersionNumber = 0;
+        try {
+            PackageInfo pkgInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            appVersion = pkgInfo.versionName;
+            appVersionNumber = pkgInfo.versionCode;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Failed to get package information", e);
+        }
+        this.appVersion = appVersion;
+        this.appVersionNumber = appVersionNumber;
+
+        this.client = client;
+        registerEventStoreListener();
+        clientInitialized.countDown();
+        addPendingEvents();
+    }
+
+    /**
+     * @return the client, waiting for {@link #initialize(String)} if it's running in the background
+     */
+    private TDClient getClient() {
+        if (clientInitialized.getCount() > 0) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    clientInitialized.await();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Keeps the event until {@link #initialize(String)} completes.
+     *
+     * @return false if it has completed and the event should be added now
+     */
+    private boolean deferEvent(Runnable addEvent, TDCallback callback) {
+        synchronized (pendingEventsLock) {
+            if (eventsReady) {
+                return false;
+            }
+            if (pendingEvents.size() >= MAX_PENDING_EVENTS) {
+                Log.w(TAG, "Dropped an event since too many events are added before the initialization completes");
+                if (callback == null) {
+                    callback = addEventCallBack;
+                }
+                if (callback != null) {
+                    callback.onError(KeenClient.ERROR_CODE_STORAGE_ERROR, new IllegalStateException("Too many events are added before the initialization"));
+                }
+                return true;
+            }
+            pendingEvents.add(addEvent);
+            return true;
+        }
+    }
+
+    private void addPendingEvents() {
+        while (true) {
+            List<Runnable> events;
+            synchronized (pendingEventsLock) {
+                if (pendingEvents.isEmpty()) {
+                    // Events added from now on don't overtake the pending ones
+                    eventsReady = true;
+                    pendingEvents = null;
+                    return;
+                }
+                events = pendingEvents;
+                pendingEvents = new ArrayList<Runnable>();
+            }
+            for (Runnable event : events) {
+                event.run();
+            }
         }
     }
 
@@ -348,9 +502,9 @@ public class TreasureData implements CDPClient {
         String currentVersion = appVersion;
         int currentBuild = appVersionNumber;
 
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        String previousVersion = sharedPreferences.getString(SHARED_PREF_VERSION_KEY, null);
-        int previousBuild = sharedPreferences.getInt(SHARED_PREF_BUILD_KEY, 0);
+        TDSettings settings = getSettings();
+        String previousVersion = settings.getString(SHARED_PREF_VERSION_KEY, null);
+        int previousBuild = settings.getInt(SHARED_PREF_BUILD_KEY, 0);
 
         Map<String, Object> record;
         if (autoTrackAppInstalledEvent && previousBuild == 0) {
@@ -380,10 +534,8 @@ public class TreasureData implements CDPClient {
             addEvent(targetDatabase, targetTable, record);
         }
 
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putInt(SHARED_PREF_BUILD_KEY, currentBuild);
-        editor.putString(SHARED_PREF_VERSION_KEY, currentVersion);
-        editor.apply();
+        settings.putInt(SHARED_PREF_BUILD_KEY, currentBuild);
+        settings.putString(SHARED_PREF_VERSION_KEY, currentVersion);
     }
 
     private void trackPurchases(List<Purchase> purchases) {
@@ -434,6 +586,25 @@ public class TreasureData implements CDPClient {
         TDClient.setEncryptionKey(encryptionKey);
     }
 
+    /**
+     * Choose the encoding of events in the local buffer. Call this before creating instances.
+     * Events buffered in another encoding can still be uploaded.
+     */
+    public static void initializeEventEncoding(TDEventEncoding eventEncoding) {
+        TDClient.setEventEncoding(eventEncoding);
+    }
+
+    /**
+     * Upload events in MessagePack instead of JSON. Enable this only with an endpoint that accepts MessagePack.
+     */
+    public static void enableBinaryUpload() {
+        TDEventUploader.enableBinaryUpload();
+    }
+
+    public static void disableBinaryUpload() {
+        TDEventUploader.disableBinaryUpload();
+    }
+
     public static void enableEventCompression() {
         TDHttpHandler.enableEventCompression();
     }
@@ -442,6 +613,78 @@ public class TreasureData implements CDPClient {
         TDHttpHandler.disableEventCompression();
     }
 
+    /**
+     * Choose the compression of uploaded events for this instance.
+     * This takes precedence over {@link #enableEventCompression()} and {@link #disableEventCompression()}
+     *
+     * @param compression null to follow {@link #enableEventCompression()} and {@link #disableEventCompression()} again
+     */
+    public void setEventCompression(TDEventCompression compression) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        getClient().setCompressionCodec(compression == null ? null : compression.getCodec());
+    }
+
+    /**
+     * Buffer added events in memory and store them on a background thread, so that
+     * {@link #addEvent(String, String, Map)} returns without serializing and storing the event.
+     * Callbacks of added events are called on the background thread.
+     *
+     * @param capacity the max number of buffered events
+     * @param backpressurePolicy what to do when the buffer is full
+     * @param maxLossMillis the max milliseconds events stay in the buffer, that is, can be lost when the process dies
+     */
+    public synchronized void enableIngestionBuffer(int capacity, TDBackpressurePolicy backpressurePolicy, long maxLossMillis) {
+        // Not to wait for the initialization. Events reach the buffer only after it
+        if (clientInitialized.getCount() == 0 && client == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        TDIngestionRing ring = new TDIngestionRing(capacity, backpressurePolicy, maxLossMillis, new TDIngestionRing.Sink() {
+            @Override
+            public void queueEvent(TDIngestionRing.Entry entry) {
+                TDClient client = getClient();
+                if (client == null) {
+                    // The initialization running in the background has failed
+                    KeenCallback callback = entry.callback;
+                    if (callback != null) {
+                        if (callback instanceof KeenClient.KeenCallbackWithErrorCode) {
+                            ((KeenClient.KeenCallbackWithErrorCode) callback).setErrorCode(KeenClient.ERROR_CODE_INIT_ERROR);
+                        }
+                        callback.onFailure(new IllegalStateException("TDClient is null"));
+                    }
+                    return;
+                }
+                if (entry.typedEvent != null) {
+                    client.queueEvent(entry.eventCollection, entry.typedEvent, entry.callback);
+                }
+                else {
+                    client.queueEvent(null, entry.eventCollection, entry.event, null, entry.callback);
+                }
+            }
+        });
+        // Events of the previous buffer are stored before the new buffer starts storing events
+        TDIngestionRing prevRing = ingestionRing;
+        if (prevRing != null) {
+            prevRing.close();
+        }
+        ingestionRing = ring;
+    }
+
+    /**
+     * Store added events on the caller's thread again. Buffered events are stored in the background.
+     */
+    public synchronized void disableIngestionBuffer() {
+        // Closed first, so that events added meanwhile are stored after the buffered ones
+        TDIngestionRing ring = ingestionRing;
+        if (ring != null) {
+            ring.close();
+        }
+        ingestionRing = null;
+    }
+
     public void setDefaultDatabase(String defaultDatabase) {
         this.defaultDatabase = defaultDatabase;
     }
@@ -467,11 +710,47 @@ public class TreasureData implements CDPClient {
     }
 
     public void setMaxUploadEventsAtOnce(int maxUploadEventsAtOnce) {
-        client.setMaxUploadEventsAtOnce(maxUploadEventsAtOnce);
+        getClient().setMaxUploadEventsAtOnce(maxUploadEventsAtOnce);
     }
 
     public int getMaxUploadEventsAtOnce() {
-        return client.getMaxUploadEventsAtOnce();
+        return getClient().getMaxUploadEventsAtOnce();
+    }
+
+    /**
+     * Upload events with up to {@code maxConcurrentUploads} requests in flight, which drains many queued events faster.
+     * Each request has events of one table, and events of a table are uploaded in the added order.
+     * The default is 1, that is, one request at a time.
+     *
+     * Requests other than the first one run on {@link TDScheduler.Lane#UPLOAD_WORKER}, which has 4 threads by default.
+     */
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        getClient().setMaxConcurrentUploads(maxConcurrentUploads);
+    }
+
+    /**
+     * @return 1 if TDClient isn't available
+     */
+    public int getMaxConcurrentUploads() {
+        TDClient client = getClient();
+        if (client == null) {
+            return 1;
+        }
+        return client.getMaxConcurrentUploads();
+    }
+
+    /**
+     * @return the numbers of requests and TLS handshakes of the last upload, or null if nothing has been uploaded
+     */
+    public TDUploadMetrics getLastUploadMetrics() {
+        if (getClient() == null) {
+            return null;
+        }
+        return getClient().getLastUploadMetrics();
     }
 
     public void addEvent(String database, String table, Map<String, Object> record) {
@@ -488,6 +767,43 @@ public class TreasureData implements CDPClient {
     }
 
     public void addEventWithCallback(String database, String table, Map<String, Object> origRecord, TDCallback callback) {
+        addEventWithCallback(database, table, null, origRecord, callback);
+    }
+
+    public void addEvent(TDTableRef tableRef, Map<String, Object> record) {
+        addEventWithCallback(tableRef, record, null);
+    }
+
+    /**
+     * Same as {@link #addEventWithCallback(String, String, Map, TDCallback)}, but the database and table
+     * names aren't validated again.
+     */
+    public void addEventWithCallback(TDTableRef tableRef, Map<String, Object> record, TDCallback callback) {
+        if (tableRef == null) {
+            handleParamError(callback == null ? addEventCallBack : callback, "tableRef is null");
+            return;
+        }
+        addEventWithCallback(null, null, tableRef, record, callback);
+    }
+
+    // tableRef is resolved from database and table if it's null
+    private void addEventWithCallback(final String database, final String table, final TDTableRef tableRef, Map<String, Object> origRecord, final TDCallback callback) {
+        if (!eventsReady) {
+            // The caller may change or reuse the map after this returns
+            final Map<String, Object> copiedRecord = origRecord == null ? null : new HashMap<String, Object>(origRecord);
+            if (deferEvent(new Runnable() {
+                @Override
+                public void run() {
+                    addReadyEventWithCallback(database, table, tableRef, copiedRecord, callback);
+                }
+            }, callback)) {
+                return;
+            }
+        }
+        addReadyEventWithCallback(database, table, tableRef, origRecord, callback);
+    }
+
+    private void addReadyEventWithCallback(String database, String table, TDTableRef tableRef, Map<String, Object> origRecord, TDCallback callback) {
 
         if(!isCustomEventEnabled() && isCustomEvent(origRecord)) {
             return;
@@ -501,12 +817,16 @@ public class TreasureData implements CDPClient {
             return;
         }
 
+        // The forget_device_uuid event keeps the UUID before the reset, even when it's deferred until after the reset
+        boolean resetUuidEvent = origRecord.containsKey(EVENT_KEY_RESET_UUID_EVENT_PRIVATE);
+        String uuid = resetUuidEvent ? (String) origRecord.get(EVENT_KEY_UUID) : getUUID();
+
         // Remove private key
         origRecord.remove(EVENT_KEY_APP_LIFECYCLE_EVENT_PRIVATE);
         origRecord.remove(EVENT_KEY_RESET_UUID_EVENT_PRIVATE);
         origRecord.remove(EVENT_KEY_IN_APP_PURCHASE_EVENT_PRIVATE);
 
-        if (client == null) {
+        if (getClient() == null) {
             Log.w(TAG, "TDClient is null");
             return;
         }
@@ -515,53 +835,174 @@ public class TreasureData implements CDPClient {
             callback = addEventCallBack;
         }
 
+        if (tableRef == null) {
+            tableRef = resolveTableRef(database, table, callback);
+            if (tableRef == null) {
+                return;
+            }
+        }
+
+        if (!eventFilter.accept(tableRef.getEventCollection(), uuid, origRecord)) {
+            return;
+        }
+
+        Map<String, Object> record = new TDRecordOverlay(getDeviceContext(), origRecord);
+        if (resetUuidEvent) {
+            record.put(EVENT_KEY_UUID, uuid);
+        }
+
+        appendSessionId(record);
+
+        if (autoAppendRecordUUIDColumn != null) {
+            appendRecordUUID(record);
+        }
+
+        if (autoAppendAdvertisingIdColumn != null) {
+            appendAdvertisingIdentifier(record);
+        }
+
+        if (serverSideUploadTimestamp) {
+            String columnName = serverSideUploadTimestampColumn;
+            if (columnName != null) {
+                record.put(EVENT_KEY_SERVERSIDE_UPLOAD_TIMESTAMP, columnName);
+            }
+            else {
+                record.put(EVENT_KEY_SERVERSIDE_UPLOAD_TIMESTAMP, true);
+            }
+        }
+
+        TDIngestionRing ring = ingestionRing;
+        if (ring != null) {
+            ring.offer(tableRef.getEventCollection(), record, createKeenCallback(LABEL_ADD_EVENT, callback));
+        }
+        else {
+            getClient().queueEvent(null, tableRef.getEventCollection(), record, null, createKeenCallback(LABEL_ADD_EVENT, callback));
+        }
+    }
+
+    private TDTableRef resolveTableRef(String database, String table, TDCallback callback) {
         if (database == null) {
             handleParamError(callback, "database is null");
-            return;
+            return null;
         }
 
         if (table == null) {
             handleParamError(callback, "table is null");
-            return;
+            return null;
         }
 
-        Map<String, Object> record = new HashMap<String, Object>();
-        if (origRecord != null) {
-            record.putAll(origRecord);
+        TDTableRef tableRef = TDTableRef.lookup(database, table);
+        if (tableRef == null) {
+            handleParamError(callback, TDTableRef.invalidNameMessage(database, table));
         }
+        return tableRef;
+    }
 
-        appendSessionId(record);
+    public void addEvent(String table, Map<String, Object> record) {
+        addEvent(defaultDatabase, table, record);
+    }
 
-        if (autoAppendUniqId) {
-            appendUniqId(record);
+    public void addEvent(String database, String table, TDEvent event) {
+        addEventWithCallback(database, table, event, null);
+    }
+
+    public void addEvent(String table, TDEvent event) {
+        addEvent(defaultDatabase, table, event);
+    }
+
+    public void addEventWithCallback(String table, TDEvent event, TDCallback callback) {
+        addEventWithCallback(defaultDatabase, table, event, callback);
+    }
+
+    /**
+     * Same as {@link #addEventWithCallback(String, String, Map, TDCallback)}, but the event is
+     * serialized without boxing its values. The columns appended automatically are the same.
+     */
+    public void addEventWithCallback(String database, String table, TDEvent event, TDCallback callback) {
+        addEventWithCallback(database, table, null, event, callback);
+    }
+
+    public void addEvent(TDTableRef tableRef, TDEvent event) {
+        addEventWithCallback(tableRef, event, null);
+    }
+
+    public void addEventWithCallback(TDTableRef tableRef, TDEvent event, TDCallback callback) {
+        if (tableRef == null) {
+            handleParamError(callback == null ? addEventCallBack : callback, "tableRef is null");
+            return;
         }
+        addEventWithCallback(null, null, tableRef, event, callback);
+    }
 
-        if (autoAppendModelInformation) {
-            appendModelInformation(record);
+    private void addEventWithCallback(final String database, final String table, final TDTableRef tableRef, TDEvent event, final TDCallback callback) {
+        if (!eventsReady) {
+            // The caller may change or reuse the event after this returns
+            final TDEvent copiedEvent = event == null ? null : event.copy(0);
+            if (deferEvent(new Runnable() {
+                @Override
+                public void run() {
+                    addReadyEventWithCallback(database, table, tableRef, copiedEvent, callback);
+                }
+            }, callback)) {
+                return;
+            }
         }
+        addReadyEventWithCallback(database, table, tableRef, event, callback);
+    }
 
-        if (autoAppendAppInformation) {
-            appendAppInformation(record);
+    private void addReadyEventWithCallback(String database, String table, TDTableRef tableRef, TDEvent event, TDCallback callback) {
+        if (!isCustomEventEnabled()) {
+            return;
         }
 
-        if (autoAppendLocaleInformation) {
-            appendLocaleInformation(record);
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
         }
 
-        if (autoAppendRecordUUIDColumn != null) {
-            appendRecordUUID(record);
+        if (callback == null) {
+            callback = addEventCallBack;
         }
 
-        if (autoAppendAdvertisingIdColumn != null) {
-            appendAdvertisingIdentifier(record);
+        if (tableRef == null) {
+            tableRef = resolveTableRef(database, table, callback);
+            if (tableRef == null) {
+                return;
+            }
         }
 
-        if (!(DATABASE_NAME_PATTERN.matcher(database).find() && TABLE_NAME_PATTERN.matcher(table).find())) {
-            String errMsg = String.format("database and table need to be consist of lower letters, numbers or '_': database=%s, table=%s", database, table);
-            handleParamError(callback, errMsg);
+        if (event == null) {
+            handleParamError(callback, "event is null");
             return;
         }
 
+        if (!eventFilter.accept(tableRef.getEventCollection(), getUUID(), event)) {
+            return;
+        }
+
+        Map<String, Object> template = getDeviceContext();
+        // Session ID, record UUID, advertising ID and #SSUT
+        TDEvent record = event.copy(template.size() + 4);
+        for (Map.Entry<String, Object> column : template.entrySet()) {
+            record.put(column.getKey(), column.getValue());
+        }
+
+        String sessionId = getEventSessionId();
+        if (sessionId != null) {
+            record.put(EVENT_KEY_SESSION_ID, sessionId);
+        }
+
+        if (autoAppendRecordUUIDColumn != null) {
+            record.put(autoAppendRecordUUIDColumn, UUID.randomUUID().toString());
+        }
+
+        if (autoAppendAdvertisingIdColumn != null) {
+            updateAdvertisingId();
+            if (advertisingId != null) {
+                record.put(autoAppendAdvertisingIdColumn, advertisingId);
+            }
+        }
+
         if (serverSideUploadTimestamp) {
             String columnName = serverSideUploadTimestampColumn;
             if (columnName != null) {
@@ -572,13 +1013,13 @@ public class TreasureData implements CDPClient {
             }
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(database).append(".").append(table);
-        client.queueEvent(null, sb.toString(), record, null, createKeenCallback(LABEL_ADD_EVENT, callback));
-    }
-
-    public void addEvent(String table, Map<String, Object> record) {
-        addEvent(defaultDatabase, table, record);
+        TDIngestionRing ring = ingestionRing;
+        if (ring != null) {
+            ring.offer(tableRef.getEventCollection(), record, createKeenCallback(LABEL_ADD_EVENT, callback));
+        }
+        else {
+            getClient().queueEvent(tableRef.getEventCollection(), record, createKeenCallback(LABEL_ADD_EVENT, callback));
+        }
     }
 
     public void addEventWithCallback(String table, Map<String, Object> record, TDCallback callback) {
@@ -591,7 +1032,7 @@ public class TreasureData implements CDPClient {
 
     public void uploadEventsWithCallback(TDCallback callback) {
 
-        if (client == null) {
+        if (getClient() == null) {
             Log.w(TAG, "TDClient is null");
             return;
         }
@@ -599,7 +1040,85 @@ public class TreasureData implements CDPClient {
         if (callback == null) {
             callback = uploadEventsCallBack;
         }
-        client.sendQueuedEventsAsync(null, createKeenCallback(LABEL_UPLOAD_EVENTS, callback));
+        final KeenClient.KeenCallbackWithErrorCode keenCallback = createKeenCallback(LABEL_UPLOAD_EVENTS, callback);
+        TDIngestionRing ring = ingestionRing;
+        if (ring != null) {
+            // Upload events buffered so far as well
+            ring.flush(new Runnable() {
+                @Override
+                public void run() {
+                    flushScheduler.requestFlush(keenCallback);
+                }
+            });
+        }
+        else {
+            flushScheduler.requestFlush(keenCallback);
+        }
+    }
+
+    /**
+     * Upload events automatically without calling {@link #uploadEvents()}. An upload starts when
+     * the queued events reach {@code maxQueuedBytes}, when the oldest queued event gets older than
+     * {@code maxEventAgeMillis}, or when no event is added for {@code idleMillis}.
+     * Uploads are skipped while the network is unavailable, if the app has ACCESS_NETWORK_STATE permission.
+     *
+     * @param maxQueuedBytes the size of queued events to upload at
+     * @param maxEventAgeMillis the max milliseconds an event waits for an upload
+     * @param idleMillis the milliseconds without added events to upload after
+     */
+    public void enableAutoFlush(long maxQueuedBytes, long maxEventAgeMillis, long idleMillis) {
+        flushScheduler.enableAutoFlush(maxQueuedBytes, maxEventAgeMillis, idleMillis);
+    }
+
+    public void disableAutoFlush() {
+        flushScheduler.disableAutoFlush();
+    }
+
+    public boolean isAutoFlushEnabled() {
+        return flushScheduler.isAutoFlushEnabled();
+    }
+
+    private TDFlushScheduler createFlushScheduler() {
+        TDFlushScheduler flushScheduler = new TDFlushScheduler(new TDFlushScheduler.Uploader() {
+            @Override
+            public void upload(KeenCallback callback) {
+                if (getClient() == null) {
+                    callback.onFailure(new IllegalStateException("TDClient is null"));
+                    return;
+                }
+                getClient().sendQueuedEventsAsync(null, callback);
+            }
+
+            @Override
+            public boolean isNetworkAvailable() {
+                return TreasureData.this.isNetworkAvailable();
+            }
+        });
+        return flushScheduler;
+    }
+
+    private void registerEventStoreListener() {
+        if (client != null) {
+            client.setEventStoreListener(new TDEventStore.StoreListener() {
+                @Override
+                public void onStored(int bytes) {
+                    flushScheduler.onEventStored(bytes);
+                }
+            });
+        }
+    }
+
+    private boolean isNetworkAvailable() {
+        if (context == null || context.checkCallingOrSelfPermission(android.Manifest.permission.ACCESS_NETWORK_STATE) != PackageManager.PERMISSION_GRANTED) {
+            // Can't tell. Try uploading
+            return true;
+        }
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (connectivityManager == null) {
+            return true;
+        }
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        return networkInfo != null && networkInfo.isConnected();
     }
 
     private static KeenClient.KeenCallbackWithErrorCode createKeenCallback(final String methodName, final TDCallback callback) {
@@ -636,6 +1155,13 @@ public class TreasureData implements CDPClient {
     }
 
     public void appendSessionId(Map<String, Object> record) {
+        String sessionId = getEventSessionId();
+        if (sessionId != null) {
+            record.put(EVENT_KEY_SESSION_ID, sessionId);
+        }
+    }
+
+    private String getEventSessionId() {
         String instanceSessionId = session.getId();
         String globalSessionId = null;
         Session globalSession = getSession(context);
@@ -647,17 +1173,11 @@ public class TreasureData implements CDPClient {
             Log.w(TAG, "instance method TreasureData#startSession(String) and static method TreasureData.startSession(android.content.Context) are both enabled, but the instance method will be ignored.");
         }
 
-        if (instanceSessionId != null) {
-            record.put(EVENT_KEY_SESSION_ID, instanceSessionId);
-        }
-
-        if (globalSessionId != null) {
-            record.put(EVENT_KEY_SESSION_ID, globalSessionId);
-        }
+        return globalSessionId != null ? globalSessionId : instanceSessionId;
     }
 
     public void appendUniqId(Map<String, Object> record) {
-        record.put(EVENT_KEY_UUID, uuid);
+        record.put(EVENT_KEY_UUID, getUUID());
     }
 
     public void appendModelInformation(Map<String, Object> record) {
@@ -682,6 +1202,53 @@ public class TreasureData implements CDPClient {
         record.put(EVENT_KEY_LOCALE_LANG, locale.getLanguage());
     }
 
+    private static class DeviceContext {
+        final int version;
+        final Map<String, Object> columns;
+
+        DeviceContext(int version, Map<String, Object> columns) {
+            this.version = version;
+            this.columns = columns;
+        }
+    }
+
+    /**
+     * Returns the columns appended to every event: UUID, model, app and locale information
+     * depending on the settings. They're built once and shared until the settings or the configuration change.
+     */
+    private Map<String, Object> getDeviceContext() {
+        int version = deviceContextVersion.get();
+        DeviceContext current = deviceContext;
+        if (current != null && current.version == version) {
+            return current.columns;
+        }
+
+        Map<String, Object> columns = new HashMap<String, Object>();
+        if (autoAppendUniqId) {
+            appendUniqId(columns);
+        }
+
+        if (autoAppendModelInformation) {
+            appendModelInformation(columns);
+        }
+
+        if (autoAppendAppInformation) {
+            appendAppInformation(columns);
+        }
+
+        if (autoAppendLocaleInformation) {
+            appendLocaleInformation(columns);
+        }
+        columns = Collections.unmodifiableMap(columns);
+        // If invalidated meanwhile, the version doesn't match and it's built again next time
+        deviceContext = new DeviceContext(version, columns);
+        return columns;
+    }
+
+    private void invalidateDeviceContext() {
+        deviceContextVersion.incrementAndGet();
+    }
+
     public void appendRecordUUID(Map<String, Object> record) {
         record.put(autoAppendRecordUUIDColumn, UUID.randomUUID().toString());
     }
@@ -710,10 +1277,10 @@ public class TreasureData implements CDPClient {
 
 
     public void enableAppLifecycleEvent(boolean enabled) {
-        this.appLifecycleEventEnabled = enabled;
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            sharedPreferences.edit().putBoolean(SHARED_PREF_APP_LIFECYCLE_EVENT_ENABLED, this.appLifecycleEventEnabled).commit();
+        TDSettings settings = getSettings();
+        synchronized (settingsLock) {
+            this.appLifecycleEventEnabled = enabled;
+            settings.putBoolean(SHARED_PREF_APP_LIFECYCLE_EVENT_ENABLED, enabled);
         }
     }
 
@@ -726,9 +1293,9 @@ public class TreasureData implements CDPClient {
     }
 
     private boolean getAppLifecycleEventEnabled() {
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            return sharedPreferences.getBoolean(SHARED_PREF_APP_LIFECYCLE_EVENT_ENABLED, false);
+        TDSettings settings = getSettings();
+        synchronized (settingsLock) {
+            return settings.getBoolean(SHARED_PREF_APP_LIFECYCLE_EVENT_ENABLED, false);
         }
     }
 
@@ -741,10 +1308,10 @@ public class TreasureData implements CDPClient {
     }
 
     public void enableInAppPurchaseEvent(boolean enabled) {
-        this.inAppPurchaseEventEnabled = enabled;
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            sharedPreferences.edit().putBoolean(SHARED_PREF_IAP_EVENT_ENABLED, this.inAppPurchaseEventEnabled).commit();
+        TDSettings settings = getSettings();
+        synchronized (settingsLock) {
+            this.inAppPurchaseEventEnabled = enabled;
+            settings.putBoolean(SHARED_PREF_IAP_EVENT_ENABLED, enabled);
         }
 
         if (inAppPurchaseEventEnabled && !isInAppPurchaseEventTracking.getAndSet(true)) {
@@ -765,9 +1332,9 @@ public class TreasureData implements CDPClient {
     }
 
     private boolean getInAppPurchaseEventEventEnabled() {
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            return sharedPreferences.getBoolean(SHARED_PREF_IAP_EVENT_ENABLED, false);
+        TDSettings settings = getSettings();
+        synchronized (settingsLock) {
+            return settings.getBoolean(SHARED_PREF_IAP_EVENT_ENABLED, false);
         }
     }
 
@@ -794,10 +1361,10 @@ public class TreasureData implements CDPClient {
     }
 
     public void enableCustomEvent(boolean enabled) {
-        this.customEventEnabled = enabled;
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            sharedPreferences.edit().putBoolean(SHARED_PREF_CUSTOM_EVENT_ENABLED,  this.customEventEnabled).commit();
+        TDSettings settings = getSettings();
+        synchronized (settingsLock) {
+            this.customEventEnabled = enabled;
+            settings.putBoolean(SHARED_PREF_CUSTOM_EVENT_ENABLED, enabled);
         }
     }
 
@@ -847,9 +1414,9 @@ public class TreasureData implements CDPClient {
     }
 
     private boolean getCustomEventEnabled() {
-        SharedPreferences sharedPreferences = getSharedPreference(context);
-        synchronized (this) {
-            this.customEventEnabled = sharedPreferences.getBoolean(SHARED_PREF_CUSTOM_EVENT_ENABLED, true);
+        TDSettings settings = getSettings();
+        synchronized (settingsLock) {
+            this.customEventEnabled = settings.getBoolean(SHARED_PREF_CUSTOM_EVENT_ENABLED, true);
             return this.customEventEnabled;
         }
     }
@@ -882,34 +1449,42 @@ public class TreasureData implements CDPClient {
 
     public void disableAutoAppendUniqId() {
         this.autoAppendUniqId = false;
+        invalidateDeviceContext();
     }
 
     public void enableAutoAppendUniqId() {
         this.autoAppendUniqId = true;
+        invalidateDeviceContext();
     }
 
     public void disableAutoAppendModelInformation() {
         this.autoAppendModelInformation = false;
+        invalidateDeviceContext();
     }
 
     public void enableAutoAppendModelInformation() {
         this.autoAppendModelInformation = true;
+        invalidateDeviceContext();
     }
 
     public void disableAutoAppendAppInformation() {
         this.autoAppendAppInformation = false;
+        invalidateDeviceContext();
     }
 
     public void enableAutoAppendAppInformation() {
         this.autoAppendAppInformation = true;
+        invalidateDeviceContext();
     }
 
     public void disableAutoAppendLocaleInformation() {
         this.autoAppendLocaleInformation = false;
+        invalidateDeviceContext();
     }
 
     public void enableAutoAppendLocaleInformation() {
         this.autoAppendLocaleInformation = true;
+        invalidateDeviceContext();
     }
 
     public void enableAutoAppendAdvertisingIdentifier() {
@@ -944,18 +1519,197 @@ public class TreasureData implements CDPClient {
                     setAdvertisingId(aid);
                 }
             });
-            getAdvertisingIdTask.execute(context);
+            getAdvertisingIdTask.executeOnExecutor(TDScheduler.executor(TDScheduler.Lane.INGESTION), context);
         } catch (Exception e) {
+            // Retried on the next update
+            getAdvertisingIdTask = null;
             Log.w(TAG, e.getMessage());
         }
     }
 
     public void disableAutoRetryUploading() {
-        client.disableAutoRetryUploading();
+        getClient().disableAutoRetryUploading();
     }
 
     public void enableAutoRetryUploading() {
-        client.enableAutoRetryUploading();
+        getClient().enableAutoRetryUploading();
+    }
+
+    /**
+     * After uploading fails because of the network or the server, the next upload waits for a backoff,
+     * which starts from {@code baseDelayMillis} and doubles for each failure up to {@code maxDelayMillis}, with jitter.
+     * Retry-After of the server is followed if it's longer. The default is from 10 seconds to 10 minutes.
+     */
+    public void setUploadRetryBackoff(long baseDelayMillis, long maxDelayMillis) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        getClient().getRetryPolicy().setBackoff(baseDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * After uploading fails {@code failureThreshold} times in a row, uploads are paused for {@code pauseMillis}.
+     * The default is 8 times and 1 hour.
+     */
+    public void setUploadCircuitBreaker(int failureThreshold, long pauseMillis) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        getClient().getRetryPolicy().setCircuitBreaker(failureThreshold, pauseMillis);
+    }
+
+    /**
+     * An event that the server rejects this number of times is moved out of the queue,
+     * so that it doesn't block the other events. The default is 20.
+     */
+    public void setMaxUploadAttempts(int maxAttempts) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        getClient().getRetryPolicy().setMaxAttempts(maxAttempts);
+    }
+
+    /**
+     * Added events are written to a journal file at once, so that they survive the process being killed,
+     * and forced to the storage together after this interval, so that they survive a crash of the OS
+     * without syncing the file for each event. The default is 1000 milliseconds.
+     *
+     * @param syncIntervalMillis 0 to force each event to the storage, and -1 never to force them
+     */
+    public void setEventSyncInterval(long syncIntervalMillis) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        getClient().setEventSyncInterval(syncIntervalMillis);
+    }
+
+    /**
+     * Bound the local buffer of events, so that devices offline for a long time don't fill the storage.
+     * When an added event would exceed the quota, buffered events are dropped following {@code evictionPolicy}.
+     * The default is 16 MB, 100000 events and {@link TDEvictionPolicy#DROP_OLDEST}.
+     *
+     * @param maxBytes the max bytes of buffered events
+     * @param maxEvents the max number of buffered events
+     */
+    public void setEventStoreQuota(long maxBytes, int maxEvents, TDEvictionPolicy evictionPolicy) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        try {
+            getClient().setEventStoreQuota(maxBytes, maxEvents, evictionPolicy);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to evict events", e);
+        }
+    }
+
+    /**
+     * Limit the rate of events added to the table. Events beyond it are dropped before they're stored.
+     * This can be changed at any time.
+     *
+     * @param eventsPerSecond the rate events are allowed on average
+     * @param burst the number of events allowed at once
+     */
+    public void setEventRateLimit(String database, String table, double eventsPerSecond, int burst) {
+        String eventCollection = eventCollectionOf(database, table);
+        if (eventCollection == null) {
+            return;
+        }
+        eventFilter.setRateLimit(eventCollection, eventsPerSecond, burst);
+    }
+
+    /**
+     * Keep events of the table only on a fraction of devices. Whether a device keeps them is decided
+     * by a hash of its UUID, so a device keeps all or none of the events of the table.
+     *
+     * @param samplingRate from 0.0 to 1.0. 1.0 keeps the events on all the devices
+     */
+    public void setEventSamplingRate(String database, String table, double samplingRate) {
+        String eventCollection = eventCollectionOf(database, table);
+        if (eventCollection == null) {
+            return;
+        }
+        eventFilter.setSamplingRate(eventCollection, samplingRate);
+    }
+
+    /**
+     * Drop an event of the table when the same event was added within the window, like double taps.
+     *
+     * @param windowMillis 0 not to drop duplicated events
+     */
+    public void setEventDedupWindow(String database, String table, long windowMillis) {
+        String eventCollection = eventCollectionOf(database, table);
+        if (eventCollection == null) {
+            return;
+        }
+        eventFilter.setDedupWindow(eventCollection, windowMillis);
+    }
+
+    /**
+     * Remove the rate limit, the sampling and the dedup of the table.
+     */
+    public void clearEventFilters(String database, String table) {
+        String eventCollection = eventCollectionOf(database, table);
+        if (eventCollection == null) {
+            return;
+        }
+        eventFilter.clear(eventCollection);
+    }
+
+    /**
+     * @return null after logging an error if the name is invalid
+     */
+    private static String eventCollectionOf(String database, String table) {
+        TDTableRef tableRef = TDTableRef.lookup(database, table);
+        if (tableRef == null) {
+            Log.e(TAG, TDTableRef.invalidNameMessage(database, table));
+            return null;
+        }
+        return tableRef.getEventCollection();
+    }
+
+    /**
+     * Set the priority of the table. Events of tables with higher priority are uploaded first in each upload,
+     * so that important events like purchases aren't delayed by many other events. With
+     * {@link TDEvictionPolicy#DROP_LOWEST_PRIORITY}, events of tables with lower priority are dropped first.
+     * The default is 0.
+     */
+    public void setTablePriority(String database, String table, int priority) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        String eventCollection = eventCollectionOf(database, table);
+        if (eventCollection == null) {
+            return;
+        }
+        getClient().setCollectionPriority(eventCollection, priority);
+    }
+
+    /**
+     * @param listener notified when buffered events are dropped to keep the quota. null to remove it
+     */
+    public void setEvictionListener(final TDEvictionListener listener) {
+        if (getClient() == null) {
+            Log.w(TAG, "TDClient is null");
+            return;
+        }
+        if (listener == null) {
+            getClient().setEventEvictionListener(null);
+            return;
+        }
+        getClient().setEventEvictionListener(new TDEventStore.EvictionListener() {
+            @Override
+            public void onEvicted(String collection, int count) {
+                int separator = collection.indexOf('.');
+                listener.onEvicted(collection.substring(0, separator), collection.substring(separator + 1), count);
+            }
+        });
     }
 
     public static void setSessionTimeoutMilli(long timeoutMilli)
@@ -963,13 +1717,30 @@ public class TreasureData implements CDPClient {
         sessionTimeoutMilli = timeoutMilli;
     }
 
+    /**
+     * A session bound to an application context. It's replaced as a whole, so reading the session
+     * of each event doesn't take a lock.
+     */
+    private static final class AppSession {
+        final WeakReference<Context> applicationContext;
+        final Session session;
+
+        AppSession(Context applicationContext, Session session) {
+            this.applicationContext = new WeakReference<Context>(applicationContext);
+            this.session = session;
+        }
+    }
+
     private static Session getSession(Context context) {
         if (context == null) {
             Log.w(TAG, "context is null. It's an unit test, right?");
             return null;
         }
-        Context applicationContext = context.getApplicationContext();
-        return sessions.get(applicationContext);
+        AppSession current = appSession.get();
+        if (current == null || current.applicationContext.get() != context.getApplicationContext()) {
+            return null;
+        }
+        return current.session;
     }
 
     public void startSession(String table) {
@@ -985,9 +1756,16 @@ public class TreasureData implements CDPClient {
 
     public static void startSession(Context context) {
         Session session = getSession(context);
-        if (session == null) {
-            session = new Session(sessionTimeoutMilli);
-            sessions.put(context.getApplicationContext(), session);
+        while (session == null) {
+            AppSession current = appSession.get();
+            AppSession next = new AppSession(context.getApplicationContext(), new Session(sessionTimeoutMilli));
+            if (appSession.compareAndSet(current, next)) {
+                session = next.session;
+            }
+            else {
+                // Another thread has started one
+                session = getSession(context);
+            }
         }
         session.start();
     }
@@ -1068,12 +1846,16 @@ public class TreasureData implements CDPClient {
 
     // Only for testing
     @Deprecated
-    TreasureData(Context context, TDClient mockClient, String uuid) {
+    TreasureData(Context context, TDClient mockClient, TDDeviceId deviceId) {
         this.context = context;
         this.client = mockClient;
-        this.uuid = uuid;
+        this.flushScheduler = createFlushScheduler();
+        registerEventStoreListener();
+        this.deviceId = deviceId;
         this.appVersion = "3.1.4";
         this.appVersionNumber = 42;
+        clientInitialized.countDown();
+        addPendingEvents();
     }
 
     static class NullTreasureData extends TreasureData {
@@ -1107,6 +1889,18 @@ public class TreasureData implements CDPClient {
         public void addEventWithCallback(String database, String table, Map<String, Object> record, TDCallback callback) {
         }
 
+        @Override
+        public void addEventWithCallback(String database, String table, TDEvent event, TDCallback callback) {
+        }
+
+        @Override
+        public void addEventWithCallback(TDTableRef tableRef, Map<String, Object> record, TDCallback callback) {
+        }
+
+        @Override
+        public void addEventWithCallback(TDTableRef tableRef, TDEvent event, TDCallback callback) {
+        }
+
         @Override
         public void uploadEvents() {
         }
@@ -10,6 +10,7 @@ import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
+import com.treasuredata.android.TDScheduler;
 import com.treasuredata.android.TreasureData;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -18,6 +19,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.treasuredata.android.billing.internal.PurchaseConstants.INAPP;
@@ -122,7 +124,7 @@ public class PurchaseEventActivityLifecycleTracker {
 
             @Override
             public void onActivityResumed(Activity activity) {
-                TreasureData.getExecutor().execute(new Runnable() {
+                executeInBackground(new Runnable() {
                     @Override
                     public void run() {
                         final Context context = TreasureData.getApplicationContext();
@@ -152,7 +154,7 @@ public class PurchaseEventActivityLifecycleTracker {
                 // (https://developer.android.com/google/play/billing/billing_library_overview)
                 if (hasBillingActivity
                         && activity.getLocalClassName().equals(BILLING_ACTIVITY_NAME)) {
-                    TreasureData.getExecutor().execute(new Runnable() {
+                    executeInBackground(new Runnable() {
                         @Override
                         public void run() {
                             final Context context = TreasureData.getApplicationContext();
@@ -185,6 +187,15 @@ public class PurchaseEventActivityLifecycleTracker {
         };
     }
 
+    private static void executeInBackground(Runnable task) {
+        try {
+            TDScheduler.executor(TDScheduler.Lane.BILLING).execute(task);
+        } catch (RejectedExecutionException e) {
+            // Purchases are read again when the next activity is resumed
+            Log.w(TAG, "Skipped reading purchases: " + e.getMessage());
+        }
+    }
+
     private static boolean isInitialized() {
         return hasBillingService != null;
     }
@@ -2,6 +2,7 @@ package com.treasuredata.android.cdp;
 
 import android.os.Handler;
 import android.os.Looper;
+import com.treasuredata.android.TDScheduler;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -14,13 +15,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static android.os.Looper.getMainLooper;
 import static android.os.Looper.myLooper;
 import static android.text.TextUtils.join;
 import static io.keen.client.java.KeenUtils.convertStreamToString;
-import static java.util.concurrent.Executors.newFixedThreadPool;
 
 public class CDPClientImpl implements CDPClient {
     private static final int CONNECT_TIMEOUT = 15000;
@@ -38,7 +39,7 @@ public class CDPClientImpl implements CDPClient {
     }
 
     private final URI apiURI;
-    private final ExecutorService executor;
+    private final Executor executor;
 
     public CDPClientImpl() {
         this(DEFAULT_ENDPOINT);
@@ -49,11 +50,11 @@ public class CDPClientImpl implements CDPClient {
     }
 
     public CDPClientImpl(URI endpoint) {
-        // Could be opened for number of threads customization later
-        this(endpoint, newFixedThreadPool(1));
+        // The number of threads can be configured with TDScheduler
+        this(endpoint, TDScheduler.executor(TDScheduler.Lane.CDP));
     }
 
-    private CDPClientImpl(URI endpoint, ExecutorService executor) {
+    private CDPClientImpl(URI endpoint, Executor executor) {
         this.apiURI = endpoint.resolve("/cdp/lookup/collect/segments");
         this.executor = executor;
     }
@@ -73,25 +74,34 @@ public class CDPClientImpl implements CDPClient {
         // then use that for the callback invocation, use main loop otherwise.
         final Looper callbackLooper = myLooper() != null ? myLooper() : getMainLooper();
 
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                final FetchUserSegmentsResult result = fetchUserSegmentResultSynchronously(profileTokensSafeCopy, keysSafeCopy);
-
-                if (callbackLooper != null) {
-                    new Handler(callbackLooper).post(new Runnable() {
-                        @Override
-                        public void run() {
-                            result.invoke(callback);
-                        }
-                    });
-                } else {
-                    // In any case where even mainLooper is null (using on an non-Android runtime?),
-                    // just do the callback on this thread.
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    invokeCallback(fetchUserSegmentResultSynchronously(profileTokensSafeCopy, keysSafeCopy), callback, callbackLooper);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Too many requests are waiting
+            invokeCallback(FetchUserSegmentsResult.create(e), callback, callbackLooper);
+        }
+    }
+
+    private static void invokeCallback(final FetchUserSegmentsResult result,
+                                       final FetchUserSegmentsCallback callback,
+                                       Looper callbackLooper) {
+        if (callbackLooper != null) {
+            new Handler(callbackLooper).post(new Runnable() {
+                @Override
+                public void run() {
                     result.invoke(callback);
                 }
-            }
-        });
+            });
+        } else {
+            // In any case where even mainLooper is null (using on an non-Android runtime?),
+            // just do the callback on this thread.
+            result.invoke(callback);
+        }
     }
 
     // Visible for testing
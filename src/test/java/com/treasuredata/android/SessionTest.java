@@ -2,6 +2,10 @@ package com.treasuredata.android;
 
 import org.junit.Test;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
@@ -80,4 +84,35 @@ public class SessionTest {
 
         assertEquals(firstSessionId, secondSessionId);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void concurrentStartShouldShareId() throws InterruptedException {
+        final Session session = new Session(1000);
+        final Set<String> ids = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch ready = new CountDownLatch(1);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ready.await();
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    session.start();
+                    ids.add(session.getId());
+                }
+            };
+            threads[i].start();
+        }
+        ready.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, ids.size());
+        assertEquals(session.getId(), ids.iterator().next());
+    }
+}
@@ -2,6 +2,7 @@ package com.treasuredata.android;
 
 import com.fasterxml.jackson.jr.ob.JSON;
 import io.keen.client.java.KeenCallback;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -277,4 +278,57 @@ public class TDClientTest
 
         sendQueuedEventsAndAssert(client, Arrays.asList(expected0, expected1));
     }
+
+    @Test
+    public void sendToTwoTablesInParallel()
+            throws Exception {
+        // Every event in the request succeeds
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                try {
+                    Map<String, Object> requests = JSON.mapFrom(request.getBody().clone().inputStream());
+                    Map<String, Object> results = new HashMap<String, Object>();
+                    for (Map.Entry<String, Object> entry : requests.entrySet()) {
+                        List<Map<String, Object>> tableResults = new ArrayList<Map<String, Object>>();
+                        for (int i = 0; i < ((List<?>) entry.getValue()).size(); i++) {
+                            tableResults.add(Collections.<String, Object>singletonMap("success", true));
+                        }
+                        results.put(entry.getKey(), tableResults);
+                    }
+                    return new MockResponse().setBody(JSON.asString(results));
+                } catch (IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        server.start();
+
+        TDClient.setApiEndpoint(String.format("http://127.0.0.1:%d", server.getPort()));
+        TDClient client = new TDClient(APIKEY, cacheDir);
+        client.setMaxUploadEventsAtOnce(2);
+        client.setMaxConcurrentUploads(2);
+
+        List<Map<String, Object>> events0 = new ArrayList<Map<String, Object>>();
+        List<Map<String, Object>> events1 = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 4; i++) {
+            HashMap<String, Object> event0 = new HashMap<String, Object>();
+            event0.put("name", "Foo" + i);
+            client.queueEvent("db0.tbl0", event0);
+            events0.add(event0);
+
+            HashMap<String, Object> event1 = new HashMap<String, Object>();
+            event1.put("name", "Bar" + i);
+            client.queueEvent("db1.tbl1", event1);
+            events1.add(event1);
+        }
+
+        // A request has events of one table
+        Map<String, List<Map<String, Object>>> expected = new HashMap<String, List<Map<String, Object>>>();
+        expected.put("db0.tbl0", events0);
+        expected.put("db1.tbl1", events1);
+
+        sendQueuedEventsAndAssert(client, Arrays.asList(expected));
+        assertTrue(client.getEventStore().getHandles(client.getDefaultProject().getProjectId(), 10).isEmpty());
+    }
 }
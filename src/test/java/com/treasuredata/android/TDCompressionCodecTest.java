@@ -0,0 +1,116 @@
+package com.treasuredata.android;
+
+import io.keen.client.java.http.OutputSource;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.Adler32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDCompressionCodecTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String BODY;
+
+    static {
+        StringBuilder sb = new StringBuilder("{\"db0.tbl0\":[");
+        for (int i = 0; i < 1000; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"td_uuid\":\"2F1FCD4D-74A6-45EF-B9B0-CD82DE49BE69\",\"td_os_type\":\"Android\",\"id\":").append(i).append('}');
+        }
+        BODY = sb.append("]}").toString();
+    }
+
+    private static byte[] compress(TDCompressionCodec codec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        codec.compress(new OutputSource() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(BODY.getBytes(UTF8));
+            }
+        }, out);
+        return out.toByteArray();
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        return new String(out.toByteArray(), UTF8);
+    }
+
+    @Test
+    public void identity() throws IOException {
+        assertNull(TDCompressionCodec.IDENTITY.getContentEncoding());
+        assertThat(new String(compress(TDCompressionCodec.IDENTITY), UTF8), is(BODY));
+    }
+
+    @Test
+    public void deflate() throws IOException {
+        assertThat(TDCompressionCodec.DEFLATE.getContentEncoding(), is("deflate"));
+        // Run twice to use a pooled Deflater
+        for (int i = 0; i < 2; i++) {
+            byte[] compressed = compress(TDCompressionCodec.DEFLATE);
+            assertTrue(compressed.length < BODY.length());
+            assertThat(readAll(new InflaterInputStream(new ByteArrayInputStream(compressed))), is(BODY));
+        }
+    }
+
+    @Test
+    public void gzip() throws IOException {
+        assertThat(TDCompressionCodec.GZIP.getContentEncoding(), is("gzip"));
+        for (int i = 0; i < 2; i++) {
+            byte[] compressed = compress(TDCompressionCodec.GZIP);
+            assertThat(readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))), is(BODY));
+        }
+    }
+
+    @Test
+    public void deflateWithDictionary() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            byte[] compressed = compress(TDCompressionCodec.DEFLATE_WITH_TD_DICTIONARY);
+
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            byte[] buf = new byte[BODY.length() * 2];
+            assertThat(inflater.inflate(buf), is(0));
+            assertTrue(inflater.needsDictionary());
+            inflater.setDictionary(TDCompressionCodec.TD_COLUMN_DICTIONARY);
+            int len = inflater.inflate(buf);
+            assertTrue(inflater.finished());
+            assertThat(new String(buf, 0, len, UTF8), is(BODY));
+            inflater.end();
+        }
+    }
+
+    @Test
+    public void dictionaryShouldNotChange() throws Exception {
+        // The endpoint identifies the dictionary by this checksum. Changing the dictionary needs a new codec
+        long expectedChecksum = 0x59fd5c94L;
+        byte[] dictionary = TDCompressionCodec.TD_COLUMN_DICTIONARY;
+        assertThat(dictionary.length, is(273));
+        Adler32 adler32 = new Adler32();
+        adler32.update(dictionary);
+        assertThat(adler32.getValue(), is(expectedChecksum));
+
+        // FDICT of the zlib header, followed by DICTID
+        byte[] compressed = compress(TDCompressionCodec.DEFLATE_WITH_TD_DICTIONARY);
+        assertTrue((compressed[1] & 0x20) != 0);
+        long dictId = ((compressed[2] & 0xffL) << 24) | ((compressed[3] & 0xffL) << 16) | ((compressed[4] & 0xffL) << 8) | (compressed[5] & 0xffL);
+        assertThat(dictId, is(expectedChecksum));
+    }
+}
@@ -0,0 +1,50 @@
+package com.treasuredata.android;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+public class TDDateFormatterTest {
+    private static void assertSameAsSimpleDateFormat(String timeZoneId, long... times) {
+        TimeZone timeZone = TimeZone.getTimeZone(timeZoneId);
+        SimpleDateFormat expectedFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.US);
+        expectedFormat.setTimeZone(timeZone);
+        TDDateFormatter formatter = new TDDateFormatter(timeZone);
+        for (long time : times) {
+            Date date = new Date(time);
+            assertEquals(expectedFormat.format(date), formatter.format(date));
+        }
+    }
+
+    @Test
+    public void formatSameAsSimpleDateFormat() {
+        Random random = new Random(42);
+        long[] times = new long[10000];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < times.length; i++) {
+            // Mix dates in the same second with ones far away
+            times[i] = i % 2 == 0 ? now + random.nextInt(3000) : now + (random.nextLong() % (100L * 365 * 86400000));
+        }
+        for (String timeZoneId : new String[] {"UTC", "Asia/Tokyo", "America/Los_Angeles", "Asia/Kolkata", "America/St_Johns"}) {
+            assertSameAsSimpleDateFormat(timeZoneId, times);
+        }
+    }
+
+    @Test
+    public void formatAroundDstTransition() {
+        // 2019-03-10T02:00:00-08:00 and 2019-11-03T02:00:00-07:00 in Los Angeles
+        assertSameAsSimpleDateFormat("America/Los_Angeles",
+                1552212000000L - 1, 1552212000000L, 1572771600000L - 1, 1572771600000L);
+    }
+
+    @Test
+    public void formatOutOfFixedWidth() {
+        assertSameAsSimpleDateFormat("UTC", -1L, 0L, -62135769600001L, 253402300800000L, 253402300799999L);
+    }
+}
@@ -0,0 +1,56 @@
+package com.treasuredata.android;
+
+import android.content.SharedPreferences;
+import org.junit.Test;
+
+import java.util.HashMap;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TDDeviceIdTest {
+    @Test
+    public void uuidShouldBeGeneratedOnce() {
+        TDSettings settings = new TDSettings(null);
+        TDDeviceId deviceId = new TDDeviceId(settings);
+        String uuid = deviceId.get();
+        assertNotNull(uuid);
+        assertThat(deviceId.get(), is(uuid));
+        assertThat(settings.getString(TDDeviceId.KEY_UUID, null), is(uuid));
+        assertThat(new TDDeviceId(settings).get(), is(uuid));
+    }
+
+    @Test
+    public void resetShouldReplaceUuidInMemoryAndSettings() {
+        TDSettings settings = new TDSettings(null);
+        settings.putString(TDDeviceId.KEY_UUID, "abc");
+        TDDeviceId deviceId = new TDDeviceId(settings);
+        assertThat(deviceId.get(), is("abc"));
+
+        assertThat(deviceId.reset(), is("abc"));
+        String uuid = deviceId.get();
+        assertThat(uuid, is(not("abc")));
+        assertThat(settings.getString(TDDeviceId.KEY_UUID, null), is(uuid));
+    }
+
+    @Test
+    public void generatedUuidShouldBeWrittenAtOnce() {
+        SharedPreferences preferences = mock(SharedPreferences.class);
+        doReturn(new HashMap<String, Object>()).when(preferences).getAll();
+        SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+        when(preferences.edit()).thenReturn(editor);
+        when(editor.commit()).thenReturn(true);
+        TDDeviceId deviceId = new TDDeviceId(new TDSettings(preferences));
+
+        String uuid = deviceId.get();
+        verify(editor).putString(TDDeviceId.KEY_UUID, uuid);
+        verify(editor).commit();
+
+        assertThat(deviceId.reset(), is(uuid));
+        String newUuid = deviceId.get();
+        verify(editor).putString(TDDeviceId.KEY_UUID, newUuid);
+        verify(editor, times(2)).commit();
+    }
+}
@@ -0,0 +1,117 @@
+package com.treasuredata.android;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDEventFilterTest {
+    private static final String COLLECTION = "db0.tbl0";
+    private static final String UUID_0 = "5dcd7a5c-0c41-4a4b-a3ad-0a3f4a1a2a11";
+
+    private static Map<String, Object> event(int id) {
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put("id", id);
+        return event;
+    }
+
+    @Test
+    public void eventsWithoutRuleShouldBeAccepted() {
+        TDEventFilter filter = new TDEventFilter();
+        filter.setRateLimit("db0.another", 1, 1);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(filter.accept(COLLECTION, UUID_0, event(i)));
+        }
+    }
+
+    @Test
+    public void eventsBeyondRateShouldBeDropped() throws InterruptedException {
+        TDEventFilter filter = new TDEventFilter();
+        filter.setRateLimit(COLLECTION, 10, 3);
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (filter.accept(COLLECTION, UUID_0, event(i))) {
+                accepted++;
+            }
+        }
+        assertThat(accepted, is(3));
+
+        // Refilled at 10 events per second
+        Thread.sleep(250);
+        assertTrue(filter.accept(COLLECTION, UUID_0, event(10)));
+
+        // Rules can be removed at any time
+        filter.clear(COLLECTION);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(filter.accept(COLLECTION, UUID_0, event(i)));
+        }
+    }
+
+    @Test
+    public void samplingShouldBeDeterministicPerDevice() {
+        TDEventFilter filter = new TDEventFilter();
+        filter.setSamplingRate(COLLECTION, 0.25);
+        int sampledDevices = 0;
+        for (int i = 0; i < 4000; i++) {
+            String uuid = UUID.randomUUID().toString();
+            boolean sampled = filter.accept(COLLECTION, uuid, event(0));
+            // Other events of the device follow the first one
+            for (int j = 1; j < 3; j++) {
+                assertThat(filter.accept(COLLECTION, uuid, event(j)), is(sampled));
+            }
+            if (sampled) {
+                sampledDevices++;
+            }
+        }
+        assertTrue("sampledDevices=" + sampledDevices, sampledDevices > 850 && sampledDevices < 1150);
+
+        filter.setSamplingRate(COLLECTION, 0);
+        assertFalse(filter.accept(COLLECTION, UUID_0, event(0)));
+        filter.setSamplingRate(COLLECTION, 1.0);
+        assertTrue(filter.accept(COLLECTION, UUID_0, event(0)));
+    }
+
+    @Test
+    public void duplicatedEventsShouldBeDropped() throws InterruptedException {
+        TDEventFilter filter = new TDEventFilter();
+        filter.setDedupWindow(COLLECTION, 200);
+        assertTrue(filter.accept(COLLECTION, UUID_0, event(0)));
+        assertTrue(filter.accept(COLLECTION, UUID_0, event(1)));
+        assertFalse(filter.accept(COLLECTION, UUID_0, event(0)));
+        assertFalse(filter.accept(COLLECTION, UUID_0, event(1)));
+
+        TDEvent typedEvent = new TDEvent.Builder().putString("name", "tap").putLong("x", 1).build();
+        assertTrue(filter.accept(COLLECTION, UUID_0, typedEvent));
+        assertFalse(filter.accept(COLLECTION, UUID_0, new TDEvent.Builder().putLong("x", 1).putString("name", "tap").build()));
+
+        Thread.sleep(300);
+        assertTrue(filter.accept(COLLECTION, UUID_0, event(0)));
+    }
+
+    @Test
+    public void eventsWithSameHashShouldNotBeDropped() {
+        TDEventFilter filter = new TDEventFilter();
+        filter.setDedupWindow(COLLECTION, 60000);
+        Map<String, Object> record = new HashMap<String, Object>();
+        record.put("a", "b");
+        Map<String, Object> swapped = new HashMap<String, Object>();
+        swapped.put("b", "a");
+        assertEquals(record.hashCode(), swapped.hashCode());
+        assertTrue(filter.accept(COLLECTION, UUID_0, record));
+        assertTrue(filter.accept(COLLECTION, UUID_0, swapped));
+
+        // Changing the record after adding it doesn't affect dedup
+        record.put("a", "c");
+        assertTrue(filter.accept(COLLECTION, UUID_0, record));
+        assertFalse(filter.accept(COLLECTION, UUID_0, record));
+
+        TDEvent typedEvent = new TDEvent.Builder().putString("a", "b").build();
+        TDEvent swappedEvent = new TDEvent.Builder().putString("b", "a").build();
+        assertTrue(filter.accept(COLLECTION, UUID_0, typedEvent));
+        assertTrue(filter.accept(COLLECTION, UUID_0, swappedEvent));
+    }
+}
@@ -0,0 +1,363 @@
+package com.treasuredata.android;
+
+import io.keen.client.java.FileEventStore;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDEventStoreTest {
+    private static final String PROJECT_ID = "_td 0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File root;
+
+    @Before
+    public void setUp() {
+        root = temporaryFolder.getRoot();
+    }
+
+    private TDEventStore createEventStore(int maxSegmentBytes) throws IOException {
+        return new TDEventStore(new TDSegmentLog(new File(root, "td_event_log"), maxSegmentBytes), new FileEventStore(root), null);
+    }
+
+    private File[] segmentFiles() {
+        return new File(root, "td_event_log").listFiles();
+    }
+
+    @Test
+    public void storeAndGet() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        Object handle0 = store.store(PROJECT_ID, "db0.tbl0", "{\"name\":\"foo\"}");
+        Object handle1 = store.store(PROJECT_ID, "db1.tbl1", "{\"name\":\"\u30d0\u30fc\"}");
+
+        assertThat(store.get(handle0), is("{\"name\":\"foo\"}"));
+        assertThat(store.get(handle1), is("{\"name\":\"\u30d0\u30fc\"}"));
+
+        Map<String, List<Object>> handles = store.getHandles(PROJECT_ID, 10);
+        assertThat(handles.size(), is(2));
+        assertThat(handles.get("db0.tbl0").size(), is(1));
+        assertThat(handles.get("db1.tbl1").size(), is(1));
+        assertTrue(store.getHandles("another project", 10).isEmpty());
+    }
+
+    @Test
+    public void encryptedRecordShouldBeStoredAsRaw() throws IOException {
+        TDJsonHandler jsonHandler = new TDJsonHandler("hello, world", new TDJsonHandler.Base64Encoder() {
+            @Override
+            public String encode(byte[] data) {
+                return new String(Base64.encodeBase64(data));
+            }
+
+            @Override
+            public byte[] decode(String encoded) {
+                return Base64.decodeBase64(encoded.getBytes());
+            }
+        });
+        TDEventStore store = new TDEventStore(root);
+        store.setEventCodec(jsonHandler);
+
+        byte[] record = jsonHandler.toRecord(Collections.singletonMap("name", "\u30d0\u30fc"));
+        Object handle = store.store(PROJECT_ID, "db0.tbl0", record);
+        assertThat(store.getRaw(handle).remaining(), is(record.length));
+        assertThat(jsonHandler.readRecord(store.getRaw(handle)).get("name"), is((Object) "\u30d0\u30fc"));
+
+        // Records passed as text by KeenClient are stored as raw bytes as well, not Base64
+        StringWriter writer = new StringWriter();
+        jsonHandler.writeJson(writer, Collections.singletonMap("name", "\u30d0\u30fc"));
+        String textRecord = writer.toString();
+        handle = store.store(PROJECT_ID, "db0.tbl0", textRecord);
+        assertThat(store.getRaw(handle).remaining(), is(record.length));
+        assertThat(store.get(handle), is(textRecord));
+        assertThat(jsonHandler.readJson(new StringReader(store.get(handle))).get("name"), is((Object) "\u30d0\u30fc"));
+    }
+
+    @Test
+    public void getHandlesShouldBeLimited() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        for (int i = 0; i < 3; i++) {
+            store.store(PROJECT_ID, "db0.tbl0", "{}");
+            store.store(PROJECT_ID, "db1.tbl1", "{}");
+        }
+
+        Map<String, List<Object>> handles = store.getHandles(PROJECT_ID, 4);
+        int count = 0;
+        for (List<Object> collectionHandles : handles.values()) {
+            count += collectionHandles.size();
+        }
+        assertThat(count, is(4));
+    }
+
+    @Test
+    public void getHandlesOfCollection() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        Object handle0 = store.store(PROJECT_ID, "db1.tbl1", "{\"id\":0}");
+        Object handle1 = store.store(PROJECT_ID, "db0.tbl0", "{\"id\":1}");
+        Object handle2 = store.store(PROJECT_ID, "db1.tbl1", "{\"id\":2}");
+        store.store(PROJECT_ID, "db1.tbl1", "{\"id\":3}");
+
+        assertThat(store.getCollections(PROJECT_ID), is(Arrays.asList("db1.tbl1", "db0.tbl0")));
+        assertThat(store.getHandles(PROJECT_ID, "db1.tbl1", 2), is(Arrays.asList(handle0, handle2)));
+        assertThat(store.getHandles(PROJECT_ID, "db0.tbl0", 2), is(Collections.singletonList(handle1)));
+        assertTrue(store.getHandles(PROJECT_ID, "db2.tbl2", 2).isEmpty());
+
+        store.remove(handle1);
+        assertThat(store.getCollections(PROJECT_ID), is(Collections.singletonList("db1.tbl1")));
+    }
+
+    @Test
+    public void removedEventShouldNotBeReturned() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        Object handle0 = store.store(PROJECT_ID, "db0.tbl0", "{\"id\":0}");
+        Object handle1 = store.store(PROJECT_ID, "db0.tbl0", "{\"id\":1}");
+
+        store.remove(handle0);
+        assertNull(store.get(handle0));
+        assertThat(store.getHandles(PROJECT_ID, 10).get("db0.tbl0").size(), is(1));
+        assertThat(store.get(store.getHandles(PROJECT_ID, 10).get("db0.tbl0").get(0)), is("{\"id\":1}"));
+
+        store.remove(handle1);
+        assertTrue(store.getHandles(PROJECT_ID, 10).isEmpty());
+    }
+
+    @Test
+    public void eventsShouldSurviveReopen() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        Object handle0 = store.store(PROJECT_ID, "db0.tbl0", "{\"id\":0}");
+        store.store(PROJECT_ID, "db0.tbl0", "{\"id\":1}");
+        store.remove(handle0);
+
+        TDEventStore reopened = new TDEventStore(root);
+        List<Object> handles = reopened.getHandles(PROJECT_ID, 10).get("db0.tbl0");
+        assertThat(handles.size(), is(1));
+        assertThat(reopened.get(handles.get(0)), is("{\"id\":1}"));
+
+        // New events are appended after the recovered ones
+        reopened.store(PROJECT_ID, "db0.tbl0", "{\"id\":2}");
+        assertThat(new TDEventStore(root).getHandles(PROJECT_ID, 10).get("db0.tbl0").size(), is(2));
+    }
+
+    @Test
+    public void tornTailShouldBeTruncated() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        store.store(PROJECT_ID, "db0.tbl0", "{\"id\":0}");
+        store.store(PROJECT_ID, "db0.tbl0", "{\"id\":1}");
+
+        File[] files = segmentFiles();
+        assertThat(files.length, is(1));
+        RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        TDEventStore reopened = new TDEventStore(root);
+        List<Object> handles = reopened.getHandles(PROJECT_ID, 10).get("db0.tbl0");
+        assertThat(handles.size(), is(1));
+        assertThat(reopened.get(handles.get(0)), is("{\"id\":0}"));
+
+        reopened.store(PROJECT_ID, "db0.tbl0", "{\"id\":2}");
+        assertThat(new TDEventStore(root).getHandles(PROJECT_ID, 10).get("db0.tbl0").size(), is(2));
+    }
+
+    @Test
+    public void zeroFilledTailShouldBeTruncated() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        store.setSyncInterval(0);
+        store.store(PROJECT_ID, "db0.tbl0", "{\"id\":0}");
+
+        // The file was extended but the data wasn't written before a crash of the OS
+        File[] files = segmentFiles();
+        RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        long length = file.length();
+        file.setLength(length + 4096);
+        file.close();
+
+        TDEventStore reopened = new TDEventStore(root);
+        assertThat(files[0].length(), is(length));
+        reopened.store(PROJECT_ID, "db0.tbl0", "{\"id\":1}");
+        reopened.sync();
+        List<Object> handles = new TDEventStore(root).getHandles(PROJECT_ID, 10).get("db0.tbl0");
+        assertThat(handles.size(), is(2));
+    }
+
+    @Test
+    public void attemptsShouldSurviveReopen() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        Object handle = store.store(PROJECT_ID, "db0.tbl0", "{\"id\":0}");
+        assertThat(store.getAttempts(handle), is(0));
+        assertThat(store.addAttempt(handle), is(1));
+        assertThat(store.addAttempt(handle), is(2));
+
+        TDEventStore reopened = new TDEventStore(root);
+        assertThat(reopened.getAttempts(reopened.getHandles(PROJECT_ID, 10).get("db0.tbl0").get(0)), is(2));
+    }
+
+    @Test
+    public void quarantinedEventShouldBeMovedOutOfQueue() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        Object handle0 = store.store(PROJECT_ID, "db0.tbl0", "{\"id\":0}");
+        store.store(PROJECT_ID, "db0.tbl0", "{\"id\":1}");
+
+        store.quarantine("db0.tbl0", handle0);
+        List<Object> handles = store.getHandles(PROJECT_ID, 10).get("db0.tbl0");
+        assertThat(handles.size(), is(1));
+        assertThat(store.get(handles.get(0)), is("{\"id\":1}"));
+
+        List<Map.Entry<String, String>> quarantined = new TDEventStore(root).getQuarantinedEvents();
+        assertThat(quarantined.size(), is(1));
+        assertThat(quarantined.get(0).getKey(), is("db0.tbl0"));
+        assertThat(quarantined.get(0).getValue(), is("{\"id\":0}"));
+    }
+
+    private static List<String> getEvents(TDEventStore store, String collection) throws IOException {
+        List<String> events = new ArrayList<String>();
+        List<Object> handles = store.getHandles(PROJECT_ID, 100).get(collection);
+        if (handles != null) {
+            for (Object handle : handles) {
+                events.add(store.get(handle));
+            }
+        }
+        return events;
+    }
+
+    @Test
+    public void oldestEventsShouldBeEvictedBeyondQuota() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        final Map<String, Integer> evicted = new HashMap<String, Integer>();
+        store.setEvictionListener(new TDEventStore.EvictionListener() {
+            @Override
+            public void onEvicted(String collection, int count) {
+                evicted.put(collection, count);
+            }
+        });
+        store.setQuota(Long.MAX_VALUE, 3, TDEvictionPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            store.store(PROJECT_ID, i == 0 ? "db0.tbl0" : "db0.tbl1", "{\"id\":" + i + "}");
+        }
+
+        assertThat(store.getQueuedEvents(), is(3));
+        assertTrue(getEvents(store, "db0.tbl0").isEmpty());
+        assertThat(getEvents(store, "db0.tbl1"), is(Arrays.asList("{\"id\":2}", "{\"id\":3}", "{\"id\":4}")));
+        assertThat(evicted.get("db0.tbl0"), is(1));
+        assertThat(evicted.get("db0.tbl1"), is(1));
+
+        // Usage is counted in bytes as well
+        long bytesPerEvent = store.getQueuedBytes() / 3;
+        store.setQuota(bytesPerEvent * 2, 3, TDEvictionPolicy.DROP_OLDEST);
+        assertThat(store.getQueuedEvents(), is(2));
+        assertThat(store.getQueuedBytes(), is(bytesPerEvent * 2));
+        assertThat(new TDEventStore(root).getQueuedBytes(), is(bytesPerEvent * 2));
+    }
+
+    @Test
+    public void eventsWithLowerPriorityShouldBeEvicted() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        store.setQuota(Long.MAX_VALUE, 3, TDEvictionPolicy.DROP_LOWEST_PRIORITY);
+        store.setCollectionPriority("db0.high", 10);
+        store.setCollectionPriority("db0.low", -10);
+        store.store(PROJECT_ID, "db0.high", "{\"id\":0}");
+        store.store(PROJECT_ID, "db0.normal", "{\"id\":1}");
+        store.store(PROJECT_ID, "db0.low", "{\"id\":2}");
+        store.store(PROJECT_ID, "db0.high", "{\"id\":3}");
+        store.store(PROJECT_ID, "db0.high", "{\"id\":4}");
+
+        assertThat(getEvents(store, "db0.high"), is(Arrays.asList("{\"id\":0}", "{\"id\":3}", "{\"id\":4}")));
+        assertTrue(getEvents(store, "db0.low").isEmpty());
+        assertTrue(getEvents(store, "db0.normal").isEmpty());
+
+        // Nothing queued has lower priority than the new event
+        try {
+            store.store(PROJECT_ID, "db0.low", "{\"id\":5}");
+            fail();
+        }
+        catch (IOException e) {
+            assertThat(store.getQueuedEvents(), is(3));
+        }
+    }
+
+    @Test
+    public void collectionsWithHigherPriorityShouldBeReturnedFirst() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        store.setCollectionPriority("db0.purchase", 10);
+        store.setCollectionPriority("db0.debug", -1);
+        store.store(PROJECT_ID, "db0.debug", "{\"id\":0}");
+        store.store(PROJECT_ID, "db0.tbl0", "{\"id\":1}");
+        store.store(PROJECT_ID, "db0.tbl1", "{\"id\":2}");
+        store.store(PROJECT_ID, "db0.purchase", "{\"id\":3}");
+
+        assertThat(store.getCollections(PROJECT_ID), is(Arrays.asList("db0.purchase", "db0.tbl0", "db0.tbl1", "db0.debug")));
+        Map<String, List<Object>> handles = store.getHandles(PROJECT_ID, 2);
+        assertThat(new ArrayList<String>(handles.keySet()), is(Arrays.asList("db0.purchase", "db0.tbl0")));
+    }
+
+    @Test
+    public void sampledEventsShouldBeSpreadOverQueuedPeriod() throws IOException {
+        TDEventStore store = new TDEventStore(root);
+        store.setQuota(Long.MAX_VALUE, 4, TDEvictionPolicy.SAMPLE);
+        for (int i = 0; i < 6; i++) {
+            store.store(PROJECT_ID, "db0.tbl0", "{\"id\":" + i + "}");
+        }
+
+        // Every other event is evicted from the oldest one
+        assertThat(getEvents(store, "db0.tbl0"), is(Arrays.asList("{\"id\":0}", "{\"id\":2}", "{\"id\":4}", "{\"id\":5}")));
+    }
+
+    @Test
+    public void drainedSegmentsShouldBeDeleted() throws IOException {
+        TDEventStore store = createEventStore(128);
+        for (int i = 0; i < 20; i++) {
+            store.store(PROJECT_ID, "db0.tbl0", "{\"id\":" + i + "}");
+        }
+        assertTrue(segmentFiles().length > 1);
+
+        for (Object handle : store.getHandles(PROJECT_ID, 100).get("db0.tbl0")) {
+            store.remove(handle);
+        }
+        assertThat(segmentFiles().length, is(1));
+        assertTrue(createEventStore(128).getHandles(PROJECT_ID, 100).isEmpty());
+    }
+
+    @Test
+    public void logShouldBeCompactedWithinQuota() throws IOException {
+        TDEventStore store = createEventStore(128);
+        store.setQuota(1024, 100, TDEvictionPolicy.DROP_LOWEST_PRIORITY);
+        store.setCollectionPriority("db0.high", 10);
+        Object pinned = store.store(PROJECT_ID, "db0.high", "{\"id\":0}");
+        store.addAttempt(pinned);
+
+        // The event left in the oldest segment doesn't keep the later segments
+        for (int i = 1; i <= 200; i++) {
+            Object handle = store.store(PROJECT_ID, "db0.low", "{\"id\":" + i + "}");
+            assertTrue(store.getLogBytes() <= 1024);
+            store.remove(handle);
+        }
+        assertThat(store.get(pinned), is("{\"id\":0}"));
+        assertThat(store.getAttempts(pinned), is(1));
+        long queuedBytes = store.getQueuedBytes();
+
+        TDEventStore reopened = createEventStore(128);
+        List<Object> handles = reopened.getHandles(PROJECT_ID, 10).get("db0.high");
+        assertThat(handles.size(), is(1));
+        assertThat(reopened.get(handles.get(0)), is("{\"id\":0}"));
+        assertThat(reopened.getAttempts(handles.get(0)), is(1));
+        assertThat(reopened.getQueuedEvents(), is(1));
+        assertThat(reopened.getQueuedBytes(), is(queuedBytes));
+    }
+}
@@ -0,0 +1,103 @@
+package com.treasuredata.android;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDEventTest {
+    private static TDEvent createEvent() {
+        return new TDEvent.Builder()
+                .putString("name", "komamitsu")
+                .putLong("age", 42)
+                .putLong("big", Long.MAX_VALUE)
+                .putDouble("ratio", 0.5)
+                .putDouble("d_nan", Double.NaN)
+                .putBoolean("active", true)
+                .build();
+    }
+
+    private static Map<String, Object> createMap() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("name", "komamitsu");
+        map.put("age", 42);
+        map.put("big", Long.MAX_VALUE);
+        map.put("ratio", 0.5);
+        map.put("d_nan", Double.NaN);
+        map.put("active", true);
+        return map;
+    }
+
+    private static Map<String, Object> writeAndRead(TDJsonHandler handler, TDEvent event) throws IOException {
+        return handler.readRecord(ByteBuffer.wrap(handler.toRecord(event)));
+    }
+
+    private static Map<String, Object> writeAndRead(TDJsonHandler handler, Map<String, Object> map) throws IOException {
+        return handler.readRecord(ByteBuffer.wrap(handler.toRecord(map)));
+    }
+
+    @Test
+    public void shouldBeSerializedLikeMap() throws IOException {
+        TDJsonHandler[] handlers = new TDJsonHandler[] {
+                new TDJsonHandler(),
+                new TDJsonHandler("hello, world"),
+                new TDMessagePackHandler(null),
+                new TDMessagePackHandler("hello, world")
+        };
+        for (TDJsonHandler handler : handlers) {
+            Map<String, Object> result = writeAndRead(handler, createEvent());
+            assertEquals(writeAndRead(handler, createMap()), result);
+        }
+        // Non-finite numbers are quoted in JSON
+        assertThat((String) writeAndRead(new TDJsonHandler(), createEvent()).get("d_nan"), is("NaN"));
+    }
+
+    @Test
+    public void shouldWriteKeenProperties() throws IOException {
+        TDEvent event = createEvent().copy(0);
+        event.setKeenProperties("2014-12-31T23:59:01.123+0000", "8f88e079-7dc6-46f8-abfb-a533130f4ea0");
+        for (TDJsonHandler handler : new TDJsonHandler[] {new TDJsonHandler(), new TDMessagePackHandler(null)}) {
+            Map<String, Object> result = writeAndRead(handler, event);
+            assertThat(result.size(), is(8));
+            assertThat((String) ((Map<?, ?>) result.get("keen")).get("timestamp"), is("2014-12-31T23:59:01.123+0000"));
+            assertThat((String) result.get("#UUID"), is("8f88e079-7dc6-46f8-abfb-a533130f4ea0"));
+        }
+    }
+
+    @Test
+    public void laterValuesShouldReplaceEarlierOnes() throws IOException {
+        TDEvent.Builder builder = new TDEvent.Builder(1)
+                .putString("a", "x")
+                .putLong("b", 1)
+                .putString("c", "y")
+                .putBoolean("a", false)
+                .putString("c", null);
+        TDEvent event = builder.build();
+        assertThat(event.size(), is(2));
+        Map<String, Object> result = writeAndRead(new TDJsonHandler(), event);
+        assertThat((Boolean) result.get("a"), is(false));
+        assertThat((Integer) result.get("b"), is(1));
+        assertFalse(result.containsKey("c"));
+
+        // The builder starts a new event after build()
+        assertThat(builder.putLong("d", 2).build().size(), is(1));
+        assertThat(event.size(), is(2));
+    }
+
+    @Test
+    public void copyShouldNotChangeOriginal() {
+        TDEvent event = createEvent();
+        TDEvent copied = event.copy(2);
+        copied.put("td_os_type", "Android");
+        copied.put("name", "another");
+        copied.put("td_os_ver", 19);
+        assertThat(event.size(), is(6));
+        assertThat(copied.size(), is(8));
+        assertFalse(event.containsName("td_os_type"));
+    }
+}
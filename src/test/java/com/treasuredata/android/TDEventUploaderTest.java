@@ -0,0 +1,130 @@
+package com.treasuredata.android;
+
+import com.fasterxml.jackson.jr.ob.JSON;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDEventUploaderTest {
+    private static final String PROJECT_ID = "_td 0123456789abcdef";
+    private static final JSON JSON = new JSON();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MockWebServer server;
+    private TDEventStore eventStore;
+    private TDRetryPolicy retryPolicy;
+    private TDEventUploader uploader;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        TDHttpHandler.disableEventCompression();
+        eventStore = new TDEventStore(temporaryFolder.getRoot());
+        retryPolicy = new TDRetryPolicy(null);
+        uploader = new TDEventUploader(eventStore,
+                new TDHttpHandler("1/abc", String.format("http://127.0.0.1:%d", server.getPort())),
+                new TDJsonHandler(null), retryPolicy);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TDHttpHandler.enableEventCompression();
+        server.shutdown();
+    }
+
+    @Test
+    public void brokenEventShouldBeQuarantined() throws IOException {
+        // The whole request is rejected if it has the broken event
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                try {
+                    Map<String, Object> requests = JSON.mapFrom(request.getBody().inputStream());
+                    List<?> events = (List<?>) requests.get("db0.tbl0");
+                    List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+                    for (Object event : events) {
+                        if (Boolean.TRUE.equals(((Map<?, ?>) event).get("broken"))) {
+                            return new MockResponse().setResponseCode(400);
+                        }
+                        results.add(Collections.<String, Object>singletonMap("success", true));
+                    }
+                    return new MockResponse().setBody(JSON.asString(Collections.singletonMap("db0.tbl0", results)));
+                } catch (IOException e) {
+                    return new MockResponse().setResponseCode(500);
+                }
+            }
+        });
+        retryPolicy.setMaxAttempts(5);
+        for (int i = 0; i < 8; i++) {
+            eventStore.store(PROJECT_ID, "db0.tbl0", i == 2 ? "{\"id\":2,\"broken\":true}" : "{\"id\":" + i + "}");
+        }
+
+        for (int i = 0; i < 10 && !eventStore.getHandles(PROJECT_ID, 10).isEmpty(); i++) {
+            try {
+                uploader.uploadAll(PROJECT_ID, 8, true);
+            } catch (TDUploadException e) {
+                assertFalse(e.isBackoff());
+            }
+        }
+
+        assertTrue(eventStore.getHandles(PROJECT_ID, 10).isEmpty());
+        List<Map.Entry<String, String>> quarantined = eventStore.getQuarantinedEvents();
+        assertThat(quarantined.size(), is(1));
+        assertThat(quarantined.get(0).getValue(), is("{\"id\":2,\"broken\":true}"));
+    }
+
+    @Test
+    public void serverErrorShouldBeRetriedWithBackoff() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "30"));
+        Object handle = eventStore.store(PROJECT_ID, "db0.tbl0", "{\"id\":0}");
+
+        try {
+            uploader.uploadAll(PROJECT_ID, 8, true);
+            fail();
+        } catch (TDUploadException e) {
+            assertTrue(e.isBackoff());
+            assertThat(e.getRetryAfterMillis(), is(30000L));
+        }
+        // Not the event's fault
+        assertThat(eventStore.getAttempts(handle), is(0));
+        assertThat(eventStore.getHandles(PROJECT_ID, 10).get("db0.tbl0").size(), is(1));
+    }
+
+    @Test
+    public void eventErrorShouldBeCounted() throws IOException, TDUploadException {
+        Map<String, Object> error = new HashMap<String, Object>();
+        error.put("success", false);
+        error.put("error", Collections.singletonMap("name", "InternalError"));
+        server.enqueue(new MockResponse().setBody(JSON.asString(Collections.singletonMap("db0.tbl0",
+                Arrays.asList(Collections.singletonMap("success", true), error)))));
+        // The failed event is retried at once, and nothing is accepted
+        server.enqueue(new MockResponse().setBody(JSON.asString(Collections.singletonMap("db0.tbl0",
+                Collections.singletonList(error)))));
+        eventStore.store(PROJECT_ID, "db0.tbl0", "{\"id\":0}");
+        Object handle = eventStore.store(PROJECT_ID, "db0.tbl0", "{\"id\":1}");
+
+        uploader.uploadAll(PROJECT_ID, 8, true);
+        assertThat(eventStore.getAttempts(handle), is(2));
+        assertThat(eventStore.getHandles(PROJECT_ID, 10).get("db0.tbl0"), is(Collections.singletonList(handle)));
+    }
+}
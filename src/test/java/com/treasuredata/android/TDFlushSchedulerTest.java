@@ -0,0 +1,161 @@
+package com.treasuredata.android;
+
+import io.keen.client.java.KeenCallback;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDFlushSchedulerTest {
+    private static class MockUploader implements TDFlushScheduler.Uploader {
+        final List<KeenCallback> inFlight = new ArrayList<KeenCallback>();
+        final AtomicInteger uploads = new AtomicInteger();
+        volatile boolean networkAvailable = true;
+        volatile CountDownLatch uploaded = new CountDownLatch(1);
+        volatile RuntimeException rejection;
+
+        @Override
+        public synchronized void upload(KeenCallback callback) {
+            if (rejection != null) {
+                throw rejection;
+            }
+            uploads.incrementAndGet();
+            inFlight.add(callback);
+            uploaded.countDown();
+        }
+
+        @Override
+        public boolean isNetworkAvailable() {
+            return networkAvailable;
+        }
+
+        void finish() {
+            KeenCallback callback;
+            synchronized (this) {
+                callback = inFlight.remove(0);
+            }
+            callback.onSuccess();
+        }
+    }
+
+    private static class CountingCallback implements KeenCallback {
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        public void onSuccess() {
+            successes.incrementAndGet();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failures.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void requestsDuringUploadShouldBeCoalesced() {
+        MockUploader uploader = new MockUploader();
+        TDFlushScheduler scheduler = new TDFlushScheduler(uploader);
+        CountingCallback first = new CountingCallback();
+        CountingCallback second = new CountingCallback();
+        CountingCallback third = new CountingCallback();
+
+        scheduler.requestFlush(first);
+        scheduler.requestFlush(second);
+        scheduler.requestFlush(third);
+        assertThat(uploader.uploads.get(), is(1));
+
+        uploader.finish();
+        assertThat(first.successes.get(), is(1));
+        assertThat(second.successes.get(), is(0));
+        // The second and the third requests share one upload
+        assertThat(uploader.uploads.get(), is(2));
+
+        uploader.finish();
+        assertThat(second.successes.get(), is(1));
+        assertThat(third.successes.get(), is(1));
+        assertThat(uploader.uploads.get(), is(2));
+    }
+
+    @Test
+    public void uploadNotStartedShouldFailAndNotBlockLaterUploads() {
+        MockUploader uploader = new MockUploader();
+        TDFlushScheduler scheduler = new TDFlushScheduler(uploader);
+        CountingCallback rejected = new CountingCallback();
+        uploader.rejection = new RejectedExecutionException("Lane UPLOAD is full");
+        scheduler.requestFlush(rejected);
+        assertThat(rejected.failures.get(), is(1));
+        assertThat(uploader.uploads.get(), is(0));
+
+        uploader.rejection = null;
+        CountingCallback next = new CountingCallback();
+        scheduler.requestFlush(next);
+        assertThat(uploader.uploads.get(), is(1));
+        uploader.finish();
+        assertThat(next.successes.get(), is(1));
+    }
+
+    @Test
+    public void queuedBytesShouldTriggerUpload() {
+        MockUploader uploader = new MockUploader();
+        TDFlushScheduler scheduler = new TDFlushScheduler(uploader);
+        scheduler.enableAutoFlush(1000, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+
+        scheduler.onEventStored(600);
+        assertThat(uploader.uploads.get(), is(0));
+        scheduler.onEventStored(600);
+        assertThat(uploader.uploads.get(), is(1));
+
+        // Counted again from the upload
+        uploader.finish();
+        scheduler.onEventStored(600);
+        assertThat(uploader.uploads.get(), is(1));
+    }
+
+    @Test
+    public void idleTimeShouldTriggerUpload() throws InterruptedException {
+        MockUploader uploader = new MockUploader();
+        TDFlushScheduler scheduler = new TDFlushScheduler(uploader);
+        scheduler.enableAutoFlush(Long.MAX_VALUE, TimeUnit.HOURS.toMillis(1), 100);
+
+        scheduler.onEventStored(10);
+        assertTrue(uploader.uploaded.await(10, TimeUnit.SECONDS));
+        assertThat(uploader.uploads.get(), is(1));
+    }
+
+    @Test
+    public void uploadShouldBeSkippedWithoutNetwork() throws InterruptedException {
+        MockUploader uploader = new MockUploader();
+        uploader.networkAvailable = false;
+        TDFlushScheduler scheduler = new TDFlushScheduler(uploader);
+        scheduler.enableAutoFlush(100, TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1));
+
+        scheduler.onEventStored(200);
+        scheduler.onEventStored(200);
+        assertThat(uploader.uploads.get(), is(0));
+
+        // Explicit uploads don't wait for the network
+        scheduler.requestFlush(null);
+        assertThat(uploader.uploads.get(), is(1));
+    }
+
+    @Test
+    public void disabledAutoFlushShouldNotUpload() throws InterruptedException {
+        MockUploader uploader = new MockUploader();
+        TDFlushScheduler scheduler = new TDFlushScheduler(uploader);
+        scheduler.enableAutoFlush(100, 50, 50);
+        scheduler.disableAutoFlush();
+        assertFalse(scheduler.isAutoFlushEnabled());
+
+        scheduler.onEventStored(200);
+        assertFalse(uploader.uploaded.await(300, TimeUnit.MILLISECONDS));
+    }
+}
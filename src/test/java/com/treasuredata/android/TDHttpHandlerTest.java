@@ -0,0 +1,161 @@
+package com.treasuredata.android;
+
+import io.keen.client.java.http.OutputSource;
+import io.keen.client.java.http.Request;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDHttpHandlerTest {
+    private static final OutputSource BODY = new OutputSource() {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write("{}".getBytes("UTF-8"));
+        }
+    };
+
+    private MockWebServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        TDHttpHandler.disableEventCompression();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        TDHttpHandler.enableEventCompression();
+        server.shutdown();
+    }
+
+    @Test
+    public void connectionShouldBeReusedAfterErrorResponse() throws IOException, InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(500).setBody("{\"error\":\"internal\"}"));
+        server.enqueue(new MockResponse().setBody("{}"));
+        TDHttpHandler httpHandler = new TDHttpHandler("1/abc", String.format("http://127.0.0.1:%d", server.getPort()));
+
+        TDHttpHandler.EventsResponse response = httpHandler.sendEvents(BODY);
+        assertThat(response.statusCode, is(500));
+        assertThat(response.body, is("{\"error\":\"internal\"}"));
+        response = httpHandler.sendEvents(BODY);
+        assertThat(response.statusCode, is(200));
+
+        assertThat(server.takeRequest().getSequenceNumber(), is(0));
+        // The second request is sent on the same connection
+        assertThat(server.takeRequest().getSequenceNumber(), is(1));
+        assertThat(httpHandler.getRequestCount(), is(2L));
+        assertThat(httpHandler.getHandshakeCount(), is(0L));
+    }
+
+    @Test
+    public void retryAfterShouldBeRead() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "120"));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        TDHttpHandler httpHandler = new TDHttpHandler("1/abc", String.format("http://127.0.0.1:%d", server.getPort()));
+
+        assertThat(httpHandler.sendEvents(BODY).retryAfterMillis, is(120000L));
+        assertThat(httpHandler.sendEvents(BODY).retryAfterMillis, is(-1L));
+    }
+
+    private static class RecordingSocketFactory extends SSLSocketFactory {
+        int sockets;
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return new String[0];
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return new String[0];
+        }
+
+        @Override
+        public Socket createSocket() {
+            sockets++;
+            return new Socket();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static SSLSocketFactory openSocketFactory(TDHttpHandler httpHandler) throws IOException {
+        HttpURLConnection connection = httpHandler.openConnection(new Request(new URL("https://127.0.0.1/"), "POST", "1/abc", BODY));
+        return ((HttpsURLConnection) connection).getSSLSocketFactory();
+    }
+
+    @Test
+    public void defaultSocketFactorySetLaterShouldBeUsed() throws IOException {
+        SSLSocketFactory original = HttpsURLConnection.getDefaultSSLSocketFactory();
+        try {
+            TDHttpHandler httpHandler = new TDHttpHandler("1/abc", null);
+            RecordingSocketFactory first = new RecordingSocketFactory();
+            HttpsURLConnection.setDefaultSSLSocketFactory(first);
+            SSLSocketFactory factory = openSocketFactory(httpHandler);
+            // Kept while the default factory is the same, so that pooled connections are reused
+            assertSame(factory, openSocketFactory(httpHandler));
+            factory.createSocket().close();
+            assertThat(first.sockets, is(1));
+
+            RecordingSocketFactory second = new RecordingSocketFactory();
+            HttpsURLConnection.setDefaultSSLSocketFactory(second);
+            openSocketFactory(httpHandler).createSocket().close();
+            assertThat(first.sockets, is(1));
+            assertThat(second.sockets, is(1));
+            assertThat(httpHandler.getHandshakeCount(), is(2L));
+        }
+        finally {
+            HttpsURLConnection.setDefaultSSLSocketFactory(original);
+        }
+    }
+
+    @Test
+    public void malformedEndpointShouldFailOnSend() {
+        TDHttpHandler httpHandler = new TDHttpHandler("1/abc", "not an endpoint");
+        try {
+            httpHandler.sendEvents(BODY);
+            fail();
+        }
+        catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.treasuredata.android;
+
+import io.keen.client.java.KeenCallback;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDIngestionRingTest {
+    private static class RecordingSink implements TDIngestionRing.Sink {
+        final List<TDIngestionRing.Entry> entries = Collections.synchronizedList(new ArrayList<TDIngestionRing.Entry>());
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch blocker;
+
+        @Override
+        public void queueEvent(TDIngestionRing.Entry entry) {
+            entered.countDown();
+            CountDownLatch latch = blocker;
+            if (latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            entries.add(entry);
+        }
+
+        List<Integer> ids() {
+            List<Integer> ids = new ArrayList<Integer>();
+            synchronized (entries) {
+                for (TDIngestionRing.Entry entry : entries) {
+                    ids.add((Integer) entry.event.get("id"));
+                }
+            }
+            return ids;
+        }
+    }
+
+    private static class CountingCallback implements KeenCallback {
+        final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        public void onSuccess() {
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private static Map<String, Object> event(int id) {
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put("id", id);
+        return event;
+    }
+
+    private static void flushAndWait(TDIngestionRing ring) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        ring.flush(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void capacityShouldBeRoundedUpToPowerOfTwo() {
+        TDIngestionRing ring = new TDIngestionRing(100, TDBackpressurePolicy.BLOCK, 100, new RecordingSink());
+        assertThat(ring.getCapacity(), is(128));
+        ring.close();
+    }
+
+    @Test
+    public void eventsShouldBeStoredInOrder() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        TDIngestionRing ring = new TDIngestionRing(16, TDBackpressurePolicy.BLOCK, 10, sink);
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            ring.offer("db.tbl", event(i), null);
+            expected.add(i);
+        }
+        flushAndWait(ring);
+        assertThat(sink.ids(), is(expected));
+        ring.close();
+    }
+
+    @Test
+    public void flushActionShouldRunAfterPriorEvents() throws InterruptedException {
+        final RecordingSink sink = new RecordingSink();
+        TDIngestionRing ring = new TDIngestionRing(64, TDBackpressurePolicy.BLOCK, 60000, sink);
+        for (int i = 0; i < 10; i++) {
+            ring.offer("db.tbl", event(i), null);
+        }
+        final AtomicInteger storedOnFlush = new AtomicInteger(-1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        ring.flush(new Runnable() {
+            @Override
+            public void run() {
+                storedOnFlush.set(sink.entries.size());
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertThat(storedOnFlush.get(), is(10));
+        ring.close();
+    }
+
+    @Test
+    public void dropNewestShouldRejectNewEventsWhenFull() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        sink.blocker = new CountDownLatch(1);
+        TDIngestionRing ring = new TDIngestionRing(4, TDBackpressurePolicy.DROP_NEWEST, 1, sink);
+        CountingCallback callback = new CountingCallback();
+        // Keep the flusher busy with the first event
+        ring.offer("db.tbl", event(0), callback);
+        assertTrue(sink.entered.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++) {
+            ring.offer("db.tbl", event(i), callback);
+        }
+        assertThat(callback.failures.get(), is(0));
+        ring.offer("db.tbl", event(5), callback);
+        assertThat(callback.failures.get(), is(1));
+
+        sink.blocker.countDown();
+        flushAndWait(ring);
+        assertThat(sink.ids(), is(Arrays.asList(0, 1, 2, 3, 4)));
+        ring.close();
+    }
+
+    @Test
+    public void dropOldestShouldEvictOldEventsWhenFull() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        sink.blocker = new CountDownLatch(1);
+        TDIngestionRing ring = new TDIngestionRing(4, TDBackpressurePolicy.DROP_OLDEST, 1, sink);
+        CountingCallback callback = new CountingCallback();
+        // Keep the flusher busy with the first event
+        ring.offer("db.tbl", event(0), callback);
+        assertTrue(sink.entered.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 6; i++) {
+            ring.offer("db.tbl", event(i), callback);
+        }
+        assertThat(callback.failures.get(), is(2));
+
+        sink.blocker.countDown();
+        flushAndWait(ring);
+        assertThat(sink.ids(), is(Arrays.asList(0, 3, 4, 5, 6)));
+        ring.close();
+    }
+
+    @Test
+    public void blockShouldNotLoseEventsFromMultipleProducers() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        final TDIngestionRing ring = new TDIngestionRing(8, TDBackpressurePolicy.BLOCK, 1, sink);
+        final CountingCallback callback = new CountingCallback();
+        int producers = 4;
+        final int eventsPerProducer = 2000;
+        ExecutorService executorService = Executors.newFixedThreadPool(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < eventsPerProducer; i++) {
+                            ring.offer("db.tbl", event(producer * eventsPerProducer + i), callback);
+                        }
+                    }
+                });
+            }
+            executorService.shutdown();
+            assertTrue(executorService.awaitTermination(30, TimeUnit.SECONDS));
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+        flushAndWait(ring);
+
+        assertThat(callback.failures.get(), is(0));
+        List<Integer> ids = sink.ids();
+        assertThat(ids.size(), is(producers * eventsPerProducer));
+        // Each producer's events keep their order
+        int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        for (int id : ids) {
+            int producer = id / eventsPerProducer;
+            assertTrue(id > last[producer]);
+            last[producer] = id;
+        }
+        ring.close();
+    }
+
+    @Test
+    public void closeShouldStoreRemainingEvents() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        TDIngestionRing ring = new TDIngestionRing(64, TDBackpressurePolicy.BLOCK, 60000, sink);
+        for (int i = 0; i < 10; i++) {
+            ring.offer("db.tbl", event(i), null);
+        }
+        ring.close();
+        // Events added after closing are stored on the caller's thread
+        ring.offer("db.tbl", event(10), null);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (sink.entries.size() < 11 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(sink.entries.size(), is(11));
+    }
+
+    @Test
+    public void flushAfterCloseShouldRunAction() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        TDIngestionRing ring = new TDIngestionRing(64, TDBackpressurePolicy.BLOCK, 60000, sink);
+        ring.offer("db.tbl", event(0), null);
+        ring.close();
+        assertThat(sink.entries.size(), is(1));
+        flushAndWait(ring);
+    }
+
+    @Test
+    public void eventsShouldKeepOrderWhileClosing() throws Exception {
+        final RecordingSink sink = new RecordingSink();
+        final TDIngestionRing ring = new TDIngestionRing(8, TDBackpressurePolicy.BLOCK, 60000, sink);
+        final int events = 5000;
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < events; i++) {
+                    ring.offer("db.tbl", event(i), null);
+                }
+            }
+        };
+        producer.start();
+        while (sink.entries.size() < 100) {
+            Thread.sleep(1);
+        }
+        ring.close();
+        producer.join(30000);
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < events; i++) {
+            expected.add(i);
+        }
+        assertThat(sink.ids(), is(expected));
+    }
+}
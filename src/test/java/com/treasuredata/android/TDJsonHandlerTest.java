@@ -6,6 +6,7 @@ import org.apache.commons.codec.binary.Base64;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
@@ -15,6 +16,7 @@ import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -25,6 +27,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.MessageDigest;
 
 public class TDJsonHandlerTest extends TestCase {
     private static final String JSON_STR = "{\n" +
@@ -135,6 +145,109 @@ public class TDJsonHandlerTest extends TestCase {
         assertExampleMap(now, result);
     }
 
+    public void testEncryptedRecordFormat() throws IOException {
+        Date now = new Date();
+        Map<String, ?> value = createExampleMap(now);
+
+        byte[] record = encJsonHandler.toRecord(value);
+        assertEquals(0, record[0]);
+        assertEquals(1, record[1]);
+        // Header, nonce and tag only
+        assertEquals(jsonHandler.toRecord(value).length + 2 + 12 + 16, record.length);
+        assertExampleMap(now, encJsonHandler.readRecord(ByteBuffer.wrap(record)));
+
+        // Nonces differ for each record
+        assertFalse(Arrays.equals(record, encJsonHandler.toRecord(value)));
+
+        // Tampered records are rejected
+        byte[] tampered = record.clone();
+        tampered[tampered.length - 1] ^= 1;
+        assertNull(encJsonHandler.readRecord(ByteBuffer.wrap(tampered)));
+        byte[] truncated = Arrays.copyOf(record, record.length - 1);
+        assertNull(encJsonHandler.readRecord(ByteBuffer.wrap(truncated)));
+        byte[] unknownVersion = record.clone();
+        unknownVersion[1] = 2;
+        assertNull(encJsonHandler.readRecord(ByteBuffer.wrap(unknownVersion)));
+
+        // Another key can't decrypt it
+        assertNull(new TDJsonHandler("another key").readRecord(ByteBuffer.wrap(record)));
+
+        // Written to a Writer as "!" and Base64, which any charset can carry
+        StringWriter writer = new StringWriter();
+        encJsonHandler.writeJson(writer, value);
+        String textRecord = writer.toString();
+        assertEquals('!', textRecord.charAt(0));
+        assertTrue(Arrays.equals(Base64.decodeBase64(textRecord.substring(1).getBytes("UTF-8")), encJsonHandler.encodeEvent(textRecord)));
+        assertEquals(textRecord, encJsonHandler.decodeEvent(ByteBuffer.wrap(encJsonHandler.encodeEvent(textRecord))));
+    }
+
+    public void testKeyShouldBeDerivedWithSalt() throws IOException {
+        File saltFile = File.createTempFile("td_encryption_salt", null);
+        assertTrue(saltFile.delete());
+        try {
+            Map<String, ?> value = createExampleMap(new Date());
+            TDJsonHandler handler = new TDJsonHandler("hello, world", saltFile);
+            // The key is derived on the first use, not in the constructor
+            assertFalse(saltFile.exists());
+            byte[] record = handler.toRecord(value);
+            assertEquals(16, saltFile.length());
+
+            // The salt is kept for the next launch
+            assertNotNull(new TDJsonHandler("hello, world", saltFile).readRecord(ByteBuffer.wrap(record)));
+            // Another installation has another salt
+            assertNull(new TDJsonHandler("hello, world").readRecord(ByteBuffer.wrap(record)));
+        }
+        finally {
+            saltFile.delete();
+        }
+    }
+
+    public void testReadLegacyEncryptedRecord() throws Exception {
+        Date now = new Date();
+        Map<String, ?> value = createExampleMap(now);
+        StringWriter plainWriter = new StringWriter();
+        jsonHandler.writeJson(plainWriter, value);
+
+        MessageDigest digester = MessageDigest.getInstance("MD5");
+        byte[] key = digester.digest("hello, world".getBytes());
+        Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        byte[] encrypted = cipher.doFinal(plainWriter.toString().getBytes("UTF-8"));
+        String legacyRecord = new String(Base64.encodeBase64(encrypted), "UTF-8");
+
+        assertExampleMap(now, encJsonHandler.readJson(new StringReader(legacyRecord)));
+        // Plain events stored before enabling encryption are still readable
+        assertExampleMap(now, encJsonHandler.readJson(new StringReader(plainWriter.toString())));
+    }
+
+    public void testReadWriteWithEncryptionConcurrently() throws Exception {
+        final Date now = new Date();
+        final Map<String, ?> value = createExampleMap(now);
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executorService.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int j = 0; j < 200; j++) {
+                            StringWriter writer = new StringWriter();
+                            encJsonHandler.writeJson(writer, value);
+                            assertExampleMap(now, encJsonHandler.readJson(new StringReader(writer.toString())));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executorService.shutdownNow();
+        }
+    }
+
     public void testLargeData() throws IOException {
         int tag_num = 8;
         Map<String, Object> records = new HashMap<String, Object>();
@@ -0,0 +1,125 @@
+package com.treasuredata.android;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDMessagePackTest {
+    private static Map<String, Object> createEvent() {
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        event.put("name", "komamitsu");
+        event.put("japanese", "\u30d0\u30fc");
+        event.put("long_string", new String(new char[300]).replace('\0', 'x'));
+        event.put("small", 7);
+        event.put("negative", -1000);
+        event.put("big", 1L << 40);
+        event.put("double", 3.14);
+        event.put("float", 1.1f);
+        event.put("decimal", new BigDecimal("1.23456789012345678901"));
+        event.put("d_nan", Double.NaN);
+        event.put("flag", true);
+        event.put("nothing", null);
+        event.put("now", new Date(1420070341123L));
+        event.put("uuid", UUID.fromString("8f88e079-7dc6-46f8-abfb-a533130f4ea0"));
+        event.put("list", Arrays.asList(1, "two", 3.0, 0.1f));
+        event.put("array", new int[] {1, 2});
+        Map<String, Object> keen = new HashMap<String, Object>();
+        keen.put("timestamp", "2014-12-31T23:59:01.123+0000");
+        event.put("keen", keen);
+        return event;
+    }
+
+    @Test
+    public void transcodedJsonShouldBeSameAsJson() throws IOException {
+        Map<String, Object> event = createEvent();
+        ByteArrayOutputStream messagePack = new ByteArrayOutputStream();
+        TDMessagePack.write(messagePack, event);
+
+        ByteArrayOutputStream transcoded = new ByteArrayOutputStream();
+        JsonGenerator generator = new JsonFactory().createGenerator(transcoded);
+        TDMessagePack.transcodeToJson(ByteBuffer.wrap(messagePack.toByteArray()), generator);
+        generator.close();
+
+        // BigDecimal values are strings in MessagePack
+        event.put("decimal", "1.23456789012345678901");
+        String json = new CustomizedJSON().asString(event);
+        assertThat(new String(transcoded.toByteArray(), "UTF-8"), is(json));
+        assertTrue(messagePack.size() < json.length());
+    }
+
+    @Test
+    public void floatsAndDecimalsShouldBeWrittenExactly() throws IOException {
+        Map<String, Object> event = new LinkedHashMap<String, Object>();
+        event.put("float", 0.1f);
+        event.put("decimal", new BigDecimal("1.23456789012345678901"));
+        ByteArrayOutputStream messagePack = new ByteArrayOutputStream();
+        TDMessagePack.write(messagePack, event);
+        // fixmap, fixstr "float", float32, fixstr "decimal", fixstr
+        assertThat(messagePack.toByteArray()[7] & 0xff, is(0xca));
+
+        ByteArrayOutputStream transcoded = new ByteArrayOutputStream();
+        JsonGenerator generator = new JsonFactory().createGenerator(transcoded);
+        TDMessagePack.transcodeToJson(ByteBuffer.wrap(messagePack.toByteArray()), generator);
+        generator.close();
+        assertThat(new String(transcoded.toByteArray(), "UTF-8"), is("{\"float\":0.1,\"decimal\":\"1.23456789012345678901\"}"));
+        assertThat(new CustomizedJSON().asString(event), is("{\"float\":0.1,\"decimal\":1.23456789012345678901}"));
+    }
+
+    @Test
+    public void readShouldReturnSameValuesAsJson() throws IOException {
+        Map<String, Object> event = createEvent();
+        ByteArrayOutputStream messagePack = new ByteArrayOutputStream();
+        TDMessagePack.write(messagePack, event);
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>) TDMessagePack.read(new ByteArrayInputStream(messagePack.toByteArray()));
+        Map<String, Object> expected = new CustomizedJSON().mapFrom(new CustomizedJSON().asString(event));
+        // Floats are read as they were written, and BigDecimal values as strings
+        expected.put("float", 1.1f);
+        expected.put("decimal", "1.23456789012345678901");
+        expected.put("list", Arrays.asList(1, "two", 3.0, 0.1f));
+        assertThat(result.keySet(), is(expected.keySet()));
+        for (String key : expected.keySet()) {
+            if (key.equals("d_nan")) {
+                continue;
+            }
+            assertThat(key, result.get(key), is(expected.get(key)));
+        }
+        assertTrue(Double.isNaN((Double) result.get("d_nan")));
+    }
+
+    @Test
+    public void handlerShouldReadRecordsInAnyFormat() throws IOException {
+        Map<String, Object> event = new HashMap<String, Object>();
+        event.put("name", "komamitsu");
+        event.put("age", 123);
+
+        for (String encryptionKey : new String[] {null, "hello, world"}) {
+            TDJsonHandler messagePackHandler = new TDMessagePackHandler(encryptionKey);
+            TDJsonHandler jsonHandler = new TDJsonHandler(encryptionKey);
+
+            byte[] record = messagePackHandler.toRecord(event);
+            assertThat(record[0], is((byte) 0));
+            assertThat(messagePackHandler.readRecord(ByteBuffer.wrap(record)), is((Map<String, Object>) event));
+            assertThat(jsonHandler.readRecord(ByteBuffer.wrap(record)), is((Map<String, Object>) event));
+
+            record = jsonHandler.toRecord(event);
+            assertThat(messagePackHandler.readRecord(ByteBuffer.wrap(record)), is((Map<String, Object>) event));
+        }
+    }
+}
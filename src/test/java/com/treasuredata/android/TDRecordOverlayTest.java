@@ -0,0 +1,65 @@
+package com.treasuredata.android;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDRecordOverlayTest {
+    private static Map<String, Object> template() {
+        Map<String, Object> template = new HashMap<String, Object>();
+        template.put("td_uuid", "2F1FCD4D-74A6-45EF-B9B0-CD82DE49BE69");
+        template.put("td_os_type", "Android");
+        return Collections.unmodifiableMap(template);
+    }
+
+    @Test
+    public void shouldBeEqualToMergedHashMap() {
+        Map<String, Object> record = new HashMap<String, Object>();
+        record.put("name", "komamitsu");
+        record.put("td_uuid", "overridden by the template");
+
+        TDRecordOverlay overlay = new TDRecordOverlay(template(), record);
+        overlay.put("td_session_id", "session");
+
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.putAll(record);
+        expected.putAll(template());
+        expected.put("td_session_id", "session");
+
+        assertThat(overlay.size(), is(4));
+        assertEquals(expected, overlay);
+        assertEquals(expected, new HashMap<String, Object>(overlay));
+        assertThat((String) overlay.get("td_uuid"), is("2F1FCD4D-74A6-45EF-B9B0-CD82DE49BE69"));
+    }
+
+    @Test
+    public void columnsPutLaterShouldOverrideTemplate() {
+        TDRecordOverlay overlay = new TDRecordOverlay(template(), null);
+        assertThat((String) overlay.put("td_os_type", "Unity"), is("Android"));
+        assertThat((String) overlay.get("td_os_type"), is("Unity"));
+        assertThat(overlay.size(), is(2));
+        assertThat(overlay.entrySet().size(), is(2));
+    }
+
+    @Test
+    public void templateShouldNotBeModified() {
+        Map<String, Object> template = template();
+        TDRecordOverlay overlay = new TDRecordOverlay(template, null);
+        overlay.put("name", "komamitsu");
+        assertNull(overlay.remove("foo"));
+        assertThat((String) overlay.remove("name"), is("komamitsu"));
+        try {
+            overlay.remove("td_uuid");
+            fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // Expected
+        }
+        assertEquals(template(), template);
+    }
+}
@@ -0,0 +1,80 @@
+package com.treasuredata.android;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDRetryPolicyTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void backoffShouldGrowWithJitter() {
+        TDRetryPolicy retryPolicy = new TDRetryPolicy(null);
+        retryPolicy.setBackoff(1000, 5000);
+        assertThat(retryPolicy.getDelayMillis(), is(0L));
+
+        long delay = retryPolicy.onFailure(-1);
+        assertTrue(String.valueOf(delay), delay >= 500 && delay <= 1001);
+        assertTrue(retryPolicy.getDelayMillis() > 0);
+
+        delay = retryPolicy.onFailure(-1);
+        assertTrue(String.valueOf(delay), delay >= 1000 && delay <= 2001);
+
+        for (int i = 0; i < 3; i++) {
+            delay = retryPolicy.onFailure(-1);
+        }
+        // Capped by the max delay
+        assertTrue(String.valueOf(delay), delay >= 2500 && delay <= 5001);
+
+        retryPolicy.onSuccess();
+        assertThat(retryPolicy.getDelayMillis(), is(0L));
+    }
+
+    @Test
+    public void retryAfterShouldBeFollowed() {
+        TDRetryPolicy retryPolicy = new TDRetryPolicy(null);
+        retryPolicy.setBackoff(1000, 5000);
+        assertThat(retryPolicy.onFailure(60000), is(60000L));
+        // Shorter Retry-After doesn't shorten the backoff
+        long delay = retryPolicy.onFailure(1);
+        assertTrue(String.valueOf(delay), delay >= 1000);
+    }
+
+    @Test
+    public void circuitShouldOpenAfterConsecutiveFailures() {
+        TDRetryPolicy retryPolicy = new TDRetryPolicy(null);
+        retryPolicy.setBackoff(10, 100);
+        retryPolicy.setCircuitBreaker(3, 3600000);
+
+        retryPolicy.onFailure(-1);
+        retryPolicy.onFailure(-1);
+        assertFalse(retryPolicy.isCircuitOpen());
+        assertThat(retryPolicy.onFailure(-1), is(3600000L));
+        assertTrue(retryPolicy.isCircuitOpen());
+        // A failure while half-open opens it again
+        assertThat(retryPolicy.onFailure(-1), is(3600000L));
+
+        retryPolicy.onSuccess();
+        assertFalse(retryPolicy.isCircuitOpen());
+    }
+
+    @Test
+    public void stateShouldSurviveRestart() {
+        File stateFile = new File(temporaryFolder.getRoot(), "td_retry_state");
+        TDRetryPolicy retryPolicy = new TDRetryPolicy(stateFile);
+        retryPolicy.setCircuitBreaker(1, 3600000);
+        retryPolicy.onFailure(-1);
+
+        TDRetryPolicy restarted = new TDRetryPolicy(stateFile);
+        assertTrue(restarted.getDelayMillis() > 3500000);
+
+        restarted.onSuccess();
+        assertThat(new TDRetryPolicy(stateFile).getDelayMillis(), is(0L));
+    }
+}
@@ -0,0 +1,102 @@
+package com.treasuredata.android;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDSchedulerTest {
+    @After
+    public void tearDown() {
+        TDScheduler.setExecutor(TDScheduler.Lane.BILLING, null);
+        TDScheduler.configureLane(TDScheduler.Lane.BILLING, 1, 64);
+    }
+
+    @Test
+    public void tasksShouldRunOnLaneThread() throws InterruptedException {
+        final AtomicReference<String> threadName = new AtomicReference<String>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        TDScheduler.executor(TDScheduler.Lane.CDP).execute(new Runnable() {
+            @Override
+            public void run() {
+                threadName.set(Thread.currentThread().getName());
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertTrue(threadName.get(), threadName.get().startsWith("td-cdp-"));
+    }
+
+    @Test
+    public void injectedExecutorShouldBeUsed() {
+        Executor laneExecutor = TDScheduler.executor(TDScheduler.Lane.BILLING);
+        final AtomicInteger count = new AtomicInteger();
+        TDScheduler.setExecutor(TDScheduler.Lane.BILLING, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                count.incrementAndGet();
+                command.run();
+            }
+        });
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        laneExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                thread.set(Thread.currentThread());
+            }
+        });
+        assertThat(count.get(), is(1));
+        assertSame(Thread.currentThread(), thread.get());
+    }
+
+    @Test
+    public void tasksShouldBeRejectedWhenQueueIsFull() throws InterruptedException {
+        TDScheduler.setExecutor(TDScheduler.Lane.BILLING, null);
+        TDScheduler.configureLane(TDScheduler.Lane.BILLING, 1, 1);
+        Executor executor = TDScheduler.executor(TDScheduler.Lane.BILLING);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(2);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                count.incrementAndGet();
+                finished.countDown();
+            }
+        };
+        executor.execute(task);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        // Queued
+        executor.execute(task);
+        // Rejected without running on this thread
+        try {
+            executor.execute(task);
+            fail();
+        }
+        catch (RejectedExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("BILLING"));
+        }
+        assertThat(count.get(), is(0));
+
+        blocker.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertThat(count.get(), is(2));
+    }
+}
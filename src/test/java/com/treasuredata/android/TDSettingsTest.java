@@ -0,0 +1,79 @@
+package com.treasuredata.android;
+
+import android.content.SharedPreferences;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class TDSettingsTest {
+    private static SharedPreferences mockPreferences(Map<String, ?> values, SharedPreferences.Editor editor) {
+        SharedPreferences preferences = mock(SharedPreferences.class);
+        doReturn(values).when(preferences).getAll();
+        when(preferences.edit()).thenReturn(editor);
+        return preferences;
+    }
+
+    @Test
+    public void storedValuesShouldBeReadOnce() {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("uuid", "abc");
+        values.put("build", 42);
+        SharedPreferences preferences = mockPreferences(values, mock(SharedPreferences.Editor.class));
+        TDSettings settings = new TDSettings(preferences);
+
+        assertThat(settings.getString("uuid", null), is("abc"));
+        assertThat(settings.getInt("build", 0), is(42));
+        assertThat(settings.getBoolean("first_run", true), is(true));
+        // A value of another type is the same as a missing one
+        assertThat(settings.getBoolean("uuid", false), is(false));
+        verify(preferences, times(1)).getAll();
+        verify(preferences, never()).getString(anyString(), anyString());
+    }
+
+    @Test
+    public void changesShouldBeWrittenTogether() throws InterruptedException {
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("advertising_id", "old");
+        values.put("uuid", "abc");
+        SharedPreferences.Editor editor = mock(SharedPreferences.Editor.class);
+        when(editor.commit()).thenReturn(true);
+        TDSettings settings = new TDSettings(mockPreferences(values, editor));
+
+        settings.putBoolean("first_run", false);
+        settings.putString("version", "1.0");
+        settings.putString("version", "1.1");
+        settings.remove("advertising_id");
+        // Not changed
+        settings.putString("uuid", "abc");
+        assertThat(settings.getString("version", null), is("1.1"));
+        assertThat(settings.getString("advertising_id", null), is((String) null));
+
+        verify(editor, timeout((int) TDSettings.WRITE_DELAY_MILLIS * 20)).commit();
+        verify(editor).putBoolean("first_run", false);
+        verify(editor).putString("version", "1.1");
+        verify(editor, never()).putString("version", "1.0");
+        verify(editor).remove("advertising_id");
+        verify(editor, never()).putString(eq("uuid"), anyString());
+
+        settings.putInt("build", 2);
+        settings.flush();
+        verify(editor, times(2)).commit();
+        verify(editor).putInt("build", 2);
+        Thread.sleep(TDSettings.WRITE_DELAY_MILLIS * 3);
+        // The scheduled write has nothing to write
+        verify(editor, times(2)).commit();
+    }
+
+    @Test
+    public void settingsWithoutPreferencesShouldBeKeptInMemory() {
+        TDSettings settings = new TDSettings(null);
+        settings.putString("uuid", "abc");
+        settings.flush();
+        assertThat(settings.getString("uuid", null), is("abc"));
+    }
+}
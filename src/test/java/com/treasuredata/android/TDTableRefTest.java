@@ -0,0 +1,40 @@
+package com.treasuredata.android;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.*;
+
+public class TDTableRefTest {
+    @Test
+    public void shouldBeCached() {
+        TDTableRef tableRef = TDTableRef.of("test_db", "test_tbl");
+        assertThat(tableRef.getDatabase(), is("test_db"));
+        assertThat(tableRef.getTable(), is("test_tbl"));
+        assertThat(tableRef.getEventCollection(), is("test_db.test_tbl"));
+        assertSame(tableRef, TDTableRef.of("test_db", "test_tbl"));
+        assertSame(tableRef, TDTableRef.lookup(new String("test_db"), new String("test_tbl")));
+        assertNotSame(tableRef, TDTableRef.of("test_db", "test_tbl2"));
+    }
+
+    @Test
+    public void invalidNamesShouldBeRejected() {
+        String[][] names = new String[][] {
+                {"db", "test_tbl"},
+                {"Db_", "test_tbl"},
+                {"test_db", "tbl$"},
+                {"test_db", null},
+                {null, "test_tbl"}
+        };
+        for (String[] name : names) {
+            assertNull(TDTableRef.lookup(name[0], name[1]));
+            try {
+                TDTableRef.of(name[0], name[1]);
+                fail();
+            }
+            catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.treasuredata.android;
 
 import android.app.Application;
 import android.content.Context;
+import android.content.SharedPreferences;
 
 import io.keen.client.java.KeenCallback;
 import io.keen.client.java.KeenClient;
@@ -9,10 +10,14 @@ import io.keen.client.java.KeenProject;
 import junit.framework.TestCase;
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.when;
@@ -68,6 +73,17 @@ public class TreasureDataTest extends TestCase {
             }
         }
 
+        @Override
+        void queueEvent(String eventCollection, TDEvent event, KeenCallback callback) {
+            try {
+                StringWriter writer = new StringWriter();
+                new TDJsonHandler().writeEvent(writer, event);
+                queueEvent(null, eventCollection, new TDJsonHandler().readJson(new StringReader(writer.toString())), null, callback);
+            } catch (IOException e) {
+                callback.onFailure(e);
+            }
+        }
+
         @Override
         public void sendQueuedEventsAsync(KeenProject project, KeenCallback callback) {
             if (exceptionOnSendQueuedEventsCalled == null) {
@@ -87,7 +103,7 @@ public class TreasureDataTest extends TestCase {
     private TreasureData td;
 
     private TreasureData createTreasureData(Context context, TDClient client) {
-        return new TreasureData(context, client, null);
+        return new TreasureData(context, client, new TDDeviceId(new TDSettings(null)));
     }
 
     public void setUp() throws IOException {
@@ -329,6 +345,101 @@ public class TreasureDataTest extends TestCase {
         assertTrue(client.addedEvent.get(0).event.containsValue("val"));
     }
 
+    public void testAddEventWithAppInformation() throws IOException {
+        td.enableAutoAppendAppInformation();
+        Map<String, Object> records = new HashMap<String, Object>();
+        records.put("key", "val");
+        records.put("td_app_ver", "overridden");
+        td.addEvent("db_", "tbl", records);
+        td.disableAutoAppendAppInformation();
+        records.remove("td_app_ver");
+        td.addEvent("db_", "tbl", records);
+        td.uploadEvents();
+        assertEquals(2, client.addedEvent.size());
+        assertEquals(3, client.addedEvent.get(0).event.size());
+        assertEquals("val", client.addedEvent.get(0).event.get("key"));
+        assertEquals("3.1.4", client.addedEvent.get(0).event.get("td_app_ver"));
+        assertEquals(42, client.addedEvent.get(0).event.get("td_app_ver_num"));
+        assertEquals(1, client.addedEvent.get(1).event.size());
+        assertEquals("val", client.addedEvent.get(1).event.get("key"));
+    }
+
+    public void testResetUniqId() throws IOException {
+        SharedPreferences preferences = mock(SharedPreferences.class);
+        when(context.getSharedPreferences(anyString(), anyInt())).thenReturn(preferences);
+        td.enableAutoAppendUniqId();
+        td.setDefaultDatabase("db_");
+        td.setDefaultTable("tbl");
+        Map<String, Object> records = new HashMap<String, Object>();
+        records.put("key", "val");
+        td.addEvent("db_", "tbl", records);
+        td.resetUniqId();
+        td.addEvent("db_", "tbl", new HashMap<String, Object>(records));
+        td.uploadEvents();
+        assertEquals(3, client.addedEvent.size());
+        String oldUuid = (String) client.addedEvent.get(0).event.get("td_uuid");
+        assertNotNull(oldUuid);
+        assertEquals("forget_device_uuid", client.addedEvent.get(1).event.get("td_android_event"));
+        assertEquals(oldUuid, client.addedEvent.get(1).event.get("td_uuid"));
+        // Events after the reset have the new UUID, which is the persisted one
+        String newUuid = (String) client.addedEvent.get(2).event.get("td_uuid");
+        assertFalse(oldUuid.equals(newUuid));
+        assertEquals(td.getUUID(), newUuid);
+    }
+
+    public void testAddTypedEvent() throws IOException {
+        td.enableAutoAppendAppInformation();
+        td.enableServerSideUploadTimestamp();
+        TDEvent event = new TDEvent.Builder()
+                .putString("key", "val")
+                .putLong("count", 42L)
+                .putString("td_app_ver", "overridden")
+                .build();
+        td.addEvent("db_", "tbl", event);
+        td.uploadEvents();
+        assertEquals(1, client.addedEvent.size());
+        assertEquals("db_.tbl", client.addedEvent.get(0).tag);
+        Map<String, Object> added = client.addedEvent.get(0).event;
+        assertEquals(5, added.size());
+        assertEquals("val", added.get("key"));
+        assertEquals(42, added.get("count"));
+        assertEquals("3.1.4", added.get("td_app_ver"));
+        assertEquals(42, added.get("td_app_ver_num"));
+        assertEquals(true, added.get("#SSUT"));
+        // The given event isn't modified
+        assertEquals(3, event.size());
+    }
+
+    public void testAddEventWithTableRef() throws IOException {
+        TDTableRef tableRef = TDTableRef.of("db_", "tbl");
+        Map<String, Object> records = new HashMap<String, Object>();
+        records.put("key", "val");
+        td.addEvent(tableRef, records);
+        td.addEvent(tableRef, new TDEvent.Builder().putString("key", "val2").build());
+        td.uploadEvents();
+        assertEquals(2, client.addedEvent.size());
+        assertEquals("db_.tbl", client.addedEvent.get(0).tag);
+        assertEquals("val", client.addedEvent.get(0).event.get("key"));
+        assertEquals("db_.tbl", client.addedEvent.get(1).tag);
+        assertEquals("val2", client.addedEvent.get(1).event.get("key"));
+    }
+
+    public void testAddEventWithNullTableRef() throws IOException {
+        enableCallbackForAddEvent();
+        td.addEvent((TDTableRef) null, new HashMap<String, Object>());
+        assertEquals(0, client.addedEvent.size());
+        assertFalse(onSuccessCalledForAddEvent);
+        assertEquals(KeenClient.ERROR_CODE_INVALID_PARAM, errorCodeForAddEvent);
+    }
+
+    public void testAddTypedEventWithDatabaseNameError() throws IOException {
+        enableCallbackForAddEvent();
+        td.addEvent("db-", "tbl", new TDEvent.Builder().putString("key", "val").build());
+        assertEquals(0, client.addedEvent.size());
+        assertFalse(onSuccessCalledForAddEvent);
+        assertEquals(KeenClient.ERROR_CODE_INVALID_PARAM, errorCodeForAddEvent);
+    }
+
     public void testAddEventWithUniqueRecordIdWithDefaultColumnName() throws IOException {
         td.enableAutoAppendRecordUUID();
         Map<String, Object> records = new HashMap<String, Object>();